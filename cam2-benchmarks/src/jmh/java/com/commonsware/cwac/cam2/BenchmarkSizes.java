@@ -0,0 +1,59 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import java.util.ArrayList;
+
+/**
+ * Synthetic camera sizes for the benchmarks, modeled on what a
+ * typical 13MP phone camera reports, in the scrambled order
+ * that cameras tend to report them in.
+ */
+class BenchmarkSizes {
+  private static final int[][] PREVIEW={
+      {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720},
+      {1056, 864}, {960, 720}, {864, 480}, {800, 480},
+      {768, 432}, {720, 480}, {640, 640}, {640, 480},
+      {480, 640}, {576, 432}, {480, 360}, {480, 320},
+      {384, 288}, {352, 288}, {320, 240}, {240, 160},
+      {176, 144}, {160, 120}, {1600, 1200}, {1920, 1440}
+  };
+  private static final int[][] PICTURE={
+      {4160, 3120}, {4160, 2340}, {4000, 3000}, {4096, 2160},
+      {3264, 2448}, {3200, 2400}, {3264, 1836}, {2976, 2976},
+      {2592, 1944}, {2592, 1458}, {2688, 1512}, {2560, 1920},
+      {2560, 1440}, {2048, 1536}, {2048, 1152}, {1920, 1080},
+      {1600, 1200}, {1440, 1080}, {1280, 960}, {1280, 768},
+      {1280, 720}, {1024, 768}, {800, 600}, {800, 480},
+      {720, 480}, {640, 480}, {352, 288}, {320, 240},
+      {176, 144}, {3840, 2160}
+  };
+
+  static ArrayList<Size> previewSizes() {
+    return(toSizes(PREVIEW));
+  }
+
+  static ArrayList<Size> pictureSizes() {
+    return(toSizes(PICTURE));
+  }
+
+  private static ArrayList<Size> toSizes(int[][] dimens) {
+    ArrayList<Size> result=new ArrayList<Size>(dimens.length);
+
+    for (int[] dimen : dimens) {
+      result.add(new Size(dimen[0], dimen[1]));
+    }
+
+    return(result);
+  }
+}
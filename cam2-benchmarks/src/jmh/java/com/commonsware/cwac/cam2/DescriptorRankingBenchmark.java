@@ -0,0 +1,84 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks ranking the camera descriptors against the
+ * CameraSelectionCriteria, as both engines do in
+ * loadCameraDescriptors().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DescriptorRankingBenchmark {
+  private static final int CAMERA_COUNT=4;
+  private List<CameraDescriptor> classicDescriptors;
+  private List<CameraDescriptor> twoDescriptors;
+  private CameraSelectionCriteria criteria;
+
+  @Setup
+  public void setUp() {
+    classicDescriptors=new ArrayList<CameraDescriptor>();
+    twoDescriptors=new ArrayList<CameraDescriptor>();
+
+    for (int i=0;i<CAMERA_COUNT;i++) {
+      // alternate back-facing and front-facing cameras, which
+      // happen to use the same values for both APIs
+
+      DescriptorCache.Entry entry=new DescriptorCache.Entry(
+          Integer.toString(i), i%2, BenchmarkSizes.previewSizes(),
+          BenchmarkSizes.pictureSizes(), new int[] {256});
+
+      classicDescriptors.add(new ClassicCameraEngine.Descriptor(entry));
+      twoDescriptors.add(new CameraTwoEngine.Descriptor(entry));
+    }
+
+    criteria=new CameraSelectionCriteria.Builder()
+        .facing(CameraSelectionCriteria.Facing.FRONT)
+        .build();
+  }
+
+  @Benchmark
+  public List<CameraDescriptor> rankClassic() {
+    List<CameraDescriptor> result=
+        new ArrayList<CameraDescriptor>(classicDescriptors);
+
+    Collections.sort(result,
+        new ClassicCameraEngine.ScoreComparator(criteria));
+
+    return(result);
+  }
+
+  @Benchmark
+  public List<CameraDescriptor> rankCameraTwo() {
+    List<CameraDescriptor> result=
+        new ArrayList<CameraDescriptor>(twoDescriptors);
+
+    Collections.sort(result,
+        new CameraTwoEngine.ScoreComparator(criteria));
+
+    return(result);
+  }
+}
@@ -0,0 +1,105 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import com.commonsware.cwac.cam2.util.JpegHeader;
+import com.commonsware.cwac.cam2.util.Size;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmarks the overhead of dispatching a picture through a
+ * PictureTransaction's ImageProcessor chain, both with and
+ * without per-processor CaptureTimings. The picture is a real
+ * 1920x1080 JPEG, and each processor reads its dimensions from
+ * the JPEG header, as ResizeProcessor does before deciding
+ * whether there is anything to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcessorChainBenchmark {
+  @Param({"1", "4", "16"})
+  public int chainLength;
+
+  private PictureTransaction xact;
+  private CaptureStatistics stats;
+  private ImageContext imageContext;
+
+  @Setup
+  public void setUp() throws Exception {
+    PictureTransaction.Builder b=new PictureTransaction.Builder();
+
+    for (int i=0;i<chainLength;i++) {
+      b.append(new HeaderReadingProcessor("header"+i));
+    }
+
+    xact=b.build();
+    stats=new CaptureStatistics();
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    ImageIO.write(new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB),
+        "jpg", out);
+
+    // the processors only read the JPEG, so one ImageContext
+    // serves every invocation
+
+    imageContext=new ImageContext(null, out.toByteArray());
+  }
+
+  @Benchmark
+  public ImageContext dispatch() {
+    xact.setTimings(null);
+
+    return(xact.process(imageContext));
+  }
+
+  @Benchmark
+  public ImageContext dispatchWithTimings() {
+    xact.setTimings(new CaptureTimings(stats, System.nanoTime()));
+
+    return(xact.process(imageContext));
+  }
+
+  private static class HeaderReadingProcessor implements ImageProcessor {
+    private final String tag;
+    private long pixels=0;
+
+    HeaderReadingProcessor(String tag) {
+      this.tag=tag;
+    }
+
+    @Override
+    public void process(PictureTransaction xact,
+                        ImageContext imageContext) {
+      Size size=JpegHeader.readSize(imageContext.getJpegBuffer());
+
+      pixels+=(long)size.getWidth()*size.getHeight();
+    }
+
+    @Override
+    public String getTag() {
+      return(tag);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import com.commonsware.cwac.cam2.util.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks picking the preview and picture sizes when a
+ * camera is opened: CameraController's preview size selection,
+ * both scoring every size and hitting the controller's cache,
+ * and Utils.getLargestPictureSize().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeSelectionBenchmark {
+  private ArrayList<Size> previewSizes;
+  private CameraDescriptor descriptor;
+  private CameraController controller;
+
+  @Setup
+  public void setUp() {
+    previewSizes=BenchmarkSizes.previewSizes();
+
+    final ArrayList<Size> pictureSizes=BenchmarkSizes.pictureSizes();
+
+    descriptor=new CameraDescriptor() {
+      @Override
+      public ArrayList<Size> getPreviewSizes() {
+        return(previewSizes);
+      }
+
+      @Override
+      public ArrayList<Size> getPictureSizes() {
+        return(pictureSizes);
+      }
+
+      @Override
+      public boolean isPictureFormatSupported(int format) {
+        return(true);
+      }
+    };
+
+    controller=new CameraController();
+  }
+
+  @Benchmark
+  public Size previewSizeForPhone() {
+    return(CameraController.choosePreviewSize(previewSizes, 1080, 1776));
+  }
+
+  @Benchmark
+  public Size previewSizeForTablet() {
+    return(CameraController.choosePreviewSize(previewSizes, 2560, 1504));
+  }
+
+  @Benchmark
+  public Size previewSizeForPhoneAtDisplay() {
+    return(CameraController.choosePreviewSize(previewSizes, 1080, 1776,
+        1080, 1920));
+  }
+
+  @Benchmark
+  public Size cachedPreviewSizeForPhone() {
+    return(controller.choosePreviewSize(descriptor, 1080, 1776, 0, 1080,
+        1920));
+  }
+
+  @Benchmark
+  public Size largestPictureSize() {
+    return(Utils.getLargestPictureSize(descriptor));
+  }
+}
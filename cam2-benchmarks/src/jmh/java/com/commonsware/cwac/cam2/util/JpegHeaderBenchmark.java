@@ -0,0 +1,72 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmarks finding a JPEG's dimensions from its SOF segment
+ * and computing the thumbnail sample size from them, as
+ * ImageContext does for thumbnails. The JPEG has a 32KB APP1
+ * segment ahead of the SOF, like the EXIF data from a camera.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JpegHeaderBenchmark {
+  private static final int APP1_LENGTH=32*1024;
+  private ByteBuffer jpeg;
+
+  @Setup
+  public void setUp() throws Exception {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    ImageIO.write(new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB),
+        "jpg", out);
+
+    byte[] plain=out.toByteArray();
+    byte[] withApp1=new byte[plain.length+APP1_LENGTH+2];
+
+    withApp1[0]=(byte)0xFF;
+    withApp1[1]=(byte)0xD8;
+    withApp1[2]=(byte)0xFF;
+    withApp1[3]=(byte)0xE1;
+    withApp1[4]=(byte)(APP1_LENGTH>>8);
+    withApp1[5]=(byte)APP1_LENGTH;
+    System.arraycopy(plain, 2, withApp1, APP1_LENGTH+4, plain.length-2);
+    jpeg=ByteBuffer.wrap(withApp1).asReadOnlyBuffer();
+  }
+
+  @Benchmark
+  public Size readSize() {
+    return(JpegHeader.readSize(jpeg));
+  }
+
+  @Benchmark
+  public int sampleSizeForPreviewThumbnail() {
+    Size size=JpegHeader.readSize(jpeg);
+
+    return(JpegHeader.computeSampleSize(size.getWidth(), size.getHeight(),
+        4, 2000000));
+  }
+}
@@ -0,0 +1,66 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmarks lossless rotation of a 12MP JPEG, as
+ * LosslessRotationProcessor does for pictures taken in the
+ * sensor's orientation. The picture is noisy, so the
+ * entropy-coded data is closer in size to that of a real
+ * photo than a blank image would be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LosslessJpegRotatorBenchmark {
+  @Param({"90", "180", "270"})
+  public int degrees;
+  private ByteBuffer jpeg;
+
+  @Setup
+  public void setUp() throws Exception {
+    BufferedImage image=
+        new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+    Random random=new Random(1337);
+
+    for (int y=0;y<image.getHeight();y++) {
+      for (int x=0;x<image.getWidth();x++) {
+        image.setRGB(x, y, ((x*y)>>4)^(random.nextInt(32)*0x010101));
+      }
+    }
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    ImageIO.write(image, "jpg", out);
+    jpeg=ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+  }
+
+  @Benchmark
+  public byte[] rotate() {
+    return(LosslessJpegRotator.rotate(jpeg, degrees, true));
+  }
+}
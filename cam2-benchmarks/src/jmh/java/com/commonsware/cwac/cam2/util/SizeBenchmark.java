@@ -0,0 +1,81 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the basics of Size: parsing, hashing, and
+ * comparing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeBenchmark {
+  private String[] strings;
+  private Size[] sizes;
+  private Size[] copies;
+
+  @Setup
+  public void setUp() {
+    strings=new String[] {"1920x1080", "640*480", "4160x3120", "176x144"};
+    sizes=new Size[strings.length];
+    copies=new Size[strings.length];
+
+    for (int i=0;i<strings.length;i++) {
+      sizes[i]=Size.parseSize(strings[i]);
+      copies[i]=new Size(sizes[i].getWidth(), sizes[i].getHeight());
+    }
+  }
+
+  @Benchmark
+  public void parse(Blackhole bh) {
+    for (String s : strings) {
+      bh.consume(Size.parseSize(s));
+    }
+  }
+
+  @Benchmark
+  public void hash(Blackhole bh) {
+    for (Size size : sizes) {
+      bh.consume(size.hashCode());
+    }
+  }
+
+  @Benchmark
+  public void compare(Blackhole bh) {
+    for (int i=0;i<sizes.length;i++) {
+      bh.consume(sizes[i].equals(copies[i]));
+      bh.consume(sizes[i].equals(copies[(i+1)%copies.length]));
+    }
+  }
+
+  @Benchmark
+  public HashSet<Size> hashSetOfSizes() {
+    HashSet<Size> result=new HashSet<Size>();
+
+    for (Size size : sizes) {
+      result.add(size);
+    }
+
+    return(result);
+  }
+}
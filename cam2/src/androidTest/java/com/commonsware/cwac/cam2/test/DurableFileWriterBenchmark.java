@@ -0,0 +1,127 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.test;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.commonsware.cwac.cam2.util.DurableFileWriter;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the durability policies of DurableFileWriter, by
+ * writing a series of JPEG-sized files with each. Results are
+ * logged to LogCat under the DurableFileWriterBenchmark tag.
+ *
+ * By default, files are written to the cache directory of the
+ * test app. To compare filesystems (e.g., tmpfs versus ext4),
+ * pass the directory to use as the benchmarkDir instrumentation
+ * argument:
+ *
+ * adb shell am instrument -w -e benchmarkDir /path/to/dir ...
+ */
+@RunWith(AndroidJUnit4.class)
+public class DurableFileWriterBenchmark {
+  private static final String TAG="DurableFileWriterBenchmark";
+  private static final int FILE_COUNT=30;
+  private static final int FILE_SIZE=3*1024*1024;
+  private File dir;
+  private byte[] jpeg;
+
+  @Before
+  public void doThisFirst() {
+    Bundle args=InstrumentationRegistry.getArguments();
+    String path=(args==null ? null : args.getString("benchmarkDir"));
+
+    if (path==null) {
+      dir=new File(InstrumentationRegistry.getContext().getCacheDir(),
+          TAG);
+    }
+    else {
+      dir=new File(path);
+    }
+
+    dir.mkdirs();
+    jpeg=new byte[FILE_SIZE];
+    new Random(1337).nextBytes(jpeg);
+  }
+
+  @After
+  public void doThisLast() {
+    File[] files=dir.listFiles();
+
+    if (files!=null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void syncPerFile() throws Exception {
+    run(DurableFileWriter.Policy.syncPerFile());
+  }
+
+  @Test
+  public void groupCommitByCount() throws Exception {
+    run(DurableFileWriter.Policy.groupCommit(10, 60000));
+  }
+
+  @Test
+  public void groupCommitByTime() throws Exception {
+    run(DurableFileWriter.Policy.groupCommit(Integer.MAX_VALUE, 250));
+  }
+
+  @Test
+  public void noSync() throws Exception {
+    run(DurableFileWriter.Policy.noSync());
+  }
+
+  private void run(DurableFileWriter.Policy policy) throws Exception {
+    DurableFileWriter writer=new DurableFileWriter(policy);
+    long worst=0;
+    long start=System.nanoTime();
+
+    for (int i=0;i<FILE_COUNT;i++) {
+      long fileStart=System.nanoTime();
+
+      writer.write(new File(dir, "bench"+i+".jpg"), ByteBuffer.wrap(jpeg));
+      worst=Math.max(worst, System.nanoTime()-fileStart);
+    }
+
+    long written=System.nanoTime();
+
+    writer.close();
+
+    long durable=System.nanoTime();
+
+    Log.i(TAG, String.format("%s on %s: %.2f ms/file written, "+
+            "%.2f ms worst file, %.2f ms/file durable",
+        policy, dir.getAbsolutePath(),
+        (written-start)/1000000.0d/FILE_COUNT,
+        worst/1000000.0d,
+        (durable-start)/1000000.0d/FILE_COUNT));
+
+    for (int i=0;i<FILE_COUNT;i++) {
+      Assert.assertEquals(FILE_SIZE,
+          new File(dir, "bench"+i+".jpg").length());
+    }
+  }
+}
@@ -16,7 +16,8 @@ package com.commonsware.cwac.cam2;
 
 import android.content.Context;
 
-abstract public class AbstractImageProcessor implements ImageProcessor {
+abstract public class AbstractImageProcessor
+    implements ImageProcessor, ImageProcessor.Staged {
   private final String tag;
   private final Context ctxt;
 
@@ -34,6 +35,17 @@ abstract public class AbstractImageProcessor implements ImageProcessor {
     return(tag==null ? getClass().getCanonicalName() : tag);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Defaults to Stage.CPU. Override if your processor does
+   * I/O, so it does not tie up a CPU-bound thread.
+   */
+  @Override
+  public Stage getStage() {
+    return(Stage.CPU);
+  }
+
   protected Context getContext() {
     return(ctxt);
   }
@@ -57,6 +57,60 @@ public class CameraActivity extends Activity
    */
   public static final String EXTRA_CONFIRM="cwac_cam2_confirm";
 
+  /**
+   * Extra name for how long, in milliseconds, the camera
+   * should be left open after this activity is done with it,
+   * so the next launch of this activity can reuse it. Default
+   * is 0, meaning that the camera is closed right away.
+   */
+  public static final String EXTRA_WARM_TIMEOUT="cwac_cam2_warm_timeout";
+
+  /**
+   * Extra name for a CameraController.SwitchMode, indicating
+   * how much work to do ahead of time to make switching cameras
+   * faster. Default is SwitchMode.DEFAULT.
+   */
+  public static final String EXTRA_SWITCH_MODE="cwac_cam2_switch_mode";
+
+  /**
+   * Extra name for whether pictures should be taken in the
+   * sensor's orientation and rotated losslessly afterwards,
+   * rather than having the camera rotate them. Default is false.
+   */
+  public static final String EXTRA_LOSSLESS_ROTATION="cwac_cam2_lossless_rotation";
+
+  /**
+   * Extra name for whether the time (and, where known, the
+   * orientation) of the picture should be stamped into its
+   * EXIF data. Default is false.
+   */
+  public static final String EXTRA_STAMP_EXIF="cwac_cam2_stamp_exif";
+
+  /**
+   * Extra name for a PictureSizeStrategy, indicating how to
+   * choose the size of the picture. Default is to take the
+   * picture at the largest size (or, if EXTRA_DOWNSCALE_SIDE
+   * is supplied, the smallest size that is big enough).
+   */
+  public static final String EXTRA_PICTURE_SIZE_STRATEGY="cwac_cam2_picture_size_strategy";
+
+  /**
+   * Extra name for the maximum length, in pixels, of the longer
+   * side of the picture. The picture is taken at the smallest
+   * size that is at least that big, then scaled down. Default
+   * is 0, meaning that the picture is taken at the largest
+   * size and left alone.
+   */
+  public static final String EXTRA_DOWNSCALE_SIDE="cwac_cam2_downscale_side";
+
+  /**
+   * Extra name for the JPEG quality, from 0 to 100, at which to
+   * re-encode pictures that are scaled down per
+   * EXTRA_DOWNSCALE_SIDE. Default is
+   * ResizeProcessor.DEFAULT_QUALITY.
+   */
+  public static final String EXTRA_DOWNSCALE_QUALITY="cwac_cam2_downscale_quality";
+
   private static final String TAG_CAMERA=CameraFragment.class.getCanonicalName();
   private static final String TAG_CONFIRM=ConfirmationFragment.class.getCanonicalName();
   private CameraFragment cameraFrag;
@@ -85,7 +139,9 @@ public class CameraActivity extends Activity
     needsThumbnail=(output==null);
 
     if (cameraFrag==null) {
-      cameraFrag=CameraFragment.newInstance(output);
+      cameraFrag=CameraFragment.newInstance(output,
+          getIntent().getBooleanExtra(EXTRA_CONFIRM, true),
+          getIntent().getBooleanExtra(EXTRA_STAMP_EXIF, false));
 
       CameraController ctrl=new CameraController();
 
@@ -103,6 +159,23 @@ public class CameraActivity extends Activity
 
       ctrl.setEngine(CameraEngine.buildInstance(this), criteria);
       ctrl.getEngine().setDebug(getIntent().getBooleanExtra(EXTRA_DEBUG_ENABLED, false));
+      ctrl.getEngine().setWarmSessionTimeout(getIntent().getLongExtra(EXTRA_WARM_TIMEOUT, 0));
+
+      CameraController.SwitchMode switchMode=
+          (CameraController.SwitchMode)getIntent().getSerializableExtra(EXTRA_SWITCH_MODE);
+
+      if (switchMode!=null) {
+        ctrl.setSwitchMode(switchMode);
+      }
+
+      ctrl.setLosslessRotation(
+          getIntent().getBooleanExtra(EXTRA_LOSSLESS_ROTATION, false));
+      ctrl.setPictureSizeStrategy((PictureSizeStrategy)getIntent()
+          .getSerializableExtra(EXTRA_PICTURE_SIZE_STRATEGY));
+      ctrl.setDownscale(getIntent().getIntExtra(EXTRA_DOWNSCALE_SIDE, 0),
+          getIntent().getIntExtra(EXTRA_DOWNSCALE_QUALITY,
+              ResizeProcessor.DEFAULT_QUALITY));
+
       getFragmentManager()
           .beginTransaction()
           .add(android.R.id.content, cameraFrag, TAG_CAMERA)
@@ -148,6 +221,27 @@ public class CameraActivity extends Activity
     super.onStop();
   }
 
+  /**
+   * Standard lifecycle method, for when the activity is being
+   * destroyed. If we are finishing, the CameraEngine is shut
+   * down, which lets any pending writes finish in the background.
+   * The exception is if the engine is holding the camera open
+   * for the next launch, in which case the engine lives on.
+   */
+  @Override
+  protected void onDestroy() {
+    if (isFinishing() && cameraFrag!=null &&
+        cameraFrag.getController()!=null) {
+      CameraEngine engine=cameraFrag.getController().getEngine();
+
+      if (engine.getWarmSessionTimeout()==0) {
+        engine.shutdown();
+      }
+    }
+
+    super.onDestroy();
+  }
+
   @SuppressWarnings("unused")
   public void onEventMainThread(CameraController.NoSuchCameraEvent event) {
     finish();
@@ -192,7 +286,8 @@ public class CameraActivity extends Activity
       if (needsThumbnail) {
         final Intent result=new Intent();
 
-        result.putExtra("data", imageContext.buildResultThumbnail());
+        result.putExtra("data", imageContext.detachResultThumbnail());
+        imageContext.release();
 
         findViewById(android.R.id.content).post(new Runnable() {
           @Override
@@ -203,6 +298,7 @@ public class CameraActivity extends Activity
         });
       }
       else {
+        imageContext.release();
         findViewById(android.R.id.content).post(new Runnable() {
           @Override
           public void run() {
@@ -306,6 +402,108 @@ public class CameraActivity extends Activity
       return(this);
     }
 
+    /**
+     * Call to leave the camera open for a while after the
+     * activity is done with it, so launching the activity again
+     * soon thereafter is faster. Other apps cannot use the
+     * camera during this time.
+     *
+     * @param timeoutMillis how long to leave the camera open
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder warmTimeout(long timeoutMillis) {
+      result.putExtra(EXTRA_WARM_TIMEOUT, timeoutMillis);
+
+      return(this);
+    }
+
+    /**
+     * Call to prepare (and, where the device allows it,
+     * pre-open) the other camera while this one is in use,
+     * so switching cameras is faster.
+     *
+     * @param switchMode how much work to do ahead of time
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder switchMode(CameraController.SwitchMode switchMode) {
+      result.putExtra(EXTRA_SWITCH_MODE, switchMode);
+
+      return(this);
+    }
+
+    /**
+     * Call to have pictures taken in the sensor's orientation
+     * and rotated losslessly afterwards, for devices where the
+     * camera is slow to rotate them itself.
+     *
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder losslessRotation() {
+      result.putExtra(EXTRA_LOSSLESS_ROTATION, true);
+
+      return(this);
+    }
+
+    /**
+     * Call to have the time the picture was taken, and any
+     * rotation that could not be applied losslessly, stamped
+     * into the EXIF data of the picture.
+     *
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder stampExif() {
+      result.putExtra(EXTRA_STAMP_EXIF, true);
+
+      return(this);
+    }
+
+    /**
+     * Indicates how to choose the size of the picture, such as
+     * PictureSizeStrategy.ClosestToMegapixels, for when you do
+     * not need full-resolution pictures. Defaults to the
+     * largest size.
+     *
+     * @param strategy the PictureSizeStrategy to use
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder pictureSizeStrategy(PictureSizeStrategy strategy) {
+      result.putExtra(EXTRA_PICTURE_SIZE_STRATEGY, strategy);
+
+      return(this);
+    }
+
+    /**
+     * Call to have pictures scaled down so their longer side is
+     * no more than the given number of pixels, for when you do
+     * not need full-resolution pictures. Scaled pictures are
+     * re-encoded at ResizeProcessor.DEFAULT_QUALITY.
+     *
+     * @param maxSide the maximum length of the longer side, in
+     *                pixels
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder downscaleTo(int maxSide) {
+      return(downscaleTo(maxSide, ResizeProcessor.DEFAULT_QUALITY));
+    }
+
+    /**
+     * Call to have pictures scaled down so their longer side is
+     * no more than the given number of pixels, for when you do
+     * not need full-resolution pictures.
+     *
+     * @param maxSide the maximum length of the longer side, in
+     *                pixels
+     * @param quality the JPEG quality, from 0 to 100, at which
+     *                to re-encode scaled pictures
+     * @return the builder, for further configuration
+     */
+    public IntentBuilder downscaleTo(int maxSide, int quality) {
+      result.putExtra(EXTRA_DOWNSCALE_SIDE, maxSide);
+      result.putExtra(EXTRA_DOWNSCALE_QUALITY, quality);
+
+      return(this);
+    }
+
     /**
      * Indicates where to write the picture to. Defaults to
      * returning a thumbnail bitmap in the "data" extra, as
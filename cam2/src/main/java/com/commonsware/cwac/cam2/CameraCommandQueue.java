@@ -0,0 +1,213 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded, ordered executor for the commands that a
+ * CameraEngine sends to the camera: loading descriptors,
+ * opening, closing, taking pictures, and the like. Commands run
+ * one at a time, in the order in which they were issued, on a
+ * thread of their own, so they neither race one another nor
+ * wait behind image processing.
+ *
+ * Commands that would undo one another are coalesced: a close
+ * issued while the open of the same session is still waiting
+ * to run cancels that open, so the camera is not opened only to
+ * be closed again. The close still runs, to tidy up and raise
+ * its ClosedEvent, but it has no camera to close.
+ *
+ * The counters can help you see whether commands are backing
+ * up, such as when the camera is slow to open.
+ */
+public class CameraCommandQueue {
+  private static final int KEEP_ALIVE_SECONDS=60;
+
+  /**
+   * What a command does, for coalescing.
+   */
+  enum Kind {
+    OPEN,
+    CLOSE,
+    PRE_OPEN,
+    CAPTURE,
+    OTHER
+  }
+
+  private final ThreadPoolExecutor executor;
+  private int maxDepth=0;
+  private long executedCount=0;
+  private long coalescedCount=0;
+
+  CameraCommandQueue() {
+    executor=new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread result=new Thread(r, "CWAC-Cam2 camera commands");
+
+            result.setDaemon(true);
+
+            return(result);
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues up a command, to run after all those issued before
+   * it.
+   *
+   * @param kind what the command does
+   * @param key what the command works on (e.g., the
+   *            CameraSession), for coalescing
+   * @param command the work to do
+   */
+  void execute(Kind kind, Object key, Runnable command) {
+    Command toRun=new Command(kind, key, command);
+
+    synchronized(this) {
+      executor.execute(toRun);
+      maxDepth=Math.max(maxDepth, getDepth());
+    }
+  }
+
+  /**
+   * Queues up a command, unless one of the same kind for the
+   * same key is already waiting to run, in which case the new
+   * one would be redundant.
+   *
+   * @param kind what the command does
+   * @param key what the command works on
+   * @param command the work to do
+   * @return true if the command was queued, false if it was
+   * coalesced with the one already waiting
+   */
+  boolean executeUnlessPending(Kind kind, Object key, Runnable command) {
+    synchronized(this) {
+      if (findPending(kind, key)!=null) {
+        coalescedCount++;
+
+        return(false);
+      }
+
+      execute(kind, key, command);
+    }
+
+    return(true);
+  }
+
+  /**
+   * Cancels a command that has not started running yet.
+   *
+   * @param kind what the command does
+   * @param key what the command works on
+   * @return true if such a command was waiting and has been
+   * cancelled, false if there was none, or it already started
+   */
+  boolean cancel(Kind kind, Object key) {
+    synchronized(this) {
+      Command pending=findPending(kind, key);
+
+      if (pending!=null && executor.remove(pending)) {
+        coalescedCount++;
+
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  /**
+   * Stops accepting commands. Commands already queued are
+   * allowed to finish.
+   */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * @return the number of commands waiting to run, plus the one
+   * running, if any
+   */
+  synchronized public int getDepth() {
+    return(executor.getQueue().size()+executor.getActiveCount());
+  }
+
+  /**
+   * @return the most commands that have been waiting or running
+   * at once
+   */
+  synchronized public int getMaxDepth() {
+    return(maxDepth);
+  }
+
+  /**
+   * @return the number of commands that have run
+   */
+  synchronized public long getExecutedCount() {
+    return(executedCount);
+  }
+
+  /**
+   * @return the number of commands that were cancelled or
+   * skipped because of a later or earlier command
+   */
+  synchronized public long getCoalescedCount() {
+    return(coalescedCount);
+  }
+
+  private Command findPending(Kind kind, Object key) {
+    for (Runnable r : executor.getQueue()) {
+      Command command=(Command)r;
+
+      if (command.kind==kind && command.key==key) {
+        return(command);
+      }
+    }
+
+    return(null);
+  }
+
+  private class Command implements Runnable {
+    final Kind kind;
+    final Object key;
+    private final Runnable body;
+
+    Command(Kind kind, Object key, Runnable body) {
+      this.kind=kind;
+      this.key=key;
+      this.body=body;
+    }
+
+    @Override
+    public void run() {
+      try {
+        body.run();
+      }
+      finally {
+        synchronized(CameraCommandQueue.this) {
+          executedCount++;
+        }
+      }
+    }
+  }
+}
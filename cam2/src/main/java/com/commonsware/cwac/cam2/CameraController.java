@@ -14,11 +14,15 @@
 
 package com.commonsware.cwac.cam2;
 
+import android.content.Context;
 import android.content.pm.PackageInstaller;
 import android.graphics.ImageFormat;
+import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
+import android.view.Display;
 import android.view.View;
+import android.view.WindowManager;
 import com.commonsware.cwac.cam2.plugin.OrientationPlugin;
 import com.commonsware.cwac.cam2.plugin.SizeAndFormatPlugin;
 import com.commonsware.cwac.cam2.util.Size;
@@ -26,6 +30,7 @@ import com.commonsware.cwac.cam2.util.Utils;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import de.greenrobot.event.EventBus;
 
 /**
@@ -33,14 +38,55 @@ import de.greenrobot.event.EventBus;
  * by CameraFragment or the equivalent.
  */
 public class CameraController implements CameraView.StateCallback {
+  private static final double ASPECT_RATIO_WEIGHT=4.0;
+  private static final double UPSCALE_WEIGHT=2.0;
+
+  /**
+   * How much work to do ahead of time to make switchCamera()
+   * faster.
+   */
+  public enum SwitchMode {
+    /**
+     * Configure and open the next camera when switching to it
+     */
+    DEFAULT,
+
+    /**
+     * Configure the next camera's session (preview size,
+     * picture size, plugins) once the current camera is open
+     */
+    PREPARED,
+
+    /**
+     * Configure the next camera's session, and also ask the
+     * engine to open the next camera in the background, on
+     * devices that allow more than one camera to be open at once
+     */
+    PRE_OPENED
+  }
+
   private CameraEngine engine;
   private CameraSession session;
+  private CameraSession preparedSession=null;
+  private CameraView preparedView=null;
+  private int preparedWidth=0;
+  private int preparedHeight=0;
+  private Size preparedPreviewSize=null;
+  private SwitchMode switchMode=SwitchMode.DEFAULT;
+  private boolean isLosslessRotation=false;
+  private PictureSizeStrategy pictureSizeStrategy=null;
+  private int downscaleSide=0;
+  private int downscaleQuality=ResizeProcessor.DEFAULT_QUALITY;
+  private long switchStartNanos=-1;
+  private long lastSwitchMillis=-1;
   private List<CameraDescriptor> cameras=null;
   private int currentCamera=0;
   private final HashMap<CameraDescriptor, CameraView> previews=
       new HashMap<CameraDescriptor, CameraView>();
   private Queue<CameraView> availablePreviews=null;
   private boolean switchPending=false;
+  private final HashMap<PreviewSizeKey, Size> previewSizeCache=
+      new HashMap<PreviewSizeKey, Size>();
   private boolean isAttached=false;
 
   /**
@@ -67,6 +113,105 @@ public class CameraController implements CameraView.StateCallback {
     engine.loadCameraDescriptors(criteria);
   }
 
+  /**
+   * Indicates how much work should be done ahead of time to
+   * make switchCamera() faster. The default is
+   * SwitchMode.DEFAULT, which does no extra work.
+   *
+   * @param switchMode the SwitchMode to use
+   */
+  public void setSwitchMode(SwitchMode switchMode) {
+    this.switchMode=switchMode;
+  }
+
+  /**
+   * @return the SwitchMode being used
+   */
+  public SwitchMode getSwitchMode() {
+    return(switchMode);
+  }
+
+  /**
+   * Indicates whether pictures should be taken in the sensor's
+   * orientation and rotated afterwards by a
+   * LosslessRotationProcessor, rather than having the camera
+   * rotate them, which some devices do slowly. Call this before
+   * the preview starts.
+   *
+   * @param isLosslessRotation true to rotate pictures losslessly
+   *                           after they are taken, false to have
+   *                           the camera rotate them (the default)
+   */
+  public void setLosslessRotation(boolean isLosslessRotation) {
+    this.isLosslessRotation=isLosslessRotation;
+  }
+
+  /**
+   * @return true if pictures are rotated losslessly after they
+   * are taken, false if the camera rotates them
+   */
+  public boolean isLosslessRotation() {
+    return(isLosslessRotation);
+  }
+
+  /**
+   * Indicates how to choose the size of the pictures that the
+   * camera takes. By default, pictures are taken at the
+   * largest size, or, if setDownscale() was called, at the
+   * smallest size that can be scaled down as requested. Call
+   * this before the preview starts.
+   *
+   * @param pictureSizeStrategy the strategy to use, or null for
+   *                            the default
+   */
+  public void setPictureSizeStrategy(PictureSizeStrategy pictureSizeStrategy) {
+    this.pictureSizeStrategy=pictureSizeStrategy;
+  }
+
+  /**
+   * @return the strategy for choosing the picture size, or null
+   * if the default is being used
+   */
+  public PictureSizeStrategy getPictureSizeStrategy() {
+    return(pictureSizeStrategy);
+  }
+
+  /**
+   * Indicates that pictures should be scaled down so that
+   * their longer side is no more than the given number of
+   * pixels. The camera takes pictures at the smallest size
+   * that is at least that big, and a ResizeProcessor at the
+   * start of the PictureTransaction scales them the rest of
+   * the way. Call this before the preview starts.
+   *
+   * @param maxSide the maximum length of the longer side of
+   *                pictures, in pixels, or 0 to take pictures
+   *                at the largest size (the default)
+   * @param quality the JPEG quality to re-encode scaled
+   *                pictures at, on a 0-100 scale
+   */
+  public void setDownscale(int maxSide, int quality) {
+    this.downscaleSide=maxSide;
+    this.downscaleQuality=quality;
+  }
+
+  /**
+   * @return the maximum length of the longer side of pictures,
+   * in pixels, or 0 if pictures are not scaled down
+   */
+  public int getDownscaleSide() {
+    return(downscaleSide);
+  }
+
+  /**
+   * @return how long the last switchCamera() took, from the
+   * call until the next camera's preview was running, in
+   * milliseconds, or -1 if there has been no switch
+   */
+  public long getLastSwitchMillis() {
+    return(lastSwitchMillis);
+  }
+
   public int getNumberOfCameras() {
     return(cameras==null ? 0 : cameras.size());
   }
@@ -108,6 +253,7 @@ public class CameraController implements CameraView.StateCallback {
    * be created if you want to use the camera again in the future.
    */
   public void destroy() {
+    discardPreparedSession();
     EventBus.getDefault().post(new ControllerDestroyedEvent(this));
     EventBus.getDefault().unregister(this);
   }
@@ -120,6 +266,7 @@ public class CameraController implements CameraView.StateCallback {
    */
   public void switchCamera() {
     if (session!=null) {
+      switchStartNanos=System.nanoTime();
       getPreview(session.getDescriptor()).setVisibility(View.INVISIBLE);
       switchPending=true;
       stop();
@@ -177,7 +324,69 @@ public class CameraController implements CameraView.StateCallback {
    * @param xact a PictureTransaction describing what should be taken
    */
   public void takePicture(PictureTransaction xact) {
-    engine.takePicture(session, xact);
+    engine.takePicture(session, addResize(addRotation(xact)));
+  }
+
+  /**
+   * Takes a burst of pictures. Subscribe to the
+   * PictureTakenEvent to get each picture, and to the
+   * BurstCompletedEvent to find out when the burst is done.
+   *
+   * @param count the number of pictures to take
+   * @param factory supplies a PictureTransaction for each picture
+   */
+  public void takeBurst(int count, final PictureTransaction.Factory factory) {
+    engine.takeBurst(session, count, new PictureTransaction.Factory() {
+      @Override
+      public PictureTransaction buildTransaction(int index) {
+        return(addResize(addRotation(factory.buildTransaction(index))));
+      }
+    });
+  }
+
+  /**
+   * If the session leaves pictures in the sensor's orientation,
+   * records how the picture needs to be rotated and makes sure
+   * that the chain starts with a LosslessRotationProcessor to
+   * do it.
+   */
+  private PictureTransaction addRotation(PictureTransaction xact) {
+    OrientationPlugin plugin=
+        (session==null ? null : session.getPlugin(OrientationPlugin.class));
+
+    if (plugin!=null && plugin.isRotateLater()) {
+      xact.getProperties().putInt(LosslessRotationProcessor.PROP_DEGREES,
+          plugin.getPictureOrientation());
+
+      String tag=LosslessRotationProcessor.class.getCanonicalName();
+
+      if (xact.findProcessorByTag(tag)==null) {
+        xact.getProcessors().add(0,
+            new LosslessRotationProcessor(session.getContext()));
+      }
+    }
+
+    return(xact);
+  }
+
+  /**
+   * If pictures are to be scaled down, makes sure that the
+   * chain starts with a ResizeProcessor to do it. That goes
+   * ahead of any LosslessRotationProcessor, as it rotates the
+   * picture as part of scaling it.
+   */
+  private PictureTransaction addResize(PictureTransaction xact) {
+    if (downscaleSide>0 && session!=null) {
+      String tag=ResizeProcessor.class.getCanonicalName();
+
+      if (xact.findProcessorByTag(tag)==null) {
+        xact.getProcessors().add(0,
+            new ResizeProcessor(session.getContext(), downscaleSide,
+                downscaleQuality));
+      }
+    }
+
+    return(xact);
   }
 
   private CameraView getPreview(CameraDescriptor camera) {
@@ -202,62 +411,270 @@ public class CameraController implements CameraView.StateCallback {
   }
 
   private void open() {
-    Size previewSize=null;
     CameraDescriptor camera=cameras.get(currentCamera);
     CameraView cv=getPreview(camera);
+    SurfaceTexture texture=cv.getSurfaceTexture();
 
-    if (camera!=null && cv.getWidth()>0 && cv.getHeight()>0) {
-      Size largest=null;
-      long currentLargestArea=0;
-      Size smallestBiggerThanPreview=null;
-      long currentSmallestArea=Integer.MAX_VALUE;
+    if (texture==null) {
+      return;
+    }
+
+    if (preparedSession!=null &&
+        preparedSession.getDescriptor()==camera &&
+        preparedView==cv &&
+        preparedWidth==cv.getWidth() &&
+        preparedHeight==cv.getHeight()) {
+      session=preparedSession;
+      preparedSession=null;
+      cv.setPreviewSize(preparedPreviewSize);
+    }
+    else {
+      discardPreparedSession();
 
-      for (Size size : camera.getPreviewSizes()) {
-        long currentArea=size.getWidth()*size.getHeight();
+      Size previewSize=choosePreviewSize(camera, cv);
 
-        if (largest==null || size.getWidth()*size.getHeight()>currentLargestArea) {
-          largest=size;
-          currentLargestArea=currentArea;
-        }
+      if (previewSize==null) {
+        return;
+      }
+
+      cv.setPreviewSize(previewSize);
+      session=buildSession(camera, cv, previewSize);
+    }
+
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      texture.setDefaultBufferSize(cv.getWidth(), cv.getHeight());
+    }
+
+    engine.open(session, texture);
+  }
+
+  /**
+   * Configures the session for the camera after the current
+   * one, so that switchCamera() does not have to, and asks
+   * the engine to open that camera if the SwitchMode calls
+   * for it. If that camera's view has not been laid out yet,
+   * this waits until it has been, as the preview size depends
+   * on the size of the view.
+   */
+  private void prepareNextSession() {
+    CameraDescriptor camera=cameras.get(getNextCameraIndex());
+    CameraView cv=getPreview(camera);
+
+    discardPreparedSession();
+
+    if (cv.getWidth()==0 || cv.getHeight()==0) {
+      prepareNextSessionAfterLayout(cv);
+
+      return;
+    }
 
-        if (size.getWidth()>=cv.getWidth() && size.getHeight()>=cv.getHeight()) {
-          if (smallestBiggerThanPreview==null || currentArea<currentSmallestArea) {
-            smallestBiggerThanPreview=size;
-            currentSmallestArea=currentArea;
-          }
+    Size previewSize=choosePreviewSize(camera, cv);
+
+    if (previewSize!=null) {
+      preparedSession=buildSession(camera, cv, previewSize);
+      preparedView=cv;
+      preparedWidth=cv.getWidth();
+      preparedHeight=cv.getHeight();
+      preparedPreviewSize=previewSize;
+
+      if (switchMode==SwitchMode.PRE_OPENED) {
+        engine.preOpen(camera);
+      }
+    }
+  }
+
+  private void prepareNextSessionAfterLayout(CameraView cv) {
+    cv.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+      @Override
+      public void onLayoutChange(View v, int left, int top, int right,
+                                 int bottom, int oldLeft, int oldTop,
+                                 int oldRight, int oldBottom) {
+        v.removeOnLayoutChangeListener(this);
+
+        // skip it if the session, or the next camera, changed
+        // while we were waiting
+
+        if (right>left && bottom>top && session!=null &&
+            preparedSession==null && switchMode!=SwitchMode.DEFAULT &&
+            cameras.size()>1 &&
+            previews.get(cameras.get(getNextCameraIndex()))==v) {
+          prepareNextSession();
         }
       }
+    });
+  }
+
+  private void discardPreparedSession() {
+    if (preparedSession!=null) {
+      preparedSession.destroy();
+      preparedSession=null;
+      preparedView=null;
+    }
+  }
 
-      previewSize=(smallestBiggerThanPreview == null
-          ? largest
-          : smallestBiggerThanPreview);
+  private CameraSession buildSession(CameraDescriptor camera,
+                                     CameraView cv, Size previewSize) {
+    return(engine
+        .buildSession(cv.getContext(), camera)
+        .addPlugin(new SizeAndFormatPlugin(previewSize,
+            choosePictureSize(camera, previewSize),
+            ImageFormat.JPEG))
+        .addPlugin(new OrientationPlugin(cv.getContext(),
+            isLosslessRotation))
+        .build());
+  }
 
-      cv.setPreviewSize(previewSize);
+  private Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+    PictureSizeStrategy strategy=pictureSizeStrategy;
+
+    if (strategy==null) {
+      if (downscaleSide>0) {
+        strategy=new PictureSizeStrategy.SmallestAtLeast(downscaleSide);
+      }
+      else {
+        strategy=new PictureSizeStrategy.Largest();
+      }
     }
 
-    SurfaceTexture texture=cv.getSurfaceTexture();
+    Size result=strategy.choosePictureSize(camera, previewSize);
+
+    return(result==null ? Utils.getLargestPictureSize(camera) : result);
+  }
+
+  private Size choosePreviewSize(CameraDescriptor camera, CameraView cv) {
+    if (camera!=null && cv.getWidth()>0 && cv.getHeight()>0) {
+      Display display=((WindowManager)cv.getContext()
+          .getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+      Point displaySize=new Point();
 
-    if (previewSize!=null && texture!=null) {
       if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.JELLY_BEAN_MR1) {
-        texture.setDefaultBufferSize(cv.getWidth(), cv.getHeight());
+        display.getRealSize(displaySize);
+      }
+      else {
+        display.getSize(displaySize);
       }
 
-      session=engine
-          .buildSession(cv.getContext(), camera)
-          .addPlugin(new SizeAndFormatPlugin(previewSize,
-              Utils.getLargestPictureSize(camera),
-              ImageFormat.JPEG))
-          .addPlugin(new OrientationPlugin(cv.getContext()))
-          .build();
+      return(choosePreviewSize(camera, cv.getWidth(), cv.getHeight(),
+          display.getRotation(), displaySize.x, displaySize.y));
+    }
+
+    return(null);
+  }
+
+  /**
+   * Picks the preview size for a camera and view, remembering
+   * the result, as the same camera and view size come up on
+   * every open() and switchCamera().
+   *
+   * @param camera the camera to be previewed
+   * @param width the width of the view
+   * @param height the height of the view
+   * @param rotation the rotation of the display
+   * @param displayWidth the width of the display
+   * @param displayHeight the height of the display
+   * @return the chosen size, or null if there are no sizes
+   */
+  Size choosePreviewSize(CameraDescriptor camera, int width, int height,
+                         int rotation, int displayWidth,
+                         int displayHeight) {
+    PreviewSizeKey key=new PreviewSizeKey(camera, width, height, rotation,
+        displayWidth, displayHeight);
+    Size result=previewSizeCache.get(key);
+
+    if (result==null) {
+      result=choosePreviewSize(camera.getPreviewSizes(), width, height,
+          displayWidth, displayHeight);
 
-      engine.open(session, texture);
+      if (result!=null) {
+        previewSizeCache.put(key, result);
+      }
     }
+
+    return(result);
+  }
+
+  /**
+   * Picks the preview size that best fits the view, with no
+   * limit on its size.
+   *
+   * @param sizes the preview sizes offered by the camera
+   * @param width the width of the view
+   * @param height the height of the view
+   * @return the chosen size, or null if there are no sizes
+   */
+  static Size choosePreviewSize(List<Size> sizes, int width, int height) {
+    return(choosePreviewSize(sizes, width, height, Integer.MAX_VALUE,
+        Integer.MAX_VALUE));
+  }
+
+  /**
+   * Picks the preview size that best fits the view. Each size
+   * is scored by how far its aspect ratio is from the view's,
+   * plus how many more pixels it has than the view, or, more
+   * harshly, how far it has to be scaled up to fill the view.
+   * The lowest score wins. Sizes bigger than the display are
+   * only used if all of them are.
+   *
+   * Preview sizes are in the camera's orientation, which may
+   * not be the view's, so sides are compared longer to longer
+   * and shorter to shorter.
+   *
+   * @param sizes the preview sizes offered by the camera
+   * @param width the width of the view
+   * @param height the height of the view
+   * @param maxWidth the width of the display
+   * @param maxHeight the height of the display
+   * @return the chosen size, or null if there are no sizes
+   */
+  static Size choosePreviewSize(List<Size> sizes, int width, int height,
+                                int maxWidth, int maxHeight) {
+    int viewLong=Math.max(width, height);
+    int viewShort=Math.min(width, height);
+    int maxLong=Math.max(maxWidth, maxHeight);
+    int maxShort=Math.min(maxWidth, maxHeight);
+    double viewRatio=(double)viewLong/viewShort;
+    double viewArea=(double)viewLong*viewShort;
+    Size result=null;
+    double resultScore=0;
+    boolean resultFits=false;
+
+    for (Size size : sizes) {
+      int sizeLong=Math.max(size.getWidth(), size.getHeight());
+      int sizeShort=Math.min(size.getWidth(), size.getHeight());
+
+      if (sizeShort<=0) {
+        continue;
+      }
+
+      boolean fits=(sizeLong<=maxLong && sizeShort<=maxShort);
+      double score=ASPECT_RATIO_WEIGHT*
+          Math.abs(Math.log((double)sizeLong/sizeShort/viewRatio));
+      double upscale=Math.max((double)viewLong/sizeLong,
+          (double)viewShort/sizeShort);
+
+      if (upscale>1.0) {
+        score+=UPSCALE_WEIGHT*Math.log(upscale*upscale);
+      }
+      else {
+        score+=Math.log((double)sizeLong*sizeShort/viewArea);
+      }
+
+      if (result==null || (fits && !resultFits) ||
+          (fits==resultFits && score<resultScore)) {
+        result=size;
+        resultScore=score;
+        resultFits=fits;
+      }
+    }
+
+    return(result);
   }
 
   @SuppressWarnings("unused")
   public void onEventMainThread(CameraEngine.CameraDescriptorsEvent event) {
     if (event.descriptors.size()>0) {
       cameras=event.descriptors;
+      previewSizeCache.clear();
       EventBus.getDefault().post(new ControllerReadyEvent(this, cameras.size()));
     }
     else {
@@ -265,6 +682,22 @@ public class CameraController implements CameraView.StateCallback {
     }
   }
 
+  @SuppressWarnings("unused")
+  public void onEventMainThread(CameraEngine.OpenedEvent event) {
+    if (event.exception==null && session!=null) {
+      if (switchStartNanos>=0) {
+        lastSwitchMillis=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-switchStartNanos);
+        switchStartNanos=-1;
+        EventBus.getDefault().post(new CameraSwitchedEvent(this,
+            lastSwitchMillis, event.isWarm()));
+      }
+
+      if (switchMode!=SwitchMode.DEFAULT && cameras.size()>1) {
+        prepareNextSession();
+      }
+    }
+  }
+
   @SuppressWarnings("unused")
   public void onEventMainThread(CameraEngine.ClosedEvent event) {
     if (switchPending) {
@@ -309,6 +742,42 @@ public class CameraController implements CameraView.StateCallback {
     }
   }
 
+  /**
+   * Event raised when switchCamera() is complete, with the
+   * next camera's preview running.
+   */
+  public static class CameraSwitchedEvent {
+    private final CameraController ctlr;
+    private final long switchMillis;
+    private final boolean isWarm;
+
+    private CameraSwitchedEvent(CameraController ctlr, long switchMillis,
+                                boolean isWarm) {
+      this.ctlr=ctlr;
+      this.switchMillis=switchMillis;
+      this.isWarm=isWarm;
+    }
+
+    /**
+     * @return how long the switch took, in milliseconds
+     */
+    public long getSwitchMillis() {
+      return(switchMillis);
+    }
+
+    /**
+     * @return true if the next camera was already open, false
+     * if it had to be opened from scratch
+     */
+    public boolean isWarm() {
+      return(isWarm);
+    }
+
+    public boolean isEventForController(CameraController ctlr) {
+      return(this.ctlr==ctlr);
+    }
+  }
+
   /**
    * Event raised when the controller has its cameras
    * and is ready for use. Clients should then turn
@@ -326,4 +795,54 @@ public class CameraController implements CameraView.StateCallback {
       return(ctlr);
     }
   }
+
+  /**
+   * What the choice of preview size depends upon: the camera
+   * (by identity), the size of the view, and the rotation and
+   * size of the display.
+   */
+  private static class PreviewSizeKey {
+    private final CameraDescriptor camera;
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final int displayWidth;
+    private final int displayHeight;
+
+    PreviewSizeKey(CameraDescriptor camera, int width, int height,
+                   int rotation, int displayWidth, int displayHeight) {
+      this.camera=camera;
+      this.width=width;
+      this.height=height;
+      this.rotation=rotation;
+      this.displayWidth=displayWidth;
+      this.displayHeight=displayHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PreviewSizeKey)) {
+        return(false);
+      }
+
+      PreviewSizeKey other=(PreviewSizeKey)o;
+
+      return(camera==other.camera && width==other.width &&
+          height==other.height && rotation==other.rotation &&
+          displayWidth==other.displayWidth &&
+          displayHeight==other.displayHeight);
+    }
+
+    @Override
+    public int hashCode() {
+      int result=System.identityHashCode(camera);
+
+      result=31*result+width;
+      result=31*result+height;
+      result=31*result+rotation;
+      result=31*result+displayWidth;
+
+      return(31*result+displayHeight);
+    }
+  }
 }
@@ -16,13 +16,20 @@ package com.commonsware.cwac.cam2;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
+import com.commonsware.cwac.cam2.util.BufferPool;
+import com.commonsware.cwac.cam2.util.DurableFileWriter;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import de.greenrobot.event.EventBus;
 
 /**
@@ -31,14 +38,24 @@ import de.greenrobot.event.EventBus;
  * android.hardware.camera2.*).
  */
 abstract public class CameraEngine {
-  private static final int CORE_POOL_SIZE=1;
-  private static final int MAX_POOL_SIZE=Runtime.getRuntime().availableProcessors();
+  private static final int PROCESSING_POOL_SIZE=
+      Runtime.getRuntime().availableProcessors();
   private static final int KEEP_ALIVE_SECONDS=60;
+  private static final long DEFAULT_BUFFER_POOL_BYTES=16*1024*1024;
+  static final long PRE_OPEN_TIMEOUT_MILLIS=30000;
   private static volatile CameraEngine singleton=null;
   private EventBus bus=EventBus.getDefault();
   private boolean isDebug=false;
-  private LinkedBlockingQueue<Runnable> queue=new LinkedBlockingQueue<Runnable>();
+  private final CameraCommandQueue commands=new CameraCommandQueue();
   private ThreadPoolExecutor pool;
+  private int maxProcessingDepth=0;
+  private ImagePipeline pipeline=null;
+  private BufferPool bufferPool=new BufferPool(DEFAULT_BUFFER_POOL_BYTES);
+  private DurableFileWriter fileWriter=
+      new DurableFileWriter(DurableFileWriter.Policy.syncPerFile());
+  private WriteBehindQueue writeBehindQueue=null;
+  private final CaptureStatistics captureStatistics=new CaptureStatistics();
+  private long warmSessionTimeoutMillis=0;
 
   private static class CrashableEvent {
     /**
@@ -95,12 +112,40 @@ abstract public class CameraEngine {
    * an exception accessing the camera.
    */
   public static class OpenedEvent extends CrashableEvent {
+    private final boolean isWarm;
+    private final long openNanos;
+
     public OpenedEvent() {
+      this(false, -1);
+    }
+
+    public OpenedEvent(boolean isWarm, long openNanos) {
       super();
+      this.isWarm=isWarm;
+      this.openNanos=openNanos;
     }
 
     public OpenedEvent(Exception exception) {
       super(exception);
+      this.isWarm=false;
+      this.openNanos=-1;
+    }
+
+    /**
+     * @return true if the camera was still open from an earlier
+     * session (see setWarmSessionTimeout()), false if it had
+     * to be opened from scratch
+     */
+    public boolean isWarm() {
+      return(isWarm);
+    }
+
+    /**
+     * @return the time from the open() call until the preview
+     * was running, in milliseconds, or -1 if unknown
+     */
+    public long getOpenMillis() {
+      return(openNanos<0 ? -1 : TimeUnit.NANOSECONDS.toMillis(openNanos));
     }
   }
 
@@ -141,6 +186,173 @@ abstract public class CameraEngine {
     public ImageContext getImageContext() {
       return(imageContext);
     }
+
+    /**
+     * @return when each phase of taking the picture happened,
+     * or null if there is no picture
+     */
+    public CaptureTimings getTimings() {
+      return(imageContext==null ? null : imageContext.getTimings());
+    }
+  }
+
+  /**
+   * Event raised once every ImageProcessor in the
+   * PictureTransaction has finished, including those that
+   * persist the picture (e.g., JPEGWriter). This always
+   * follows the PictureTakenEvent for the same picture. If
+   * the engine is pipelined, the PictureTakenEvent is raised
+   * as soon as the in-memory processors are done, so wait for
+   * this event before relying upon the picture being written.
+   * May include an exception if a processor failed after the
+   * PictureTakenEvent was raised.
+   */
+  public static class PictureCompletedEvent extends CrashableEvent {
+    private ImageContext imageContext=null;
+
+    public PictureCompletedEvent(ImageContext imageContext) {
+      super();
+      this.imageContext=imageContext;
+    }
+
+    public PictureCompletedEvent(Exception exception) {
+      super(exception);
+    }
+
+    public ImageContext getImageContext() {
+      return(imageContext);
+    }
+
+    /**
+     * @return when each phase of taking the picture happened,
+     * or null if there is no picture
+     */
+    public CaptureTimings getTimings() {
+      return(imageContext==null ? null : imageContext.getTimings());
+    }
+  }
+
+  /**
+   * Event raised when JPEGWriter finishes writing a picture
+   * that went through the WriteBehindQueue. May include an
+   * exception if the write failed.
+   */
+  public static class PictureWrittenEvent extends CrashableEvent {
+    private Uri output=null;
+
+    public PictureWrittenEvent(Uri output) {
+      super();
+      this.output=output;
+    }
+
+    public PictureWrittenEvent(Exception exception) {
+      super(exception);
+    }
+
+    /**
+     * @return where the picture was written
+     */
+    public Uri getOutput() {
+      return(output);
+    }
+  }
+
+  /**
+   * Event raised once every frame of a burst, requested via
+   * takeBurst(), has been delivered by the camera, or has
+   * failed. Each delivered frame also gets its own
+   * PictureTakenEvent. May include an exception if the burst
+   * could not be taken, or if no frame was delivered.
+   */
+  public static class BurstCompletedEvent extends CrashableEvent {
+    private final int frameCount;
+    private final long latencyNanos;
+    private final long durationNanos;
+
+    public BurstCompletedEvent(int frameCount, long latencyNanos,
+                               long durationNanos) {
+      super();
+      this.frameCount=frameCount;
+      this.latencyNanos=latencyNanos;
+      this.durationNanos=durationNanos;
+    }
+
+    public BurstCompletedEvent(Exception exception) {
+      super(exception);
+      this.frameCount=0;
+      this.latencyNanos=0;
+      this.durationNanos=0;
+    }
+
+    /**
+     * @return the number of frames delivered, which is fewer
+     * than were requested if some failed
+     */
+    public int getFrameCount() {
+      return(frameCount);
+    }
+
+    /**
+     * @return the time from the takeBurst() call until the first
+     * frame was delivered, in milliseconds
+     */
+    public long getLatencyMillis() {
+      return(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+    }
+
+    /**
+     * @return the rate at which frames were delivered, from the
+     * first frame to the last, or 0 if there were fewer than two
+     * frames
+     */
+    public float getFramesPerSecond() {
+      if (frameCount<2 || durationNanos<=0) {
+        return(0f);
+      }
+
+      return((frameCount-1)*1000000000f/durationNanos);
+    }
+  }
+
+  /**
+   * Event raised when the WriteBehindQueue backs up past its
+   * high-water mark, and again when it drains back down.
+   * While throttled, consider not letting the user take more
+   * pictures.
+   */
+  public static class WriteBackpressureEvent {
+    private final boolean isThrottled;
+    private final int depth;
+    private final long bytesPending;
+
+    WriteBackpressureEvent(boolean isThrottled, int depth,
+                           long bytesPending) {
+      this.isThrottled=isThrottled;
+      this.depth=depth;
+      this.bytesPending=bytesPending;
+    }
+
+    /**
+     * @return true if the queue is backed up, false if it has
+     * drained back down
+     */
+    public boolean isThrottled() {
+      return(isThrottled);
+    }
+
+    /**
+     * @return the number of pictures waiting to be written
+     */
+    public int getDepth() {
+      return(depth);
+    }
+
+    /**
+     * @return the number of bytes waiting to be written
+     */
+    public long getBytesPending() {
+      return(bytesPending);
+    }
   }
 
   /**
@@ -200,6 +412,38 @@ abstract public class CameraEngine {
   abstract public void takePicture(CameraSession session,
                                    PictureTransaction xact);
 
+  /**
+   * Takes a burst of pictures, as fast as the camera can take
+   * them. Focus and exposure are settled once, at the outset,
+   * rather than for each picture. Each picture gets its own
+   * PictureTransaction, from the supplied factory, and its own
+   * PictureTakenEvent; a BurstCompletedEvent is raised once
+   * the camera has delivered every picture. Engines whose
+   * cameras have no burst mode take the pictures one at a time.
+   *
+   * @param session the session for the camera of interest
+   * @param count the number of pictures to take
+   * @param factory supplies the configuration of each picture
+   */
+  abstract public void takeBurst(CameraSession session, int count,
+                                 PictureTransaction.Factory factory);
+
+  /**
+   * Opens the supplied camera in the background, while
+   * another camera is in use, so that a later open() of this
+   * camera can skip opening it from scratch. This is only a
+   * hint: many devices cannot have two cameras open at once,
+   * and once the engine finds that out, it stops trying. A
+   * pre-opened camera that is not used is released after a
+   * timeout. No events are posted. By default, this does
+   * nothing.
+   *
+   * @param descriptor the camera to open
+   */
+  public void preOpen(CameraDescriptor descriptor) {
+    // by default, we do not pre-open cameras
+  }
+
   /**
    * Builds a CameraEngine instance based on the device's
    * API level.
@@ -213,7 +457,7 @@ abstract public class CameraEngine {
         singleton=new CameraTwoEngine(ctxt);
       }
       else {
-        singleton=new ClassicCameraEngine();
+        singleton=new ClassicCameraEngine(ctxt);
       }
     }
 
@@ -254,16 +498,529 @@ abstract public class CameraEngine {
     return(isDebug);
   }
 
-  public ThreadPoolExecutor getThreadPool() {
+  /**
+   * Sets whether or not the ImageProcessor chain of each
+   * PictureTransaction should be run as a staged pipeline. If
+   * true, processors run on executors matching their
+   * ImageProcessor.Stage, so the processing and writing of
+   * consecutive pictures can overlap, and the PictureTakenEvent
+   * is raised before Stage.IO processors finish. If false (the
+   * default), the chain runs serially on the thread that
+   * delivered the picture.
+   *
+   * @param isPipelined true to run processors as a staged
+   *                    pipeline, false otherwise
+   */
+  synchronized public void setPipelined(boolean isPipelined) {
+    if (isPipelined && pipeline==null) {
+      pipeline=new ImagePipeline(this);
+    }
+    else if (!isPipelined && pipeline!=null) {
+      pipeline.shutdown();
+      pipeline=null;
+    }
+  }
+
+  /**
+   * @return true if processors run as a staged pipeline,
+   * false otherwise
+   */
+  synchronized public boolean isPipelined() {
+    return(pipeline!=null);
+  }
+
+  /**
+   * Runs the ImageProcessor chain for a freshly-taken
+   * picture, then raises the PictureTakenEvent and
+   * PictureCompletedEvent. Engines call this from whatever
+   * thread delivers the picture.
+   *
+   * @param xact the transaction for the picture
+   * @param imageContext the picture itself
+   */
+  void processPicture(PictureTransaction xact,
+                      ImageContext imageContext) {
+    ImagePipeline current;
+
+    xact.setEngine(this);
+
+    if (xact.getTimings()==null) {
+      beginCapture(xact);
+    }
+
+    xact.getTimings().mark(CaptureTimings.Phase.IMAGE_AVAILABLE);
+    imageContext.setTimings(xact.getTimings());
+
+    synchronized(this) {
+      current=pipeline;
+    }
+
+    if (current==null) {
+      try {
+        xact.process(imageContext);
+      }
+      finally {
+        imageContext.onChainComplete();
+      }
+
+      getBus().post(new PictureTakenEvent(imageContext));
+      getBus().post(new PictureCompletedEvent(imageContext));
+    }
+    else {
+      current.process(xact, imageContext);
+    }
+  }
+
+  /**
+   * Requests that close() leave the camera open for a while,
+   * so that if open() is called for the same camera before
+   * the timeout, the camera does not need to be opened from
+   * scratch. Use this if the camera is closed and reopened
+   * frequently, such as by repeatedly launching CameraActivity.
+   * Note that while the camera is held open, other apps cannot
+   * use it.
+   *
+   * @param timeoutMillis how long to leave the camera open
+   *                      after close(), or 0 to close it
+   *                      immediately (the default)
+   */
+  synchronized public void setWarmSessionTimeout(long timeoutMillis) {
+    if (timeoutMillis<0) {
+      throw new IllegalArgumentException("timeoutMillis cannot be negative");
+    }
+
+    warmSessionTimeoutMillis=timeoutMillis;
+  }
+
+  /**
+   * @return how long close() leaves the camera open, in
+   * milliseconds, or 0 if it closes it immediately
+   */
+  synchronized public long getWarmSessionTimeout() {
+    return(warmSessionTimeoutMillis);
+  }
+
+  /**
+   * Starts the CaptureTimings for a picture, requested
+   * just now.
+   *
+   * @param xact the transaction for the picture
+   * @return the timings, also available from the transaction
+   */
+  CaptureTimings beginCapture(PictureTransaction xact) {
+    return(beginCapture(xact, System.nanoTime()));
+  }
+
+  /**
+   * Starts the CaptureTimings for a picture.
+   *
+   * @param xact the transaction for the picture
+   * @param requestedNanos when the picture was requested, in
+   *                       System.nanoTime() terms
+   * @return the timings, also available from the transaction
+   */
+  CaptureTimings beginCapture(PictureTransaction xact,
+                              long requestedNanos) {
+    CaptureTimings result=
+        new CaptureTimings(captureStatistics, requestedNanos);
+
+    xact.setEngine(this);
+    xact.setTimings(result);
+
+    return(result);
+  }
+
+  /**
+   * @return the aggregated CaptureTimings of the pictures
+   * taken by this engine
+   */
+  public CaptureStatistics getCaptureStatistics() {
+    return(captureStatistics);
+  }
+
+  /**
+   * @return the pool of recyclable buffers used to hold
+   * JPEG data for pictures taken by this engine. Its
+   * counters can help you decide on a buffer budget.
+   */
+  public BufferPool getBufferPool() {
+    return(bufferPool);
+  }
+
+  /**
+   * Replaces the pool of recyclable buffers used to hold JPEG
+   * data, such as to use a different byte budget.
+   *
+   * @param bufferPool the pool to use
+   */
+  public void setBufferPool(BufferPool bufferPool) {
+    this.bufferPool=bufferPool;
+  }
+
+  /**
+   * Sets how hard JPEGWriter should work to ensure that pictures
+   * are on the storage device before moving on. The default is
+   * DurableFileWriter.Policy.syncPerFile(), which is the most
+   * durable and the slowest. Under a group commit policy,
+   * pictures are at their paths as soon as they are written, but
+   * are only synced once their batch is committed. Any pictures
+   * awaiting a group commit under the previous policy are
+   * committed first.
+   *
+   * @param policy the durability policy to use
+   */
+  public void setDurabilityPolicy(DurableFileWriter.Policy policy) {
+    DurableFileWriter old;
+
+    synchronized(this) {
+      old=fileWriter;
+      fileWriter=new DurableFileWriter(policy);
+    }
+
+    try {
+      old.close();
+    }
+    catch (IOException e) {
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(), "Exception syncing pictures", e);
+      }
+    }
+  }
+
+  /**
+   * @return how hard JPEGWriter works to ensure that pictures
+   * are on the storage device
+   */
+  synchronized public DurableFileWriter.Policy getDurabilityPolicy() {
+    return(fileWriter.getPolicy());
+  }
+
+  synchronized DurableFileWriter getFileWriter() {
+    return(fileWriter);
+  }
+
+  /**
+   * Sets whether JPEGWriter should write pictures synchronously
+   * (the default) or hand them to a WriteBehindQueue and return
+   * right away. With write-behind, the PictureCompletedEvent
+   * no longer means that the picture has been written; subscribe
+   * to the PictureWrittenEvent for that.
+   *
+   * @param isWriteBehind true to use a WriteBehindQueue, false
+   *                      to write synchronously
+   */
+  synchronized public void setWriteBehind(boolean isWriteBehind) {
+    if (isWriteBehind && writeBehindQueue==null) {
+      writeBehindQueue=new WriteBehindQueue(this);
+    }
+    else if (!isWriteBehind && writeBehindQueue!=null) {
+      writeBehindQueue.shutdown();
+      writeBehindQueue=null;
+    }
+  }
+
+  /**
+   * @return the WriteBehindQueue used by JPEGWriter, or null
+   * if write-behind is not enabled
+   */
+  synchronized public WriteBehindQueue getWriteBehindQueue() {
+    return(writeBehindQueue);
+  }
+
+  /**
+   * Shuts down this engine, such as when the app is done with
+   * the camera. Pictures in the WriteBehindQueue are still
+   * written, and pictures awaiting a group commit are still
+   * synced, on background threads. Close any open session first.
+   * Opens and captures requested after this fail, via their
+   * usual events. A later call to buildInstance() will create a
+   * fresh engine.
+   */
+  public void shutdown() {
+    synchronized(CameraEngine.class) {
+      if (singleton==this) {
+        singleton=null;
+      }
+    }
+
+    final DurableFileWriter writer;
+    final ImagePipeline pipelineToDrain;
+    final WriteBehindQueue queueToDrain;
+
+    synchronized(this) {
+      writer=fileWriter;
+      pipelineToDrain=pipeline;
+      queueToDrain=writeBehindQueue;
+      pipeline=null;
+      writeBehindQueue=null;
+
+      if (pool!=null) {
+        pool.shutdown();
+      }
+    }
+
+    commands.shutdown();
+
+    final Runnable flush=new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writer.close();
+        }
+        catch (IOException e) {
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(), "Exception syncing pictures", e);
+          }
+        }
+      }
+    };
+
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        if (pipelineToDrain!=null) {
+          pipelineToDrain.shutdownAndWait();
+        }
+
+        if (queueToDrain==null) {
+          flush.run();
+        }
+        else {
+          queueToDrain.shutdown(flush);
+        }
+      }
+    }, "CWAC-Cam2 shutdown").start();
+  }
+
+  /**
+   * @return the queue of commands (open, close, take picture,
+   * etc.) sent to the camera, whose counters show whether
+   * commands are backing up
+   */
+  public CameraCommandQueue getCommandQueue() {
+    return(commands);
+  }
+
+  /**
+   * Queues up a command for the camera, to run after those
+   * issued before it, on the command thread.
+   *
+   * @param kind what the command does
+   * @param key what the command works on, for coalescing
+   * @param command the work to do
+   */
+  void executeCommand(CameraCommandQueue.Kind kind, Object key,
+                      Runnable command) {
+    try {
+      commands.execute(kind, key, command);
+    }
+    catch (RejectedExecutionException e) {
+      onCommandRejected(kind, e);
+    }
+  }
+
+  /**
+   * Queues up a command for the camera, unless one of the same
+   * kind for the same key is already waiting to run.
+   *
+   * @param kind what the command does
+   * @param key what the command works on, for coalescing
+   * @param command the work to do
+   */
+  void executeCommandUnlessPending(CameraCommandQueue.Kind kind, Object key,
+                                   Runnable command) {
+    try {
+      commands.executeUnlessPending(kind, key, command);
+    }
+    catch (RejectedExecutionException e) {
+      onCommandRejected(kind, e);
+    }
+  }
+
+  /**
+   * Called when a command is issued after shutdown(). Opens and
+   * captures are failed via their usual events, so callers
+   * waiting on those events hear back; anything else is
+   * dropped.
+   */
+  private void onCommandRejected(CameraCommandQueue.Kind kind,
+                                 RejectedExecutionException e) {
+    if (kind==CameraCommandQueue.Kind.OPEN) {
+      getBus().post(new OpenedEvent(e));
+    }
+    else if (kind==CameraCommandQueue.Kind.CAPTURE) {
+      getBus().post(new PictureTakenEvent(e));
+    }
+    else if (isDebug()) {
+      Log.d(getClass().getSimpleName(),
+          "Ignoring "+kind+" command after shutdown", e);
+    }
+  }
+
+  /**
+   * Returns the thread pool used for work on pictures once the
+   * camera has delivered them, such as running the
+   * ImageProcessor chain when the engine is not pipelined.
+   * Threads are started as work arrives, up to one per CPU
+   * core, and stop after a minute of idleness. Commands to the
+   * camera itself run on the CameraCommandQueue instead.
+   *
+   * @return the thread pool for processing pictures
+   */
+  synchronized public ThreadPoolExecutor getThreadPool() {
     if (pool==null) {
-      pool=new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE,
-          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue);
+      pool=new ThreadPoolExecutor(PROCESSING_POOL_SIZE,
+          PROCESSING_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count=new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread result=new Thread(r,
+                  "CWAC-Cam2 processing #"+count.incrementAndGet());
+
+              result.setDaemon(true);
+
+              return(result);
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
     }
 
     return(pool);
   }
 
-  public void setThreadPool(ThreadPoolExecutor pool) {
+  /**
+   * Replaces the thread pool used for processing pictures.
+   *
+   * @param pool the thread pool to use
+   */
+  synchronized public void setThreadPool(ThreadPoolExecutor pool) {
     this.pool=pool;
   }
+
+  /**
+   * Runs work on a picture on the processing thread pool.
+   *
+   * @param work the work to do
+   */
+  void executeProcessing(Runnable work) {
+    ThreadPoolExecutor processing=getThreadPool();
+
+    processing.execute(work);
+
+    synchronized(this) {
+      maxProcessingDepth=
+          Math.max(maxProcessingDepth, getProcessingDepth(processing));
+    }
+  }
+
+  /**
+   * @return the number of pieces of work on pictures that are
+   * waiting for, or running on, the processing thread pool
+   */
+  public int getProcessingDepth() {
+    return(getProcessingDepth(getThreadPool()));
+  }
+
+  /**
+   * @return the most pieces of work on pictures that have been
+   * waiting for, or running on, the processing thread pool at
+   * once
+   */
+  synchronized public int getMaxProcessingDepth() {
+    return(maxProcessingDepth);
+  }
+
+  private static int getProcessingDepth(ThreadPoolExecutor processing) {
+    return(processing.getQueue().size()+processing.getActiveCount());
+  }
+
+  /**
+   * Progress of a takeBurst() request, shared by the engine
+   * implementations. A burst is complete once every frame has
+   * either been delivered or failed.
+   */
+  static class Burst {
+    private final int count;
+    private final PictureTransaction.Factory factory;
+    private final long startNanos=System.nanoTime();
+    private long firstFrameNanos=0;
+    private long lastFrameNanos=0;
+    private int delivered=0;
+    private int failed=0;
+    private boolean isCompletedEventTaken=false;
+
+    Burst(int count, PictureTransaction.Factory factory) {
+      if (count<1) {
+        throw new IllegalArgumentException("count must be at least 1");
+      }
+
+      this.count=count;
+      this.factory=factory;
+    }
+
+    int getCount() {
+      return(count);
+    }
+
+    long getStartNanos() {
+      return(startNanos);
+    }
+
+    /**
+     * Records the arrival of the next frame.
+     *
+     * @return the PictureTransaction for that frame
+     */
+    synchronized PictureTransaction onFrame() {
+      lastFrameNanos=System.nanoTime();
+
+      if (delivered==0) {
+        firstFrameNanos=lastFrameNanos;
+      }
+
+      return(factory.buildTransaction(delivered++));
+    }
+
+    /**
+     * Records a frame that the camera failed to deliver.
+     */
+    synchronized void onFailure() {
+      failed++;
+    }
+
+    /**
+     * Gives up on the frames that have not arrived yet, such as
+     * when the session was closed mid-burst.
+     */
+    synchronized void abandon() {
+      failed=count-delivered;
+    }
+
+    synchronized boolean isComplete() {
+      return(delivered+failed>=count);
+    }
+
+    /**
+     * @return the BurstCompletedEvent to post, or null if the
+     * burst is not complete yet, or if the event was already
+     * handed out
+     */
+    synchronized BurstCompletedEvent takeCompletedEvent() {
+      if (!isComplete() || isCompletedEventTaken) {
+        return(null);
+      }
+
+      isCompletedEventTaken=true;
+
+      if (delivered==0) {
+        return(new BurstCompletedEvent(
+            new IllegalStateException("No frames of the burst were delivered")));
+      }
+
+      return(new BurstCompletedEvent(delivered,
+          firstFrameNanos-startNanos, lastFrameNanos-firstFrameNanos));
+    }
+  }
 }
@@ -39,16 +39,49 @@ import de.greenrobot.event.EventBus;
  */
 public class CameraFragment extends Fragment {
   private static final String ARG_OUTPUT="output";
+  private static final String ARG_CONFIRM="confirm";
+  private static final String ARG_STAMP_EXIF="stampExif";
   private CameraController ctlr;
   private ViewGroup previewStack;
   private FloatingActionButton fabSwitch;
   private View progress;
 
   public static CameraFragment newInstance(Uri output) {
+    return(newInstance(output, true));
+  }
+
+  /**
+   * Creates a CameraFragment.
+   *
+   * @param output where to write the picture, or null to
+   *               return a thumbnail
+   * @param confirm true if the picture will be shown to the
+   *                user for confirmation, false otherwise
+   * @return the CameraFragment
+   */
+  public static CameraFragment newInstance(Uri output, boolean confirm) {
+    return(newInstance(output, confirm, false));
+  }
+
+  /**
+   * Creates a CameraFragment.
+   *
+   * @param output where to write the picture, or null to
+   *               return a thumbnail
+   * @param confirm true if the picture will be shown to the
+   *                user for confirmation, false otherwise
+   * @param stampExif true to stamp the time and orientation
+   *                  of the picture into its EXIF data
+   * @return the CameraFragment
+   */
+  public static CameraFragment newInstance(Uri output, boolean confirm,
+                                           boolean stampExif) {
     CameraFragment f=new CameraFragment();
     Bundle args=new Bundle();
 
     args.putParcelable(ARG_OUTPUT, output);
+    args.putBoolean(ARG_CONFIRM, confirm);
+    args.putBoolean(ARG_STAMP_EXIF, stampExif);
     f.setArguments(args);
 
     return(f);
@@ -156,6 +189,13 @@ public class CameraFragment extends Fragment {
 
         PictureTransaction.Builder b=new PictureTransaction.Builder();
 
+        if (getArguments().getBoolean(ARG_STAMP_EXIF, false)) {
+          b.append(new ExifProcessor(getActivity()));
+        }
+
+        b.append(new ThumbnailProcessor(getActivity(),
+            getArguments().getBoolean(ARG_CONFIRM, true), output==null));
+
         if (output!=null) {
           b.toUri(getActivity(), output);
         }
@@ -68,6 +68,25 @@ public class CameraSession {
     return(plugins);
   }
 
+  /**
+   * Finds a plugin of a particular type in this session, such
+   * as for an engine that needs to consult a plugin's settings.
+   *
+   * @param type the class of plugin to find
+   * @param <T> the class of plugin to find
+   * @return the first plugin that is an instance of that type,
+   * or null if there is none
+   */
+  public <T extends CameraPlugin> T getPlugin(Class<T> type) {
+    for (CameraPlugin plugin : getPlugins()) {
+      if (type.isInstance(plugin)) {
+        return(type.cast(plugin));
+      }
+    }
+
+    return(null);
+  }
+
   public void destroy() {
     for (CameraPlugin plugin : getPlugins()) {
       plugin.destroy();
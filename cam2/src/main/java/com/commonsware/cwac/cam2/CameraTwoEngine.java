@@ -37,17 +37,27 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
+import com.commonsware.cwac.cam2.plugin.FrameAnalyzerPlugin;
+import com.commonsware.cwac.cam2.plugin.ZeroShutterLagPlugin;
+import com.commonsware.cwac.cam2.util.BufferPool;
 import com.commonsware.cwac.cam2.util.Size;
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import de.greenrobot.event.EventBus;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -55,6 +65,14 @@ import de.greenrobot.event.EventBus;
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class CameraTwoEngine extends CameraEngine {
+  private static final String CACHE_NAME="cwac-cam2-two.descriptors";
+  private static final PreviewFrame.Recycler CLOSE_IMAGE=
+      new PreviewFrame.Recycler() {
+        @Override
+        public void recycle(PreviewFrame frame) {
+          frame.getImage().close();
+        }
+      };
   private CameraManager mgr;
   final private HandlerThread handlerThread=new HandlerThread(getClass().getSimpleName(),
       android.os.Process.THREAD_PRIORITY_BACKGROUND);
@@ -62,10 +80,25 @@ public class CameraTwoEngine extends CameraEngine {
   final private Semaphore lock=new Semaphore(1);
   private CountDownLatch closeLatch=null;
   private MediaActionSound shutter=new MediaActionSound();
+  private final DescriptorCache cache;
+  private final WarmSlots<CameraDevice> warmDevices=
+      new WarmSlots<CameraDevice>(1, new WarmSlots.Releaser<CameraDevice>() {
+        @Override
+        public void release(CameraDevice camera) {
+          camera.close();
+        }
+      });
+  private volatile boolean isPreOpenSupported=true;
+  private final Object descriptorLock=new Object();
   private List<CameraDescriptor> descriptors=null;
+  private Future<?> descriptorLoad=null;
+  private final ArrayList<CameraSelectionCriteria> pendingCriteria=
+      new ArrayList<CameraSelectionCriteria>();
 
   /**
-   * Standard constructor
+   * Standard constructor. Starts loading the camera
+   * descriptors right away, so they are likely to be ready
+   * by the time loadCameraDescriptors() is called.
    *
    * @param ctxt any Context will do
    */
@@ -73,9 +106,14 @@ public class CameraTwoEngine extends CameraEngine {
     mgr=(CameraManager)ctxt.
         getApplicationContext().
         getSystemService(Context.CAMERA_SERVICE);
+    cache=new DescriptorCache(ctxt, CACHE_NAME);
     handlerThread.start();
     handler=new Handler(handlerThread.getLooper());
     shutter.load(MediaActionSound.SHUTTER_CLICK);
+
+    synchronized(descriptorLock) {
+      startLoadingDescriptors();
+    }
   }
 
   /**
@@ -88,63 +126,238 @@ public class CameraTwoEngine extends CameraEngine {
 
   /**
    * {@inheritDoc}
+   *
+   * Descriptors start loading when the engine is created, so
+   * usually this only needs to rank them. If they are still
+   * loading, the CameraDescriptorsEvent is raised once they
+   * are ready.
    */
   @Override
   public void loadCameraDescriptors(final CameraSelectionCriteria criteria) {
-    getThreadPool().execute(new Runnable() {
+    List<CameraDescriptor> loaded;
+
+    synchronized(descriptorLock) {
+      loaded=descriptors;
+
+      if (loaded == null) {
+        pendingCriteria.add(criteria);
+
+        if (descriptorLoad==null) {
+          startLoadingDescriptors();
+        }
+
+        return;
+      }
+    }
+
+    postDescriptors(loaded, criteria);
+  }
+
+  private void postDescriptors(final List<CameraDescriptor> loaded,
+                               final CameraSelectionCriteria criteria) {
+    executeCommand(CameraCommandQueue.Kind.OTHER, null, new Runnable() {
       @Override
       public void run() {
-        if (descriptors == null) {
-          List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
+        List<CameraDescriptor> result=new ArrayList<CameraDescriptor>(loaded);
 
-          try {
-            for (String cameraId : mgr.getCameraIdList()) {
-              CameraCharacteristics cc=mgr.getCameraCharacteristics(cameraId);
-              Descriptor camera=new Descriptor(cameraId, cc);
+        Collections.sort(result, new ScoreComparator(criteria));
 
-              result.add(camera);
+        getBus().post(new CameraEngine.CameraDescriptorsEvent(result));
+      }
+    });
+  }
 
-              StreamConfigurationMap map=cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-              android.util.Size[] rawSizes=map.getOutputSizes(SurfaceTexture.class);
-              ArrayList<Size> sizes=new ArrayList<Size>();
+  /**
+   * Loads the descriptors on the processing thread pool, rather
+   * than on the CameraCommandQueue, whose thread is needed for
+   * opening the camera. Called with descriptorLock held.
+   */
+  private void startLoadingDescriptors() {
+    try {
+      descriptorLoad=getThreadPool().submit(new Runnable() {
+        @Override
+        public void run() {
+          finishLoadingDescriptors();
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      // the engine was shut down
 
-              for (android.util.Size size : rawSizes) {
-                sizes.add(new Size(size.getWidth(), size.getHeight()));
-              }
+      descriptorLoad=null;
 
-              camera.setPreviewSizes(sizes);
-              camera.setPictureSizes(Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)));
-              camera.setFacingFront(cc.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT);
-            }
+      for (CameraSelectionCriteria criteria : pendingCriteria) {
+        getBus().post(new CameraEngine.CameraDescriptorsEvent(e));
+      }
 
-            descriptors=result;
-          }
-          catch (CameraAccessException e) {
-            getBus().post(new CameraEngine.CameraDescriptorsEvent(e));
+      pendingCriteria.clear();
+    }
+  }
 
-            if (isDebug()) {
-              Log.e(getClass().getSimpleName(), "Exception accessing camera", e);
-            }
+  private void finishLoadingDescriptors() {
+    List<CameraDescriptor> loaded=null;
+    Exception failure=null;
+
+    try {
+      loaded=loadDescriptors();
+    }
+    catch (Exception e) {
+      failure=e;
+
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(), "Exception accessing camera", e);
+      }
+    }
+
+    List<CameraSelectionCriteria> waiting;
+
+    synchronized(descriptorLock) {
+      descriptors=loaded;
+      descriptorLoad=null;
+      waiting=new ArrayList<CameraSelectionCriteria>(pendingCriteria);
+      pendingCriteria.clear();
+    }
+
+    for (CameraSelectionCriteria criteria : waiting) {
+      if (loaded == null) {
+        getBus().post(new CameraEngine.CameraDescriptorsEvent(failure));
+      }
+      else {
+        postDescriptors(loaded, criteria);
+      }
+    }
+  }
+
+  private List<CameraDescriptor> loadDescriptors() throws Exception {
+    List<DescriptorCache.Entry> cached=cache.load();
+
+    if (cached != null) {
+      cache.revalidate(cached, new DescriptorCache.Loader() {
+        @Override
+        public List<DescriptorCache.Entry> loadFresh(List<DescriptorCache.Entry> cached)
+            throws Exception {
+          return(queryCameras());
+        }
+
+        @Override
+        public void onStale(List<DescriptorCache.Entry> fresh) {
+          synchronized(descriptorLock) {
+            descriptors=(fresh == null ? null : fromCache(fresh));
           }
         }
+      });
 
-        List<CameraDescriptor> result=new ArrayList<CameraDescriptor>(descriptors);
+      return(fromCache(cached));
+    }
 
-        Collections.sort(result, new Comparator<CameraDescriptor>() {
-          @Override
-          public int compare(CameraDescriptor descriptor, CameraDescriptor t1) {
-            Descriptor lhs=(Descriptor)descriptor;
-            Descriptor rhs=(Descriptor)t1;
+    List<DescriptorCache.Entry> entries=queryCameras();
 
-            // descending, so invert normal side-ness
+    try {
+      cache.save(entries);
+    }
+    catch (IOException e) {
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(), "Exception caching descriptors", e);
+      }
+    }
 
-            return(Integer.compare(rhs.getScore(criteria), lhs.getScore(criteria)));
-          }
-        });
+    return(fromCache(entries));
+  }
 
-        getBus().post(new CameraEngine.CameraDescriptorsEvent(result));
+  /**
+   * Queries the characteristics of each camera, in parallel on
+   * the processing thread pool, returning the results in camera
+   * ID order. Since this itself runs on that pool, any query
+   * that no pool thread has picked up yet is run here, rather
+   * than waited for, so a small pool cannot deadlock.
+   */
+  private List<DescriptorCache.Entry> queryCameras() throws Exception {
+    String[] ids=mgr.getCameraIdList();
+
+    if (ids.length < 2) {
+      List<DescriptorCache.Entry> result=new ArrayList<DescriptorCache.Entry>();
+
+      for (String cameraId : ids) {
+        result.add(queryCamera(cameraId));
       }
-    });
+
+      return(result);
+    }
+
+    List<FutureTask<DescriptorCache.Entry>> queries=
+        new ArrayList<FutureTask<DescriptorCache.Entry>>(ids.length);
+    ThreadPoolExecutor pool=getThreadPool();
+
+    for (final String cameraId : ids) {
+      FutureTask<DescriptorCache.Entry> query=
+          new FutureTask<DescriptorCache.Entry>(new Callable<DescriptorCache.Entry>() {
+            @Override
+            public DescriptorCache.Entry call() throws CameraAccessException {
+              return(queryCamera(cameraId));
+            }
+          });
+
+      queries.add(query);
+
+      try {
+        pool.execute(query);
+      }
+      catch (RejectedExecutionException e) {
+        // the engine was shut down, so run it below
+      }
+    }
+
+    List<DescriptorCache.Entry> result=new ArrayList<DescriptorCache.Entry>();
+
+    for (FutureTask<DescriptorCache.Entry> query : queries) {
+      query.run(); // no-op if a pool thread got to it first
+
+      try {
+        result.add(query.get());
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception)e.getCause();
+        }
+
+        throw e;
+      }
+    }
+
+    return(result);
+  }
+
+  private DescriptorCache.Entry queryCamera(String cameraId)
+      throws CameraAccessException {
+    CameraCharacteristics cc=mgr.getCameraCharacteristics(cameraId);
+    StreamConfigurationMap map=cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    Integer facing=cc.get(CameraCharacteristics.LENS_FACING);
+
+    return(new DescriptorCache.Entry(cameraId,
+        facing == null ? -1 : facing,
+        toSizes(map.getOutputSizes(SurfaceTexture.class)),
+        toSizes(map.getOutputSizes(ImageFormat.JPEG)),
+        map.getOutputFormats()));
+  }
+
+  private static ArrayList<Size> toSizes(android.util.Size[] rawSizes) {
+    ArrayList<Size> sizes=new ArrayList<Size>(rawSizes.length);
+
+    for (android.util.Size size : rawSizes) {
+      sizes.add(new Size(size.getWidth(), size.getHeight()));
+    }
+
+    return(sizes);
+  }
+
+  private static List<CameraDescriptor> fromCache(List<DescriptorCache.Entry> entries) {
+    List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
+
+    for (DescriptorCache.Entry entry : entries) {
+      result.add(new Descriptor(entry));
+    }
+
+    return(result);
   }
 
   /**
@@ -153,7 +366,11 @@ public class CameraTwoEngine extends CameraEngine {
   @Override
   public void open(final CameraSession session,
                    final SurfaceTexture texture) {
-    getThreadPool().execute(new Runnable() {
+    final Session s=(Session)session;
+
+    s.openStartNanos=System.nanoTime();
+
+    executeCommand(CameraCommandQueue.Kind.OPEN, session, new Runnable() {
       @Override
       public void run() {
         Descriptor camera=(Descriptor)session.getDescriptor();
@@ -163,9 +380,30 @@ public class CameraTwoEngine extends CameraEngine {
             throw new RuntimeException("Time out waiting to lock camera opening.");
           }
 
-          mgr.openCamera(camera.getId(),
-              new InitPreviewTransaction(session, new Surface(texture)),
-              handler);
+          final CameraDevice warm=warmDevices.take(camera.getId());
+          final InitPreviewTransaction init=
+              new InitPreviewTransaction(session, new Surface(texture));
+
+          s.isWarmOpen=(warm != null);
+
+          if (warm == null) {
+            // many devices cannot have two cameras open at once
+
+            warmDevices.releaseAll();
+            mgr.openCamera(camera.getId(), init, handler);
+          }
+          else {
+            // the capture session has to be rebuilt for the new
+            // surface, as API Level 21 cannot swap the outputs
+            // of an existing session
+
+            handler.post(new Runnable() {
+              @Override
+              public void run() {
+                init.onOpened(warm);
+              }
+            });
+          }
         }
         catch (Exception e) {
           getBus().post(new OpenedEvent(e));
@@ -178,6 +416,56 @@ public class CameraTwoEngine extends CameraEngine {
     });
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void preOpen(final CameraDescriptor descriptor) {
+    if (!isPreOpenSupported) {
+      return;
+    }
+
+    Runnable command=new Runnable() {
+      @Override
+      public void run() {
+        Descriptor camera=(Descriptor)descriptor;
+
+        if (camera.getDevice()!=null || warmDevices.isParked(camera.getId())) {
+          return;
+        }
+
+        boolean isLocked=false;
+
+        try {
+          if (!lock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+
+          isLocked=true;
+          warmDevices.setMaxSlots(2);
+          mgr.openCamera(camera.getId(), new PreOpenTransaction(), handler);
+        }
+        catch (Exception e) {
+          if (isLocked) {
+            lock.release();
+          }
+
+          isPreOpenSupported=false;
+
+          if (isDebug()) {
+            Log.d(getClass().getSimpleName(),
+                "Cannot pre-open camera, disabling pre-open", e);
+          }
+        }
+      }
+    };
+
+    // a pre-open already waiting to run would do the same thing
+
+    executeCommandUnlessPending(CameraCommandQueue.Kind.PRE_OPEN, descriptor,
+        command);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -185,36 +473,88 @@ public class CameraTwoEngine extends CameraEngine {
   public void close(final CameraSession session) {
     final Session s=(Session)session;
 
-    try {
-      lock.acquire();
+    // if the open has not started yet, skip it, leaving
+    // nothing for the close to do but raise the ClosedEvent
 
-      if (s.captureSession != null) {
-        closeLatch=new CountDownLatch(1);
-        s.captureSession.close();
-        closeLatch.await(2, TimeUnit.SECONDS);
-        s.captureSession=null;
-      }
+    getCommandQueue().cancel(CameraCommandQueue.Kind.OPEN, session);
+    executeCommand(CameraCommandQueue.Kind.CLOSE, session, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          lock.acquire();
 
-      if (s.cameraDevice != null) {
-        s.cameraDevice.close();
-        s.cameraDevice=null;
-      }
+          // frames of a burst still in progress will not arrive
+          // once the session is closed
 
-      if (s.reader != null) {
-        s.reader.close();
-      }
+          if (s.burst!=null) {
+            s.burst.abandon();
+            postBurstCompleted(s.burst);
+            s.burst=null;
+          }
 
-      Descriptor camera=(Descriptor)session.getDescriptor();
+          if (s.captureSession != null) {
+            closeLatch=new CountDownLatch(1);
+            s.captureSession.close();
+            closeLatch.await(2, TimeUnit.SECONDS);
+            s.captureSession=null;
+          }
 
-      camera.setDevice(null);
-      getBus().post(new ClosedEvent());
-    }
-    catch (Exception e) {
-      getBus().post(new ClosedEvent(e));
-    }
-    finally {
-      lock.release();
-    }
+          if (s.cameraDevice != null) {
+            long timeout=getWarmSessionTimeout();
+
+            if (timeout > 0) {
+              warmDevices.park(s.cameraDevice.getId(), s.cameraDevice, timeout);
+            }
+            else {
+              s.cameraDevice.close();
+            }
+
+            s.cameraDevice=null;
+          }
+
+          if (s.zsl != null) {
+            s.zsl.clear();
+            s.zsl=null;
+          }
+
+          if (s.frames != null) {
+            s.frames.shutdown();
+            s.frames=null;
+          }
+
+          if (s.analysisReader != null) {
+            s.analysisReader.close();
+            s.analysisReader=null;
+          }
+
+          if (s.reader != null) {
+            s.reader.close();
+          }
+
+          Descriptor camera=(Descriptor)session.getDescriptor();
+
+          camera.setDevice(null);
+          getBus().post(new ClosedEvent());
+        }
+        catch (Exception e) {
+          getBus().post(new ClosedEvent(e));
+        }
+        finally {
+          lock.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    warmDevices.releaseAll();
+    shutter.release();
+    handlerThread.quitSafely();
   }
 
   /**
@@ -223,11 +563,98 @@ public class CameraTwoEngine extends CameraEngine {
   public void takePicture(CameraSession session,
                           PictureTransaction xact) {
     final Session s=(Session)session;
+    CaptureTimings timings=beginCapture(xact);
+
+    if (s.zsl!=null) {
+      takeZeroShutterLagPicture(s, xact);
 
-    s.reader.setOnImageAvailableListener(new TakePictureTransaction(session.getContext(), getBus(), xact),
+      return;
+    }
+
+    s.reader.setOnImageAvailableListener(new TakePictureTransaction(session.getContext(), xact),
         handler);
+    lockAndCapture(s, null, timings);
+  }
 
-    getThreadPool().execute(new Runnable() {
+  private void takeZeroShutterLagPicture(final Session s,
+                                         final PictureTransaction xact) {
+    final long requestNanos=xact.getTimings().getRequestedNanos();
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        final Image image=s.zsl.take(requestNanos);
+
+        if (image==null) {
+          getBus().post(new PictureTakenEvent(
+              new IllegalStateException("No ZSL frames available yet")));
+
+          return;
+        }
+
+        shutter.play(MediaActionSound.SHUTTER_CLICK);
+        xact.getTimings().mark(CaptureTimings.Phase.SHUTTER);
+
+        executeProcessing(new Runnable() {
+          @Override
+          public void run() {
+            deliver(s.getContext(), xact, image, xact.isZeroCopy());
+          }
+        });
+
+        try {
+          // refresh orientation and the like for later frames
+
+          addToZeroShutterLagRequest(s);
+          s.previewRequest=s.previewRequestBuilder.build();
+          s.captureSession.setRepeatingRequest(s.previewRequest, s.zsl,
+              handler);
+        }
+        catch (Exception e) {
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(), "Exception updating ZSL request", e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The ImageReader cannot be resized without reconfiguring
+   * the capture session, so to use zero-copy PictureTransactions
+   * in a burst, use a SizeAndFormatPlugin whose maxImages is at
+   * least the size of the burst. Otherwise, pictures are copied
+   * as they arrive. Either way, the pictures are processed on
+   * the processing thread pool, so processing does not hold up
+   * delivery of the rest of the burst.
+   */
+  @Override
+  public void takeBurst(CameraSession session, int count,
+                        PictureTransaction.Factory factory) {
+    final Session s=(Session)session;
+
+    if (s.zsl!=null) {
+      getBus().post(new BurstCompletedEvent(
+          new IllegalStateException("Bursts are not supported with ZSL")));
+
+      return;
+    }
+
+    Burst burst=new Burst(count, factory);
+
+    s.burst=burst;
+    s.reader.setOnImageAvailableListener(
+        new TakeBurstTransaction(session.getContext(), burst,
+            s.reader.getMaxImages()),
+        handler);
+    lockAndCapture(s, burst, null);
+  }
+
+  private void lockAndCapture(final Session s, final Burst burst,
+                              final CaptureTimings timings) {
+    executeCommand(CameraCommandQueue.Kind.CAPTURE, s, new Runnable() {
       @Override
       public void run() {
         try {
@@ -235,11 +662,12 @@ public class CameraTwoEngine extends CameraEngine {
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
               CameraMetadata.CONTROL_AF_TRIGGER_START);
           s.captureSession.setRepeatingRequest(s.previewRequestBuilder.build(),
-              new RequestCaptureTransaction(s),
+              new RequestCaptureTransaction(s, burst, timings),
               handler);
+          mark(timings, CaptureTimings.Phase.AF_TRIGGERED);
         }
         catch (Exception e) {
-          getBus().post(new PictureTakenEvent(e));
+          postCaptureFailure(burst, e);
 
           if (isDebug()) {
             Log.e(getClass().getSimpleName(), "Exception taking picture", e);
@@ -249,9 +677,33 @@ public class CameraTwoEngine extends CameraEngine {
     });
   }
 
+  private static void mark(CaptureTimings timings,
+                           CaptureTimings.Phase phase) {
+    if (timings!=null) {
+      timings.mark(phase);
+    }
+  }
+
+  private void postCaptureFailure(Burst burst, Exception e) {
+    if (burst==null) {
+      getBus().post(new PictureTakenEvent(e));
+    }
+    else {
+      burst.abandon();
+
+      // claim the burst's one completion event, so a later close
+      // does not post another
+
+      if (burst.takeCompletedEvent()!=null) {
+        getBus().post(new BurstCompletedEvent(e));
+      }
+    }
+  }
+
   private class InitPreviewTransaction extends CameraDevice.StateCallback {
     private final Session s;
     private final Surface surface;
+    private boolean isOpened=false;
 
     InitPreviewTransaction(CameraSession session, Surface surface) {
       this.s=(Session)session;
@@ -260,17 +712,29 @@ public class CameraTwoEngine extends CameraEngine {
 
     @Override
     public void onOpened(CameraDevice cameraDevice) {
+      isOpened=true;
       lock.release();
       s.cameraDevice=cameraDevice;
       s.reader=s.buildImageReader();
+      setUpZeroShutterLag(s);
 
       Descriptor camera=(Descriptor)s.getDescriptor();
 
       camera.setDevice(cameraDevice);
 
       try {
-        cameraDevice.createCaptureSession(
-            Arrays.asList(surface, s.reader.getSurface()),
+        setUpFrameAnalysis(s);
+
+        ArrayList<Surface> outputs=new ArrayList<Surface>();
+
+        outputs.add(surface);
+        outputs.add(s.reader.getSurface());
+
+        if (s.analysisReader!=null) {
+          outputs.add(s.analysisReader.getSurface());
+        }
+
+        cameraDevice.createCaptureSession(outputs,
             new StartPreviewTransaction(s, surface), handler);
       }
       catch (CameraAccessException e) {
@@ -280,17 +744,31 @@ public class CameraTwoEngine extends CameraEngine {
 
     @Override
     public void onDisconnected(CameraDevice cameraDevice) {
-      lock.release();
+      releaseIfNotOpened();
+      warmDevices.forget(cameraDevice);
       cameraDevice.close();
     }
 
     @Override
     public void onError(CameraDevice cameraDevice, int i) {
-      lock.release();
+      releaseIfNotOpened();
+      warmDevices.forget(cameraDevice);
       cameraDevice.close();
       // TODO: raise event
     }
 
+    /**
+     * The lock guards opening the camera, so it is released
+     * by onOpened(); later failures (e.g., of a device held open
+     * in a WarmSlots) must not release it a second time.
+     */
+    private void releaseIfNotOpened() {
+      if (!isOpened) {
+        isOpened=true;
+        lock.release();
+      }
+    }
+
     @Override
     public void onClosed(CameraDevice camera) {
       super.onClosed(camera);
@@ -301,6 +779,152 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Opens a camera for preOpen(), parking it in the warm slots
+   * for open() to pick up.
+   */
+  private class PreOpenTransaction extends CameraDevice.StateCallback {
+    private boolean isOpened=false;
+
+    @Override
+    public void onOpened(CameraDevice cameraDevice) {
+      isOpened=true;
+      lock.release();
+      warmDevices.park(cameraDevice.getId(), cameraDevice,
+          Math.max(getWarmSessionTimeout(), PRE_OPEN_TIMEOUT_MILLIS));
+    }
+
+    @Override
+    public void onDisconnected(CameraDevice cameraDevice) {
+      releaseIfNotOpened();
+      warmDevices.forget(cameraDevice);
+      cameraDevice.close();
+    }
+
+    @Override
+    public void onError(CameraDevice cameraDevice, int i) {
+      if (!isOpened) {
+        // most likely ERROR_MAX_CAMERAS_IN_USE, so do not try
+        // again
+
+        isPreOpenSupported=false;
+      }
+
+      releaseIfNotOpened();
+      warmDevices.forget(cameraDevice);
+      cameraDevice.close();
+    }
+
+    private void releaseIfNotOpened() {
+      if (!isOpened) {
+        isOpened=true;
+        lock.release();
+      }
+    }
+  }
+
+  private void setUpZeroShutterLag(Session s) {
+    ZeroShutterLagPlugin plugin=s.getPlugin(ZeroShutterLagPlugin.class);
+
+    if (plugin!=null && s.reader!=null) {
+      int depth=plugin.getDepthFor(new Size(s.reader.getWidth(),
+          s.reader.getHeight()));
+
+      if (depth>0) {
+        ZeroShutterLagRing ring=
+            new ZeroShutterLagRing(depth, plugin.isFocusedPreferred());
+        ImageReader reader=ImageReader.newInstance(s.reader.getWidth(),
+            s.reader.getHeight(), s.reader.getImageFormat(),
+            ring.getMaxImages());
+
+        s.reader.close();
+        s.reader=reader;
+        s.zsl=ring;
+        reader.setOnImageAvailableListener(ring, handler);
+      }
+      else if (isDebug()) {
+        Log.w(getClass().getSimpleName(),
+            "Memory budget too small for even one ZSL frame");
+      }
+    }
+  }
+
+  /**
+   * Sets up a low-resolution YUV stream for the session's
+   * FrameAnalyzerPlugins, if it has any.
+   */
+  private void setUpFrameAnalysis(final Session s)
+      throws CameraAccessException {
+    List<FrameAnalyzerPlugin> analyzers=FrameDispatcher.findAnalyzers(s);
+
+    if (analyzers!=null) {
+      Descriptor camera=(Descriptor)s.getDescriptor();
+      CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+      StreamConfigurationMap map=
+          cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      Size size=chooseAnalysisSize(
+          map.getOutputSizes(ImageFormat.YUV_420_888),
+          FrameDispatcher.getMaxSize(analyzers));
+
+      // one frame being analyzed, one waiting, and one more
+      // for acquireLatestImage() to work with
+
+      s.analysisReader=ImageReader.newInstance(size.getWidth(),
+          size.getHeight(), ImageFormat.YUV_420_888, 3);
+      s.frames=new FrameDispatcher(analyzers, isDebug());
+      s.analysisReader.setOnImageAvailableListener(
+          new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+              Image image=reader.acquireLatestImage();
+
+              if (image!=null) {
+                long now=System.nanoTime();
+
+                if (s.frames.isWanted(now)) {
+                  s.frames.offer(new PreviewFrame(image, now, CLOSE_IMAGE));
+                }
+                else {
+                  image.close();
+                }
+              }
+            }
+          }, handler);
+    }
+  }
+
+  /**
+   * @return the largest size that fits within maxSize, or the
+   * smallest size if none fit
+   */
+  private static Size chooseAnalysisSize(android.util.Size[] choices,
+                                         Size maxSize) {
+    android.util.Size best=null;
+    android.util.Size smallest=null;
+
+    for (android.util.Size choice : choices) {
+      long area=(long)choice.getWidth()*choice.getHeight();
+
+      if (smallest==null ||
+          area<(long)smallest.getWidth()*smallest.getHeight()) {
+        smallest=choice;
+      }
+
+      if (choice.getWidth()<=maxSize.getWidth() &&
+          choice.getHeight()<=maxSize.getHeight() &&
+          (best==null ||
+              area>(long)best.getWidth()*best.getHeight())) {
+        best=choice;
+      }
+    }
+
+    if (best==null) {
+      best=smallest;
+    }
+
+    return(new Size(best.getWidth(), best.getHeight()));
+  }
+
   private class StartPreviewTransaction extends CameraCaptureSession.StateCallback {
     private final Surface surface;
     private final Session s;
@@ -323,11 +947,29 @@ public class CameraTwoEngine extends CameraEngine {
             CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
         // TODO: offer other flash support
 
+        if (s.zsl!=null) {
+          s.previewRequestBuilder.addTarget(s.reader.getSurface());
+          addToZeroShutterLagRequest(s);
+        }
+
+        if (s.analysisReader!=null) {
+          s.previewRequestBuilder.addTarget(s.analysisReader.getSurface());
+        }
+
         s.previewRequest=s.previewRequestBuilder.build();
 
-        session.setRepeatingRequest(s.previewRequest, null, handler);
+        session.setRepeatingRequest(s.previewRequest, s.zsl, handler);
+
+        long openNanos=System.nanoTime()-s.openStartNanos;
 
-        getBus().post(new OpenedEvent());
+        getBus().post(new OpenedEvent(s.isWarmOpen, openNanos));
+
+        if (isDebug()) {
+          Log.d(getClass().getSimpleName(),
+              String.format("%s open took %d ms",
+                  s.isWarmOpen ? "Warm" : "Cold",
+                  TimeUnit.NANOSECONDS.toMillis(openNanos)));
+        }
       }
       catch (CameraAccessException e) {
         getBus().post(new OpenedEvent(e));
@@ -338,16 +980,42 @@ public class CameraTwoEngine extends CameraEngine {
     public void onConfigureFailed(CameraCaptureSession session) {
       // TODO: raise event
     }
+
+    @Override
+    public void onClosed(CameraCaptureSession session) {
+      super.onClosed(session);
+
+      if (closeLatch != null) {
+        closeLatch.countDown();
+      }
+    }
+  }
+
+  /**
+   * ZSL frames are the pictures, so they need whatever the
+   * plugins add to still captures (e.g., JPEG orientation).
+   */
+  private void addToZeroShutterLagRequest(Session s)
+      throws CameraAccessException {
+    Descriptor camera=(Descriptor)s.getDescriptor();
+    CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+
+    s.addToCaptureRequest(cc, camera.isFacingFront, s.previewRequestBuilder);
   }
 
   private class RequestCaptureTransaction extends CameraCaptureSession.CaptureCallback {
     private final Session s;
+    private final Burst burst;
+    private final CaptureTimings timings;
     boolean isWaitingForFocus=true;
     boolean isWaitingForPrecapture=false;
     boolean haveWeStartedCapture=false;
 
-    RequestCaptureTransaction(CameraSession session) {
+    RequestCaptureTransaction(CameraSession session, Burst burst,
+                              CaptureTimings timings) {
       this.s=(Session)session;
+      this.burst=burst;
+      this.timings=timings;
     }
 
     @Override
@@ -374,6 +1042,8 @@ public class CameraTwoEngine extends CameraEngine {
 
         if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == autoFocusState ||
             CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == autoFocusState) {
+          mark(timings, CaptureTimings.Phase.AF_LOCKED);
+
           Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
 
           if (state == null ||
@@ -408,6 +1078,8 @@ public class CameraTwoEngine extends CameraEngine {
     }
 
     private void precapture(Session s) {
+      mark(timings, CaptureTimings.Phase.PRECAPTURE);
+
       try {
         s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
             CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
@@ -415,7 +1087,7 @@ public class CameraTwoEngine extends CameraEngine {
             handler);
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        postCaptureFailure(burst, e);
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception running precapture", e);
@@ -440,11 +1112,21 @@ public class CameraTwoEngine extends CameraEngine {
         s.addToCaptureRequest(cc, camera.isFacingFront, captureBuilder);
 
         s.captureSession.stopRepeating();
-        s.captureSession.capture(captureBuilder.build(),
-            new CapturePictureTransaction(s), null);
+
+        if (burst==null) {
+          s.captureSession.capture(captureBuilder.build(),
+              new CapturePictureTransaction(s, null, timings), null);
+        }
+        else {
+          List<CaptureRequest> requests=
+              Collections.nCopies(burst.getCount(), captureBuilder.build());
+
+          s.captureSession.captureBurst(requests,
+              new CapturePictureTransaction(s, burst, null), null);
+        }
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        postCaptureFailure(burst, e);
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception running capture", e);
@@ -455,9 +1137,16 @@ public class CameraTwoEngine extends CameraEngine {
 
   private class CapturePictureTransaction extends CameraCaptureSession.CaptureCallback {
     private final Session s;
+    private final Burst burst;
+    private final CaptureTimings timings;
+    private int remaining;
 
-    CapturePictureTransaction(CameraSession session) {
+    CapturePictureTransaction(CameraSession session, Burst burst,
+                              CaptureTimings timings) {
       this.s=(Session)session;
+      this.burst=burst;
+      this.remaining=(burst==null ? 1 : burst.getCount());
+      this.timings=timings;
     }
 
     @Override
@@ -465,17 +1154,42 @@ public class CameraTwoEngine extends CameraEngine {
       super.onCaptureStarted(session, request, timestamp, frameNumber);
 
       shutter.play(MediaActionSound.SHUTTER_CLICK);
+      mark(timings, CaptureTimings.Phase.SHUTTER);
     }
 
     @Override
     public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
       // TODO: something useful with the picture
-      unlockFocus();
+      onCaptureDone();
     }
 
     @Override
     public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
-      // TODO: raise event
+      // no image is coming for this frame, unless it was
+      // captured before the failure, so nothing else will
+      // report on it
+
+      if (!failure.wasImageCaptured()) {
+        if (burst==null) {
+          getBus().post(new PictureTakenEvent(
+              new IllegalStateException("Capture failed, reason: "+
+                  failure.getReason())));
+        }
+        else {
+          burst.onFailure();
+          postBurstCompleted(burst);
+        }
+      }
+
+      onCaptureDone();
+    }
+
+    private void onCaptureDone() {
+      remaining--;
+
+      if (remaining==0) {
+        unlockFocus();
+      }
     }
 
     private void unlockFocus() {
@@ -498,6 +1212,28 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Sorts descriptors by how well they match the criteria,
+   * best first.
+   */
+  static class ScoreComparator implements Comparator<CameraDescriptor> {
+    private final CameraSelectionCriteria criteria;
+
+    ScoreComparator(CameraSelectionCriteria criteria) {
+      this.criteria=criteria;
+    }
+
+    @Override
+    public int compare(CameraDescriptor descriptor, CameraDescriptor t1) {
+      Descriptor lhs=(Descriptor)descriptor;
+      Descriptor rhs=(Descriptor)t1;
+
+      // descending, so invert normal side-ness
+
+      return(Integer.compare(rhs.getScore(criteria), lhs.getScore(criteria)));
+    }
+  }
+
   private static class AreaComparator implements Comparator<Size> {
     @Override
     public int compare(Size lhs, Size rhs) {
@@ -511,14 +1247,19 @@ public class CameraTwoEngine extends CameraEngine {
   static class Descriptor implements CameraDescriptor {
     private final String cameraId;
     private CameraDevice device;
-    private ArrayList<Size> pictureSizes;
-    private ArrayList<Size> previewSizes;
-    private boolean isFacingFront;
-    private final Integer facing;
-
-    private Descriptor(String cameraId, CameraCharacteristics cc) {
-      this.cameraId=cameraId;
-      facing=cc.get(CameraCharacteristics.LENS_FACING);
+    private final ArrayList<Size> pictureSizes;
+    private final ArrayList<Size> previewSizes;
+    private final int[] pictureFormats;
+    private final boolean isFacingFront;
+    private final int facing;
+
+    Descriptor(DescriptorCache.Entry entry) {
+      cameraId=entry.id;
+      facing=entry.facing;
+      isFacingFront=(facing==CameraCharacteristics.LENS_FACING_FRONT);
+      previewSizes=entry.previewSizes;
+      pictureSizes=entry.pictureSizes;
+      pictureFormats=entry.pictureFormats;
     }
 
     public String getId() {
@@ -535,7 +1276,17 @@ public class CameraTwoEngine extends CameraEngine {
 
     @Override
     public boolean isPictureFormatSupported(int format) {
-      return (ImageFormat.JPEG == format);
+      if (ImageFormat.JPEG != format) {
+        return(false);
+      }
+
+      for (int supported : pictureFormats) {
+        if (supported == format) {
+          return(true);
+        }
+      }
+
+      return(false);
     }
 
     @Override
@@ -543,27 +1294,11 @@ public class CameraTwoEngine extends CameraEngine {
       return (previewSizes);
     }
 
-    private void setPreviewSizes(ArrayList<Size> sizes) {
-      previewSizes=sizes;
-    }
-
     @Override
     public ArrayList<Size> getPictureSizes() {
       return(pictureSizes);
     }
 
-    private void setPictureSizes(List<android.util.Size> sizes) {
-      pictureSizes=new ArrayList<Size>(sizes.size());
-
-      for (android.util.Size size : sizes) {
-        pictureSizes.add(new Size(size.getWidth(), size.getHeight()));
-      }
-    }
-
-    private void setFacingFront(boolean isFacingFront) {
-      this.isFacingFront=isFacingFront;
-    }
-
     private int getScore(CameraSelectionCriteria criteria) {
       int score=10;
 
@@ -586,6 +1321,12 @@ public class CameraTwoEngine extends CameraEngine {
     CaptureRequest.Builder previewRequestBuilder=null;
     CaptureRequest previewRequest;
     ImageReader reader;
+    ZeroShutterLagRing zsl;
+    Burst burst;
+    ImageReader analysisReader;
+    FrameDispatcher frames;
+    long openStartNanos;
+    boolean isWarmOpen=false;
 
     private Session(Context ctxt, CameraDescriptor descriptor) {
       super(ctxt, descriptor);
@@ -626,27 +1367,115 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
-  private static class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
-    private final EventBus bus;
+  private class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
     private final PictureTransaction xact;
     private final Context ctxt;
 
-    TakePictureTransaction(Context ctxt, EventBus bus, PictureTransaction xact) {
-      this.bus=bus;
+    TakePictureTransaction(Context ctxt, PictureTransaction xact) {
       this.xact=xact;
       this.ctxt=ctxt.getApplicationContext();
     }
 
     @Override
     public void onImageAvailable(ImageReader imageReader) {
-      Image image=imageReader.acquireNextImage();
-      ByteBuffer buffer=image.getPlanes()[0].getBuffer();
-      byte[] bytes=new byte[buffer.remaining()];
+      deliver(ctxt, xact, imageReader.acquireNextImage(),
+          xact.isZeroCopy());
+    }
+  }
 
-      buffer.get(bytes);
-      image.close();
+  /**
+   * Delivers each picture of a burst to its own
+   * PictureTransaction. Zero-copy is only honored if the
+   * ImageReader can hold the whole burst, as otherwise holding
+   * onto early pictures would stall the later ones.
+   */
+  private class TakeBurstTransaction implements ImageReader.OnImageAvailableListener {
+    private final Burst burst;
+    private final Context ctxt;
+    private final boolean canZeroCopy;
+
+    TakeBurstTransaction(Context ctxt, Burst burst, int maxImages) {
+      this.burst=burst;
+      this.ctxt=ctxt.getApplicationContext();
+      this.canZeroCopy=burst.getCount()<=maxImages;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+      final Image image=imageReader.acquireNextImage();
+
+      if (burst.isComplete()) {
+        image.close(); // straggler from an earlier burst
+
+        return;
+      }
+
+      final PictureTransaction xact=burst.onFrame();
+
+      final ImageContext imageContext=buildImageContext(ctxt, image,
+          canZeroCopy && xact.isZeroCopy());
+
+      beginCapture(xact, burst.getStartNanos());
+      postBurstCompleted(burst);
 
-      bus.post(new PictureTakenEvent(xact.process(new ImageContext(ctxt, bytes))));
+      // process the frame elsewhere, so this thread is free to
+      // deliver the next one
+
+      executeProcessing(new Runnable() {
+        @Override
+        public void run() {
+          processPicture(xact, imageContext);
+        }
+      });
+    }
+  }
+
+  private void postBurstCompleted(Burst burst) {
+    BurstCompletedEvent event=burst.takeCompletedEvent();
+
+    if (event!=null) {
+      getBus().post(event);
+    }
+  }
+
+  private void deliver(Context ctxt, PictureTransaction xact, Image image,
+                       boolean zeroCopy) {
+    processPicture(xact, buildImageContext(ctxt, image, zeroCopy));
+  }
+
+  /**
+   * Wraps the Image in an ImageContext, or copies it into one
+   * and closes the Image, returning its buffer to the
+   * ImageReader.
+   */
+  private ImageContext buildImageContext(Context ctxt, Image image,
+                                         boolean zeroCopy) {
+    ByteBuffer buffer=image.getPlanes()[0].getBuffer();
+    BufferPool pool=getBufferPool();
+
+    if (zeroCopy) {
+      return(new ImageContext(ctxt, buffer, new ImageCloser(image), pool));
+    }
+
+    int length=buffer.remaining();
+    byte[] bytes=pool.acquire(length);
+
+    buffer.get(bytes, 0, length);
+    image.close();
+
+    return(new ImageContext(ctxt, bytes, length, pool));
+  }
+
+  private static class ImageCloser implements Closeable {
+    private final Image image;
+
+    ImageCloser(Image image) {
+      this.image=image;
+    }
+
+    @Override
+    public void close() {
+      image.close();
     }
   }
 }
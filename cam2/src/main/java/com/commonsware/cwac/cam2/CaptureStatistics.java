@@ -0,0 +1,201 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated CaptureTimings for the pictures taken by a
+ * CameraEngine, to find out where time goes while taking
+ * pictures. Get one from getCaptureStatistics() on the engine.
+ *
+ * For each phase, and for each ImageProcessor (by tag), this
+ * keeps the most recent samples, up to a fixed limit, and
+ * reports percentiles of those samples. Phases are measured
+ * from when the picture was requested; processors are
+ * measured by how long they ran. All methods are thread-safe.
+ */
+public class CaptureStatistics {
+  private static final int DEFAULT_MAX_SAMPLES=256;
+  private final int maxSamples;
+  private final EnumMap<CaptureTimings.Phase, Samples> phases=
+      new EnumMap<CaptureTimings.Phase, Samples>(CaptureTimings.Phase.class);
+  private final HashMap<String, Samples> processors=
+      new HashMap<String, Samples>();
+
+  /**
+   * Constructor, keeping the most recent 256 samples for
+   * each phase and processor.
+   */
+  public CaptureStatistics() {
+    this(DEFAULT_MAX_SAMPLES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSamples the number of recent samples to keep for
+   *                   each phase and processor
+   */
+  public CaptureStatistics(int maxSamples) {
+    if (maxSamples<1) {
+      throw new IllegalArgumentException("maxSamples must be at least 1");
+    }
+
+    this.maxSamples=maxSamples;
+  }
+
+  synchronized void record(CaptureTimings.Phase phase, long nanos) {
+    Samples samples=phases.get(phase);
+
+    if (samples==null) {
+      samples=new Samples(maxSamples);
+      phases.put(phase, samples);
+    }
+
+    samples.add(nanos);
+  }
+
+  synchronized void recordProcessor(String tag, long nanos) {
+    Samples samples=processors.get(tag);
+
+    if (samples==null) {
+      samples=new Samples(maxSamples);
+      processors.put(tag, samples);
+    }
+
+    samples.add(nanos);
+  }
+
+  /**
+   * @param phase the phase of interest
+   * @return the distribution of time from request to that
+   * phase, or null if the phase has not been observed
+   */
+  synchronized public Summary getSummary(CaptureTimings.Phase phase) {
+    Samples samples=phases.get(phase);
+
+    return(samples==null ? null : samples.summarize());
+  }
+
+  /**
+   * @param tag the tag of the ImageProcessor of interest
+   * @return the distribution of time spent in that processor,
+   * or null if it has not run
+   */
+  synchronized public Summary getProcessorSummary(String tag) {
+    Samples samples=processors.get(tag);
+
+    return(samples==null ? null : samples.summarize());
+  }
+
+  /**
+   * @return the tags of the ImageProcessors that have run
+   */
+  synchronized public Set<String> getProcessorTags() {
+    return(new HashSet<String>(processors.keySet()));
+  }
+
+  /**
+   * Discards all samples.
+   */
+  synchronized public void reset() {
+    phases.clear();
+    processors.clear();
+  }
+
+  /**
+   * Percentiles of a set of samples, in milliseconds.
+   */
+  public static class Summary {
+    private final int count;
+    private final long[] sorted;
+
+    Summary(long[] sorted) {
+      this.sorted=sorted;
+      this.count=sorted.length;
+    }
+
+    /**
+     * @return the number of samples summarized
+     */
+    public int getCount() {
+      return(count);
+    }
+
+    /**
+     * @param percentile the percentile of interest, from 0 to 100
+     * @return the sample at that percentile, using the
+     * nearest-rank method, in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+      if (percentile<0 || percentile>100) {
+        throw new IllegalArgumentException("percentile must be from 0 to 100");
+      }
+
+      int rank=(int)Math.ceil(percentile/100*count);
+      long nanos=sorted[Math.max(rank, 1)-1];
+
+      return(nanos/(double)TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public double getP50Millis() {
+      return(getPercentileMillis(50));
+    }
+
+    public double getP95Millis() {
+      return(getPercentileMillis(95));
+    }
+
+    public double getP99Millis() {
+      return(getPercentileMillis(99));
+    }
+
+    @Override
+    public String toString() {
+      return(String.format("n=%d p50=%.1fms p95=%.1fms p99=%.1fms",
+          count, getP50Millis(), getP95Millis(), getP99Millis()));
+    }
+  }
+
+  private static class Samples {
+    private final long[] values;
+    private int next=0;
+    private int count=0;
+
+    Samples(int capacity) {
+      values=new long[capacity];
+    }
+
+    void add(long value) {
+      values[next]=value;
+      next=(next+1)%values.length;
+      count=Math.min(count+1, values.length);
+    }
+
+    Summary summarize() {
+      long[] sorted=Arrays.copyOf(values, count);
+
+      Arrays.sort(sorted);
+
+      return(new Summary(sorted));
+    }
+  }
+}
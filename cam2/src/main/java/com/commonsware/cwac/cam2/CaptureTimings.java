@@ -0,0 +1,281 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each phase of taking one picture happened, measured
+ * from when the picture was requested. Get one from the
+ * PictureTakenEvent or PictureCompletedEvent.
+ *
+ * Not every engine can observe every phase. For example, the
+ * classic camera API does not expose focus or exposure, and
+ * zero-shutter-lag pictures skip them entirely. Phases that
+ * were not observed report -1.
+ *
+ * The object keeps being updated after the PictureTakenEvent,
+ * as later phases (e.g., FILE_WRITTEN for pipelined engines)
+ * happen. Every phase is also recorded in the engine's
+ * CaptureStatistics, as it happens.
+ */
+public class CaptureTimings {
+  /**
+   * The observable phases of taking a picture, in the order
+   * in which they occur.
+   */
+  public enum Phase {
+    /**
+     * The engine was asked to take the picture
+     */
+    REQUESTED,
+
+    /**
+     * The camera was asked to lock focus
+     */
+    AF_TRIGGERED,
+
+    /**
+     * The camera reported that focus was locked
+     */
+    AF_LOCKED,
+
+    /**
+     * The camera was asked to meter exposure (and flash)
+     */
+    PRECAPTURE,
+
+    /**
+     * The camera started capturing the picture
+     */
+    SHUTTER,
+
+    /**
+     * The picture arrived from the camera
+     */
+    IMAGE_AVAILABLE,
+
+    /**
+     * JPEGWriter finished writing the picture
+     */
+    FILE_WRITTEN,
+
+    /**
+     * The written picture is known to be on the storage
+     * device; only reported for the syncPerFile() durability
+     * policy, as other policies sync later or never
+     */
+    FILE_DURABLE
+  }
+
+  private final long[] marks=new long[Phase.values().length];
+  private final boolean[] isMarked=new boolean[Phase.values().length];
+  private final ArrayList<ProcessorTiming> processors=
+      new ArrayList<ProcessorTiming>();
+  private final CaptureStatistics stats;
+
+  /**
+   * Constructor.
+   *
+   * @param stats where to record phases as they happen, or null
+   * @param requestedNanos when the picture was requested, in
+   *                       System.nanoTime() terms
+   */
+  CaptureTimings(CaptureStatistics stats, long requestedNanos) {
+    this.stats=stats;
+    marks[Phase.REQUESTED.ordinal()]=requestedNanos;
+    isMarked[Phase.REQUESTED.ordinal()]=true;
+  }
+
+  /**
+   * Records that a phase happened just now. Only the first
+   * occurrence of a phase is recorded.
+   *
+   * @param phase the phase that happened
+   */
+  void mark(Phase phase) {
+    long elapsed;
+
+    synchronized(this) {
+      if (isMarked[phase.ordinal()]) {
+        return;
+      }
+
+      marks[phase.ordinal()]=System.nanoTime();
+      isMarked[phase.ordinal()]=true;
+      elapsed=marks[phase.ordinal()]-marks[Phase.REQUESTED.ordinal()];
+    }
+
+    if (stats!=null) {
+      stats.record(phase, elapsed);
+    }
+  }
+
+  /**
+   * @return when the picture was requested, in System.nanoTime()
+   * terms
+   */
+  synchronized long getRequestedNanos() {
+    return(marks[Phase.REQUESTED.ordinal()]);
+  }
+
+  /**
+   * Records that an ImageProcessor is about to run.
+   *
+   * @param processor the processor
+   * @return a ProcessorTiming to pass to onProcessorEnd()
+   */
+  synchronized ProcessorTiming onProcessorStart(ImageProcessor processor) {
+    ProcessorTiming result=new ProcessorTiming(processor.getTag(),
+        System.nanoTime()-marks[Phase.REQUESTED.ordinal()]);
+
+    processors.add(result);
+
+    return(result);
+  }
+
+  /**
+   * Records that an ImageProcessor has finished, successfully
+   * or not.
+   *
+   * @param timing the result of the onProcessorStart() call
+   */
+  void onProcessorEnd(ProcessorTiming timing) {
+    timing.endNanos=System.nanoTime()-getRequestedNanos();
+
+    if (stats!=null) {
+      stats.recordProcessor(timing.tag, timing.endNanos-timing.startNanos);
+    }
+  }
+
+  /**
+   * @param phase the phase of interest
+   * @return the time from the request until the phase, in
+   * nanoseconds, or -1 if the phase was not observed
+   */
+  synchronized public long getElapsedNanos(Phase phase) {
+    if (!isMarked[phase.ordinal()]) {
+      return(-1);
+    }
+
+    return(marks[phase.ordinal()]-marks[Phase.REQUESTED.ordinal()]);
+  }
+
+  /**
+   * @param phase the phase of interest
+   * @return when the phase happened, in
+   * System.currentTimeMillis() terms, or -1 if the phase was
+   * not observed
+   */
+  long getWallClockMillis(Phase phase) {
+    long nanosAgo;
+
+    synchronized(this) {
+      if (!isMarked[phase.ordinal()]) {
+        return(-1);
+      }
+
+      nanosAgo=System.nanoTime()-marks[phase.ordinal()];
+    }
+
+    return(System.currentTimeMillis()-TimeUnit.NANOSECONDS.toMillis(nanosAgo));
+  }
+
+  /**
+   * @param phase the phase of interest
+   * @return the time from the request until the phase, in
+   * milliseconds, or -1 if the phase was not observed
+   */
+  public long getElapsedMillis(Phase phase) {
+    long nanos=getElapsedNanos(phase);
+
+    return(nanos<0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  /**
+   * @return when each ImageProcessor ran, in the order that
+   * they started
+   */
+  synchronized public List<ProcessorTiming> getProcessorTimings() {
+    return(new ArrayList<ProcessorTiming>(processors));
+  }
+
+  @Override
+  synchronized public String toString() {
+    StringBuilder buf=new StringBuilder();
+
+    for (Phase phase : Phase.values()) {
+      if (isMarked[phase.ordinal()] && phase!=Phase.REQUESTED) {
+        buf.append(phase)
+            .append('=')
+            .append(getElapsedMillis(phase))
+            .append("ms ");
+      }
+    }
+
+    for (ProcessorTiming timing : processors) {
+      buf.append(timing).append(' ');
+    }
+
+    return(buf.toString().trim());
+  }
+
+  /**
+   * When one ImageProcessor ran, measured from when the
+   * picture was requested.
+   */
+  public static class ProcessorTiming {
+    private final String tag;
+    private final long startNanos;
+    private volatile long endNanos=-1;
+
+    ProcessorTiming(String tag, long startNanos) {
+      this.tag=tag;
+      this.startNanos=startNanos;
+    }
+
+    /**
+     * @return the tag of the ImageProcessor
+     */
+    public String getTag() {
+      return(tag);
+    }
+
+    /**
+     * @return when the processor started, in milliseconds
+     * since the request
+     */
+    public long getStartMillis() {
+      return(TimeUnit.NANOSECONDS.toMillis(startNanos));
+    }
+
+    /**
+     * @return how long the processor ran, in milliseconds,
+     * or -1 if it has not finished
+     */
+    public long getDurationMillis() {
+      long end=endNanos;
+
+      return(end<0 ? -1 : TimeUnit.NANOSECONDS.toMillis(end-startNanos));
+    }
+
+    @Override
+    public String toString() {
+      return(tag+"="+getDurationMillis()+"ms@"+getStartMillis()+"ms");
+    }
+  }
+}
@@ -19,11 +19,14 @@ import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.Log;
+import com.commonsware.cwac.cam2.plugin.FrameAnalyzerPlugin;
 import com.commonsware.cwac.cam2.util.Size;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -31,7 +34,54 @@ import java.util.List;
  */
 @SuppressWarnings("deprecation")
 public class ClassicCameraEngine extends CameraEngine {
-  private List<CameraDescriptor> descriptors=null;
+  private static final String CACHE_NAME="cwac-cam2-classic.descriptors";
+  private static final Camera.ShutterCallback SHUTTER=
+      new Camera.ShutterCallback() {
+        @Override
+        public void onShutter() {
+          // empty plays a sound -- go figure
+        }
+      };
+  private volatile List<CameraDescriptor> descriptors=null;
+  private final DescriptorCache cache;
+  private volatile boolean isPreOpenSupported=true;
+  private volatile int previewBufferCount=3;
+  private final WarmSlots<Camera> warmCameras=new WarmSlots<Camera>(1,
+      new WarmSlots.Releaser<Camera>() {
+        @Override
+        public void release(Camera camera) {
+          camera.release();
+        }
+      });
+
+  /**
+   * Constructor, for an engine that probes the cameras on
+   * every launch.
+   */
+  public ClassicCameraEngine() {
+    cache=null;
+  }
+
+  /**
+   * Constructor, for an engine that caches what it learns
+   * about the cameras in the app's cache directory, so later
+   * launches do not need to open each camera to find out its
+   * sizes.
+   *
+   * @param ctxt any Context will do
+   */
+  public ClassicCameraEngine(Context ctxt) {
+    cache=new DescriptorCache(ctxt, CACHE_NAME);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    warmCameras.releaseAll();
+  }
 
   /**
    * {@inheritDoc}
@@ -45,65 +95,122 @@ public class ClassicCameraEngine extends CameraEngine {
    * {@inheritDoc}
    */
   public void loadCameraDescriptors(final CameraSelectionCriteria criteria) {
-    getThreadPool().execute(new Runnable() {
+    executeCommand(CameraCommandQueue.Kind.OTHER, null, new Runnable() {
       @Override
       public void run() {
         if (descriptors == null) {
-          int count=Camera.getNumberOfCameras();
-          List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
-          Camera.CameraInfo info=new Camera.CameraInfo();
+          List<DescriptorCache.Entry> cached=
+              (cache==null ? null : cache.load());
 
-          for (int cameraId=0; cameraId < count; cameraId++) {
-            Camera.getCameraInfo(cameraId, info);
-            Descriptor descriptor=new Descriptor(cameraId, info);
+          if (cached==null) {
+            descriptors=probeCameras();
+          }
+          else {
+            descriptors=fromCache(cached);
+            cache.revalidate(cached, new RosterCheck());
+          }
+        }
 
-            result.add(descriptor);
+        List<CameraDescriptor> result=new ArrayList<CameraDescriptor>(descriptors);
 
-            Camera camera=Camera.open(descriptor.getCameraId());
-            Camera.Parameters params=camera.getParameters();
-            ArrayList<Size> sizes=new ArrayList<Size>();
+        Collections.sort(result, new ScoreComparator(criteria));
 
-            for (Camera.Size size : params.getSupportedPreviewSizes()) {
-              sizes.add(new Size(size.width, size.height));
-            }
+        getBus().post(new CameraEngine.CameraDescriptorsEvent(result));
+      }
+    });
+  }
+
+  /**
+   * Sorts descriptors by how well they match the criteria,
+   * best first.
+   */
+  static class ScoreComparator implements Comparator<CameraDescriptor> {
+    private final CameraSelectionCriteria criteria;
 
-            descriptor.setPreviewSizes(sizes);
+    ScoreComparator(CameraSelectionCriteria criteria) {
+      this.criteria=criteria;
+    }
 
-            sizes=new ArrayList<Size>();
+    @Override
+    public int compare(CameraDescriptor descriptor, CameraDescriptor t1) {
+      Descriptor lhs=(Descriptor)descriptor;
+      Descriptor rhs=(Descriptor)t1;
 
-            for (Camera.Size size : params.getSupportedPictureSizes()) {
-              sizes.add(new Size(size.width, size.height));
-            }
+      // descending, so invert normal side-ness
 
-            descriptor.setPictureSizes(sizes);
-            camera.release();
-          }
+      int lhScore=rhs.getScore(criteria);
+      int rhScore=lhs.getScore(criteria);
 
-          descriptors=result;
-        }
+      // from Integer.compare(), which is new to API Level 19
 
-        List<CameraDescriptor> result=new ArrayList<CameraDescriptor>(descriptors);
+      return(lhScore < rhScore ? -1 : (lhScore == rhScore ? 0 : 1));
+    }
+  }
 
-        Collections.sort(result, new Comparator<CameraDescriptor>() {
-          @Override
-          public int compare(CameraDescriptor descriptor, CameraDescriptor t1) {
-            Descriptor lhs=(Descriptor)descriptor;
-            Descriptor rhs=(Descriptor)t1;
+  private List<CameraDescriptor> probeCameras() {
+    int count=Camera.getNumberOfCameras();
+    List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
+    List<DescriptorCache.Entry> entries=new ArrayList<DescriptorCache.Entry>();
+    Camera.CameraInfo info=new Camera.CameraInfo();
 
-            // descending, so invert normal side-ness
+    for (int cameraId=0; cameraId < count; cameraId++) {
+      Camera.getCameraInfo(cameraId, info);
+      Descriptor descriptor=new Descriptor(cameraId, info.facing);
 
-            int lhScore=rhs.getScore(criteria);
-            int rhScore=lhs.getScore(criteria);
+      result.add(descriptor);
 
-            // from Integer.compare(), which is new to API Level 19
+      Camera camera=Camera.open(descriptor.getCameraId());
+      Camera.Parameters params=camera.getParameters();
+      ArrayList<Size> sizes=new ArrayList<Size>();
 
-            return(lhScore < rhScore ? -1 : (lhScore == rhScore ? 0 : 1));
-          }
-        });
+      for (Camera.Size size : params.getSupportedPreviewSizes()) {
+        sizes.add(new Size(size.width, size.height));
+      }
 
-        getBus().post(new CameraEngine.CameraDescriptorsEvent(result));
+      descriptor.setPreviewSizes(sizes);
+
+      sizes=new ArrayList<Size>();
+
+      for (Camera.Size size : params.getSupportedPictureSizes()) {
+        sizes.add(new Size(size.width, size.height));
       }
-    });
+
+      descriptor.setPictureSizes(sizes);
+
+      List<Integer> formats=params.getSupportedPictureFormats();
+      int[] pictureFormats=new int[formats.size()];
+
+      for (int i=0;i<pictureFormats.length;i++) {
+        pictureFormats[i]=formats.get(i);
+      }
+
+      descriptor.setPictureFormats(pictureFormats);
+      camera.release();
+      entries.add(descriptor.toCacheEntry());
+    }
+
+    if (cache!=null) {
+      try {
+        cache.save(entries);
+      }
+      catch (IOException e) {
+        if (isDebug()) {
+          Log.e(getClass().getSimpleName(), "Exception caching descriptors", e);
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private static List<CameraDescriptor> fromCache(List<DescriptorCache.Entry> entries) {
+    List<CameraDescriptor> result=new ArrayList<CameraDescriptor>();
+
+    for (DescriptorCache.Entry entry : entries) {
+      result.add(new Descriptor(entry));
+    }
+
+    return(result);
   }
 
   /**
@@ -111,16 +218,36 @@ public class ClassicCameraEngine extends CameraEngine {
    */
   @Override
   public void close(final CameraSession session) {
-      Descriptor descriptor=(Descriptor)session.getDescriptor();
-      Camera camera=descriptor.getCamera();
+    // if the open has not started yet, skip it, leaving
+    // nothing for the close to do but raise the ClosedEvent
 
-      if (camera != null) {
-        camera.stopPreview();
-        camera.release();
-        descriptor.setCamera(null);
-      }
+    getCommandQueue().cancel(CameraCommandQueue.Kind.OPEN, session);
+    executeCommand(CameraCommandQueue.Kind.CLOSE, session, new Runnable() {
+      @Override
+      public void run() {
+        Descriptor descriptor=(Descriptor)session.getDescriptor();
+        Camera camera=descriptor.getCamera();
+
+        if (camera != null) {
+          long timeout=getWarmSessionTimeout();
+
+          tearDownFrameAnalysis((Session)session, camera);
+          camera.stopPreview();
+
+          if (timeout > 0) {
+            warmCameras.park(Integer.toString(descriptor.getCameraId()),
+                camera, timeout);
+          }
+          else {
+            camera.release();
+          }
+
+          descriptor.setCamera(null);
+        }
 
-      getBus().post(new ClosedEvent());
+        getBus().post(new ClosedEvent());
+      }
+    });
   }
 
   /**
@@ -128,20 +255,18 @@ public class ClassicCameraEngine extends CameraEngine {
    */
   @Override
   public void takePicture(final CameraSession session, final PictureTransaction xact) {
-    getThreadPool().execute(new Runnable() {
+    beginCapture(xact);
+    executeCommand(CameraCommandQueue.Kind.CAPTURE, session, new Runnable() {
       @Override
       public void run() {
         Descriptor descriptor=(Descriptor)session.getDescriptor();
         Camera camera=descriptor.getCamera();
 
         try {
-          camera.takePicture(new Camera.ShutterCallback() {
-                               @Override
-                               public void onShutter() {
-                                 // empty plays a sound -- go figure
-                               }
-                             }, null,
-              new TakePictureTransaction(session.getContext(), xact));
+          TakePictureTransaction callback=
+              new TakePictureTransaction(session.getContext(), xact);
+
+          camera.takePicture(callback, null, callback);
         }
         catch (Exception e) {
           getBus().post(new PictureTakenEvent(e));
@@ -154,30 +279,132 @@ public class ClassicCameraEngine extends CameraEngine {
     });
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The classic camera API has no burst mode, so this takes
+   * the pictures one after the next, requesting each picture
+   * as soon as the preview restarts after the previous one.
+   */
+  @Override
+  public void takeBurst(final CameraSession session, int count,
+                        PictureTransaction.Factory factory) {
+    final Burst burst=new Burst(count, factory);
+
+    executeCommand(CameraCommandQueue.Kind.CAPTURE, session, new Runnable() {
+      @Override
+      public void run() {
+        Descriptor descriptor=(Descriptor)session.getDescriptor();
+        Camera camera=descriptor.getCamera();
+
+        try {
+          camera.takePicture(SHUTTER, null,
+              new TakeBurstTransaction(session, burst));
+        }
+        catch (Exception e) {
+          getBus().post(new BurstCompletedEvent(e));
+
+          if (isDebug()) {
+            Log.e(getClass().getSimpleName(), "Exception taking burst", e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void preOpen(final CameraDescriptor descriptor) {
+    if (!isPreOpenSupported) {
+      return;
+    }
+
+    Runnable command=new Runnable() {
+      @Override
+      public void run() {
+        int cameraId=((Descriptor)descriptor).getCameraId();
+        String id=Integer.toString(cameraId);
+
+        if (((Descriptor)descriptor).getCamera()!=null ||
+            warmCameras.isParked(id)) {
+          return;
+        }
+
+        try {
+          Camera camera=Camera.open(cameraId);
+
+          warmCameras.setMaxSlots(2);
+          warmCameras.park(id, camera,
+              Math.max(getWarmSessionTimeout(), PRE_OPEN_TIMEOUT_MILLIS));
+        }
+        catch (RuntimeException e) {
+          // this device cannot have two cameras open at once
+
+          isPreOpenSupported=false;
+
+          if (isDebug()) {
+            Log.d(getClass().getSimpleName(),
+                "Cannot pre-open camera, disabling pre-open", e);
+          }
+        }
+      }
+    };
+
+    // a pre-open already waiting to run would do the same thing
+
+    executeCommandUnlessPending(CameraCommandQueue.Kind.PRE_OPEN, descriptor,
+        command);
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public void open(final CameraSession session,
                    final SurfaceTexture texture) {
-    getThreadPool().execute(new Runnable() {
+    final long startNanos=System.nanoTime();
+
+    executeCommand(CameraCommandQueue.Kind.OPEN, session, new Runnable() {
       @Override
       public void run() {
         Descriptor descriptor=(Descriptor)session.getDescriptor();
         Camera camera=descriptor.getCamera();
+        boolean isWarm=false;
 
         if (camera == null) {
-          camera=Camera.open(descriptor.getCameraId());
+          camera=warmCameras.take(Integer.toString(descriptor.getCameraId()));
+          isWarm=(camera != null);
+
+          if (camera == null) {
+            // many devices cannot have two cameras open at once
+
+            warmCameras.releaseAll();
+            camera=Camera.open(descriptor.getCameraId());
+          }
+
           descriptor.setCamera(camera);
         }
 
         try {
           camera.setParameters(((Session)session).configure());
           camera.setPreviewTexture(texture);
+          setUpFrameAnalysis((Session)session, camera);
           camera.startPreview();
-          getBus().post(new OpenedEvent());
+
+          long openNanos=System.nanoTime()-startNanos;
+
+          getBus().post(new OpenedEvent(isWarm, openNanos));
+
+          if (isDebug()) {
+            Log.d(getClass().getSimpleName(),
+                String.format("%s open took %d ms", isWarm ? "Warm" : "Cold",
+                    TimeUnit.NANOSECONDS.toMillis(openNanos)));
+          }
         }
         catch (Exception e) {
+          tearDownFrameAnalysis((Session)session, camera);
           camera.release();
           descriptor.setCamera(null);
           getBus().post(new OpenedEvent(e));
@@ -190,24 +417,136 @@ public class ClassicCameraEngine extends CameraEngine {
     });
   }
 
-  private class TakePictureTransaction implements Camera.PictureCallback {
+  private class TakePictureTransaction
+      implements Camera.PictureCallback, Camera.ShutterCallback {
     private final PictureTransaction xact;
     private final Context ctxt;
+    private final CaptureTimings timings;
 
     TakePictureTransaction(Context ctxt, PictureTransaction xact) {
       this.ctxt=ctxt.getApplicationContext();
       this.xact=xact;
+      this.timings=xact.getTimings();
+    }
+
+    @Override
+    public void onShutter() {
+      // non-null callback plays a sound -- go figure
+      timings.mark(CaptureTimings.Phase.SHUTTER);
     }
 
     @Override
     public void onPictureTaken(final byte[] bytes, final Camera camera) {
-      getThreadPool().execute(new Runnable() {
+      executeCommand(CameraCommandQueue.Kind.OTHER, null, new Runnable() {
         @Override
         public void run() {
-          getBus().post(new PictureTakenEvent(xact.process(new ImageContext(ctxt, bytes))));
           camera.startPreview();
         }
       });
+      executeProcessing(new Runnable() {
+        @Override
+        public void run() {
+          processPicture(xact, new ImageContext(ctxt, bytes));
+        }
+      });
+    }
+  }
+
+  /**
+   * Revalidates a cached roster in the background. Finding out
+   * the sizes would mean opening each camera, possibly while the
+   * app is using one, so this only checks the cameras' IDs and
+   * facing. If those changed, the cache is dropped and the next
+   * loadCameraDescriptors() call probes the cameras again.
+   */
+  private class RosterCheck implements DescriptorCache.Loader {
+    @Override
+    public List<DescriptorCache.Entry> loadFresh(List<DescriptorCache.Entry> cached) {
+      int count=Camera.getNumberOfCameras();
+
+      if (count!=cached.size()) {
+        return(null);
+      }
+
+      Camera.CameraInfo info=new Camera.CameraInfo();
+
+      for (int cameraId=0; cameraId < count; cameraId++) {
+        DescriptorCache.Entry entry=cached.get(cameraId);
+
+        Camera.getCameraInfo(cameraId, info);
+
+        if (!entry.id.equals(Integer.toString(cameraId)) ||
+            entry.facing!=info.facing) {
+          return(null);
+        }
+      }
+
+      return(cached);
+    }
+
+    @Override
+    public void onStale(List<DescriptorCache.Entry> fresh) {
+      descriptors=null;
+    }
+  }
+
+  private class TakeBurstTransaction implements Camera.PictureCallback {
+    private final Burst burst;
+    private final Context ctxt;
+    private final Descriptor descriptor;
+
+    TakeBurstTransaction(CameraSession session, Burst burst) {
+      this.ctxt=session.getContext().getApplicationContext();
+      this.descriptor=(Descriptor)session.getDescriptor();
+      this.burst=burst;
+    }
+
+    @Override
+    public void onPictureTaken(final byte[] bytes, final Camera camera) {
+      executeCommand(CameraCommandQueue.Kind.CAPTURE, null, new Runnable() {
+        @Override
+        public void run() {
+          final PictureTransaction xact=burst.onFrame();
+
+          beginCapture(xact, burst.getStartNanos());
+
+          if (descriptor.getCamera()!=camera) {
+            // the session was closed mid-burst, and the camera
+            // with it
+
+            burst.abandon();
+          }
+          else {
+            try {
+              camera.startPreview();
+
+              if (!burst.isComplete()) {
+                camera.takePicture(SHUTTER, null, TakeBurstTransaction.this);
+              }
+            }
+            catch (Exception e) {
+              burst.abandon();
+
+              if (isDebug()) {
+                Log.e(getClass().getSimpleName(), "Exception continuing burst", e);
+              }
+            }
+          }
+
+          BurstCompletedEvent event=burst.takeCompletedEvent();
+
+          if (event!=null) {
+            getBus().post(event);
+          }
+
+          executeProcessing(new Runnable() {
+            @Override
+            public void run() {
+              processPicture(xact, new ImageContext(ctxt, bytes));
+            }
+          });
+        }
+      });
     }
   }
 
@@ -216,11 +555,24 @@ public class ClassicCameraEngine extends CameraEngine {
     private Camera camera;
     private ArrayList<Size> pictureSizes;
     private ArrayList<Size> previewSizes;
+    private int[] pictureFormats;
     private final int facing;
 
-    private Descriptor(int cameraId, Camera.CameraInfo info) {
+    private Descriptor(int cameraId, int facing) {
       this.cameraId=cameraId;
-      this.facing=info.facing;
+      this.facing=facing;
+    }
+
+    Descriptor(DescriptorCache.Entry entry) {
+      this(Integer.parseInt(entry.id), entry.facing);
+      previewSizes=entry.previewSizes;
+      pictureSizes=entry.pictureSizes;
+      pictureFormats=entry.pictureFormats;
+    }
+
+    private DescriptorCache.Entry toCacheEntry() {
+      return(new DescriptorCache.Entry(Integer.toString(cameraId), facing,
+          previewSizes, pictureSizes, pictureFormats));
     }
 
     public int getCameraId() {
@@ -251,13 +603,31 @@ public class ClassicCameraEngine extends CameraEngine {
 
     @Override
     public boolean isPictureFormatSupported(int format) {
-      return (ImageFormat.JPEG == format);
+      if (ImageFormat.JPEG != format) {
+        return(false);
+      }
+
+      if (pictureFormats == null) {
+        return(true);
+      }
+
+      for (int supported : pictureFormats) {
+        if (supported == format) {
+          return(true);
+        }
+      }
+
+      return(false);
     }
 
     private void setPictureSizes(ArrayList<Size> sizes) {
       pictureSizes=sizes;
     }
 
+    private void setPictureFormats(int[] formats) {
+      pictureFormats=formats;
+    }
+
     private int getScore(CameraSelectionCriteria criteria) {
       int score=10;
 
@@ -274,7 +644,98 @@ public class ClassicCameraEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Sets how many preallocated buffers the camera fills with
+   * preview frames, for sessions with FrameAnalyzerPlugins.
+   * More buffers mean fewer dropped frames when analyzers hold
+   * onto frames, at the cost of memory. Takes effect when the
+   * next session is opened.
+   *
+   * @param count the number of buffers, at least 2 (the
+   *              default is 3)
+   */
+  public void setPreviewBufferCount(int count) {
+    if (count<2) {
+      throw new IllegalArgumentException("count must be at least 2");
+    }
+
+    previewBufferCount=count;
+  }
+
+  /**
+   * @return how many preallocated buffers the camera fills with
+   * preview frames
+   */
+  public int getPreviewBufferCount() {
+    return(previewBufferCount);
+  }
+
+  /**
+   * Reports how many preview frames the camera dropped because
+   * every preview buffer was still in use. This is an estimate,
+   * based on the preview frame rate.
+   *
+   * @param session the session of interest
+   * @return the estimated number of dropped frames, or 0 if the
+   * session is not delivering preview frames
+   */
+  public long getDroppedPreviewFrames(CameraSession session) {
+    PreviewBufferRing ring=((Session)session).ring;
+
+    return(ring==null ? 0 : ring.getDroppedFrameCount());
+  }
+
+  /**
+   * Sets up delivery of preview frames to the session's
+   * FrameAnalyzerPlugins, if it has any.
+   */
+  private void setUpFrameAnalysis(Session session, Camera camera) {
+    List<FrameAnalyzerPlugin> analyzers=FrameDispatcher.findAnalyzers(session);
+
+    if (analyzers!=null) {
+      final PreviewBufferRing ring=new PreviewBufferRing(camera,
+          camera.getParameters(), previewBufferCount);
+      final FrameDispatcher frames=new FrameDispatcher(analyzers, isDebug());
+
+      session.ring=ring;
+      session.frames=frames;
+      camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+          long now=System.nanoTime();
+
+          ring.onFrameReceived();
+
+          if (frames.isWanted(now)) {
+            frames.offer(new PreviewFrame(data, ring.getWidth(),
+                ring.getHeight(), now, ring));
+          }
+          else {
+            ring.recycle(data);
+          }
+        }
+      });
+    }
+  }
+
+  private void tearDownFrameAnalysis(Session session, Camera camera) {
+    if (session.frames!=null) {
+      camera.setPreviewCallbackWithBuffer(null);
+      session.frames.shutdown();
+      session.frames=null;
+
+      if (isDebug()) {
+        Log.d(getClass().getSimpleName(),
+            String.format("%d preview frames dropped for want of a buffer",
+                session.ring.getDroppedFrameCount()));
+      }
+    }
+  }
+
   private static class Session extends CameraSession {
+    FrameDispatcher frames;
+    PreviewBufferRing ring;
+
     private Session(Context ctxt, CameraDescriptor descriptor) {
       super(ctxt, descriptor);
     }
@@ -17,15 +17,20 @@ package com.commonsware.cwac.cam2;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.Fragment;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 
 public class ConfirmationFragment extends Fragment {
   public interface Contract {
@@ -34,6 +39,7 @@ public class ConfirmationFragment extends Fragment {
   }
 
   private ImageView iv;
+  private ProgressBar progress;
   private ImageContext imageContext;
 
   public static ConfirmationFragment newInstance() {
@@ -64,13 +70,23 @@ public class ConfirmationFragment extends Fragment {
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    FrameLayout frame=new FrameLayout(getActivity());
+
     iv=new ImageView(getActivity());
+    frame.addView(iv, new FrameLayout.LayoutParams(
+        ViewGroup.LayoutParams.MATCH_PARENT,
+        ViewGroup.LayoutParams.MATCH_PARENT));
+    progress=new ProgressBar(getActivity());
+    progress.setIndeterminate(true);
+    frame.addView(progress, new FrameLayout.LayoutParams(
+        ViewGroup.LayoutParams.WRAP_CONTENT,
+        ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
 
     if (imageContext!=null) {
       loadImage();
     }
 
-    return(iv);
+    return(frame);
   }
 
   @Override
@@ -103,13 +119,20 @@ public class ConfirmationFragment extends Fragment {
 
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
+    // either way, the ImageContext is released, and the
+    // thumbnail goes back to the BitmapPool, so stop showing it
+
     if (item.getItemId()==android.R.id.home) {
+      clearImage();
       getContract().completeRequest(imageContext, true);
     }
     else if (item.getItemId()==R.id.cwac_cam2_ok) {
+      clearImage();
       getContract().completeRequest(imageContext, true);
     }
     else if (item.getItemId()==R.id.cwac_cam2_retry) {
+      clearImage();
+      imageContext.release();
       getContract().retakePicture();
     }
     else {
@@ -127,11 +150,63 @@ public class ConfirmationFragment extends Fragment {
     }
   }
 
+  private void clearImage() {
+    if (iv!=null) {
+      iv.setImageDrawable(null);
+    }
+  }
+
   private Contract getContract() {
     return((Contract)getActivity());
   }
 
+  /**
+   * Shows the thumbnail if it is ready, or a progress
+   * indicator while it is built in the background otherwise.
+   * If a ThumbnailProcessor is already building it, the
+   * background work just waits for that.
+   */
   private void loadImage() {
-    iv.setImageBitmap(imageContext.buildPreviewThumbnail());
+    Bitmap thumbnail=imageContext.getPreviewThumbnail();
+
+    if (thumbnail==null) {
+      iv.setImageDrawable(null);
+      progress.setVisibility(View.VISIBLE);
+      imageContext.onThumbnailsStarted();
+      new ThumbnailTask(imageContext).execute();
+    }
+    else {
+      showThumbnail(thumbnail);
+    }
+  }
+
+  private void showThumbnail(Bitmap thumbnail) {
+    progress.setVisibility(View.GONE);
+    iv.setImageBitmap(thumbnail);
+  }
+
+  private class ThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
+    private final ImageContext taskContext;
+
+    ThumbnailTask(ImageContext taskContext) {
+      this.taskContext=taskContext;
+    }
+
+    @Override
+    protected Bitmap doInBackground(Void... params) {
+      try {
+        return(taskContext.buildPreviewThumbnail());
+      }
+      finally {
+        taskContext.onThumbnailsFinished();
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Bitmap thumbnail) {
+      if (taskContext==imageContext && iv!=null) {
+        showThumbnail(thumbnail);
+      }
+    }
   }
 }
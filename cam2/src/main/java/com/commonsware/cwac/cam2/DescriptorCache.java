@@ -0,0 +1,294 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.os.Build;
+import com.commonsware.cwac.cam2.util.DurableFileWriter;
+import com.commonsware.cwac.cam2.util.Size;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk cache of the camera roster and capabilities that a
+ * CameraEngine collects in loadCameraDescriptors(), so that
+ * later launches of the app do not have to query (or, for the
+ * classic API, open) every camera again.
+ *
+ * The cache is a small binary file in the app's cache directory.
+ * It is keyed by Build.FINGERPRINT, so a firmware update, which
+ * might change camera capabilities, invalidates it. Engines
+ * still revalidate the cache in the background after using it,
+ * via revalidate().
+ */
+class DescriptorCache {
+  private static final int MAGIC=0x43574143; // "CWAC"
+  private static final int VERSION=1;
+  private final File file;
+  private final DurableFileWriter writer=
+      new DurableFileWriter(DurableFileWriter.Policy.noSync());
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param name the name of the cache file, unique per engine
+   */
+  DescriptorCache(Context ctxt, String name) {
+    this(new File(ctxt.getApplicationContext().getCacheDir(), name));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file the cache file
+   */
+  DescriptorCache(File file) {
+    this.file=file;
+  }
+
+  /**
+   * Reads the cache.
+   *
+   * @return the cached entries, or null if there is no cache,
+   * or it is from another build, or it cannot be read
+   */
+  List<Entry> load() {
+    if (!file.exists()) {
+      return(null);
+    }
+
+    DataInputStream in=null;
+
+    try {
+      in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      if (in.readInt()!=MAGIC || in.readInt()!=VERSION ||
+          !Build.FINGERPRINT.equals(in.readUTF())) {
+        return(null);
+      }
+
+      int count=in.readInt();
+      ArrayList<Entry> result=new ArrayList<Entry>(count);
+
+      for (int i=0;i<count;i++) {
+        String id=in.readUTF();
+        int facing=in.readInt();
+        ArrayList<Size> previewSizes=readSizes(in);
+        ArrayList<Size> pictureSizes=readSizes(in);
+        int[] pictureFormats=new int[in.readInt()];
+
+        for (int j=0;j<pictureFormats.length;j++) {
+          pictureFormats[j]=in.readInt();
+        }
+
+        result.add(new Entry(id, facing, previewSizes, pictureSizes,
+            pictureFormats));
+      }
+
+      return(result);
+    }
+    catch (IOException e) {
+      return(null);
+    }
+    finally {
+      if (in!=null) {
+        try {
+          in.close();
+        }
+        catch (IOException e) {
+          // nothing useful to do
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the cache contents.
+   *
+   * @param entries the entries to cache
+   * @throws IOException if there is a problem writing the file
+   */
+  void save(List<Entry> entries) throws IOException {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(bytes);
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(Build.FINGERPRINT);
+    out.writeInt(entries.size());
+
+    for (Entry entry : entries) {
+      out.writeUTF(entry.id);
+      out.writeInt(entry.facing);
+      writeSizes(out, entry.previewSizes);
+      writeSizes(out, entry.pictureSizes);
+      out.writeInt(entry.pictureFormats.length);
+
+      for (int format : entry.pictureFormats) {
+        out.writeInt(format);
+      }
+    }
+
+    out.flush();
+    writer.write(file, ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  /**
+   * Removes the cache file, so the next load() returns null.
+   */
+  void invalidate() {
+    file.delete();
+  }
+
+  /**
+   * Checks the cache against the hardware on a background
+   * thread. If the Loader finds something different from what
+   * was cached, the cache is rewritten (or, if the Loader returns
+   * null, removed) and the Loader is told via onStale().
+   *
+   * @param cached what was loaded from the cache
+   * @param loader how to find out what is really there
+   */
+  void revalidate(final List<Entry> cached, final Loader loader) {
+    Thread thread=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        List<Entry> fresh;
+
+        try {
+          fresh=loader.loadFresh(cached);
+        }
+        catch (Exception e) {
+          return;
+        }
+
+        if (fresh==null) {
+          invalidate();
+          loader.onStale(null);
+        }
+        else if (!fresh.equals(cached)) {
+          try {
+            save(fresh);
+          }
+          catch (IOException e) {
+            invalidate();
+          }
+
+          loader.onStale(fresh);
+        }
+      }
+    }, "CWAC-Cam2 DescriptorCache");
+
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  private static ArrayList<Size> readSizes(DataInputStream in)
+      throws IOException {
+    int count=in.readInt();
+    ArrayList<Size> result=new ArrayList<Size>(count);
+
+    for (int i=0;i<count;i++) {
+      result.add(new Size(in.readInt(), in.readInt()));
+    }
+
+    return(result);
+  }
+
+  private static void writeSizes(DataOutputStream out, List<Size> sizes)
+      throws IOException {
+    out.writeInt(sizes.size());
+
+    for (Size size : sizes) {
+      out.writeInt(size.getWidth());
+      out.writeInt(size.getHeight());
+    }
+  }
+
+  /**
+   * What is cached for one camera.
+   */
+  static class Entry {
+    final String id;
+    final int facing;
+    final ArrayList<Size> previewSizes;
+    final ArrayList<Size> pictureSizes;
+    final int[] pictureFormats;
+
+    Entry(String id, int facing, ArrayList<Size> previewSizes,
+          ArrayList<Size> pictureSizes, int[] pictureFormats) {
+      this.id=id;
+      this.facing=facing;
+      this.previewSizes=previewSizes;
+      this.pictureSizes=pictureSizes;
+      this.pictureFormats=pictureFormats;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return(false);
+      }
+
+      Entry other=(Entry)o;
+
+      return(id.equals(other.id) && facing==other.facing &&
+          previewSizes.equals(other.previewSizes) &&
+          pictureSizes.equals(other.pictureSizes) &&
+          Arrays.equals(pictureFormats, other.pictureFormats));
+    }
+
+    @Override
+    public int hashCode() {
+      return(id.hashCode()*31+facing);
+    }
+  }
+
+  /**
+   * Supplied by an engine to revalidate(), to find out what
+   * the cameras really look like.
+   */
+  interface Loader {
+    /**
+     * Called on a background thread.
+     *
+     * @param cached what was loaded from the cache
+     * @return the entries as they should be cached now, or null
+     * if the cache should simply be removed
+     * @throws Exception if there was a problem, in which case
+     * the cache is left alone
+     */
+    List<Entry> loadFresh(List<Entry> cached) throws Exception;
+
+    /**
+     * Called on a background thread when the cache turned out
+     * to be out of date.
+     *
+     * @param fresh the new cache contents, or null if the cache
+     *              was removed
+     */
+    void onStale(List<Entry> fresh);
+  }
+}
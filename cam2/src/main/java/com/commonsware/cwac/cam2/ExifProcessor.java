@@ -0,0 +1,105 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import com.commonsware.cwac.cam2.util.ExifRewriter;
+import com.commonsware.cwac.cam2.util.LosslessJpegRotator;
+import java.util.TimeZone;
+
+/**
+ * ImageProcessor that stamps metadata into the EXIF data of
+ * the picture, via ExifRewriter, without decoding it:
+ *
+ * - when the picture was taken, to the millisecond, based on
+ * the CaptureTimings of the picture
+ *
+ * - where the picture was taken, if the PictureTransaction
+ * has a PROP_LOCATION property (see location() on
+ * PictureTransaction.Builder)
+ *
+ * - the orientation, if the PictureTransaction has a
+ * rotation that a LosslessRotationProcessor was unable to
+ * apply
+ *
+ * Put this ahead of processors that want the picture as it
+ * will be written, such as ThumbnailProcessor, since changing
+ * the JPEG invalidates any thumbnails built so far.
+ */
+public class ExifProcessor extends AbstractImageProcessor {
+  /**
+   * Property for the Location at which the picture was taken.
+   */
+  public static final String PROP_LOCATION="location";
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   */
+  public ExifProcessor(Context ctxt) {
+    super(ctxt);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void process(PictureTransaction xact, ImageContext imageContext) {
+    ExifRewriter rewriter=new ExifRewriter();
+    Bundle props=xact.getProperties();
+
+    if (props.containsKey(LosslessRotationProcessor.PROP_DEGREES)) {
+      rewriter.setOrientation(LosslessJpegRotator.toOrientation(
+          props.getInt(LosslessRotationProcessor.PROP_DEGREES)));
+    }
+
+    Location location=props.getParcelable(PROP_LOCATION);
+
+    if (location!=null) {
+      rewriter.setGpsLocation(location.getLatitude(),
+          location.getLongitude(), location.getTime());
+
+      if (location.hasAltitude()) {
+        rewriter.setGpsAltitude(location.getAltitude());
+      }
+    }
+
+    CaptureTimings timings=imageContext.getTimings();
+
+    if (timings!=null) {
+      long takenMillis=timings.getWallClockMillis(CaptureTimings.Phase.SHUTTER);
+
+      if (takenMillis<0) {
+        takenMillis=
+            timings.getWallClockMillis(CaptureTimings.Phase.IMAGE_AVAILABLE);
+      }
+
+      if (takenMillis>=0) {
+        rewriter.setDateTimeOriginal(takenMillis, TimeZone.getDefault());
+      }
+    }
+
+    if (!rewriter.isEmpty()) {
+      byte[] jpeg=rewriter.rewrite(imageContext.getJpegBuffer());
+
+      if (jpeg!=null) {
+        imageContext.setJpeg(jpeg);
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Interface for a class that examines preview frames while the
+ * preview is running, such as a barcode scanner. Attach one to
+ * a CameraSession via a FrameAnalyzerPlugin.
+ */
+public interface FrameAnalyzer {
+  /**
+   * Examines a preview frame. This is called on a dedicated
+   * background thread, one frame at a time. While this is
+   * running, newer frames replace one another, so only the
+   * most recent one is handed over next; a slow analyzer
+   * simply sees fewer frames, without stalling the preview.
+   *
+   * The frame is only valid until this method returns. Copy
+   * out whatever you need to hold onto.
+   *
+   * @param frame the preview frame
+   */
+  void analyze(PreviewFrame frame);
+}
@@ -0,0 +1,251 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.util.Log;
+import com.commonsware.cwac.cam2.plugin.FrameAnalyzerPlugin;
+import com.commonsware.cwac.cam2.util.Size;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands preview frames to the FrameAnalyzerPlugins of a
+ * session, on a dedicated thread. Only one frame waits for
+ * that thread at a time: a newer frame replaces the waiting
+ * one, which is recycled right away (drop-oldest), so the
+ * camera never runs out of buffers because an analyzer is
+ * slow. Frames are only handed to analyzers whose frame rate
+ * limit allows it; frames that no analyzer wants are recycled
+ * without ever leaving the camera's thread.
+ */
+class FrameDispatcher {
+  private static final long SHUTDOWN_WAIT_MILLIS=500;
+  private final FrameAnalyzerPlugin[] analyzers;
+  private final long[] lastNanos;
+  private final boolean isDebug;
+  private final Thread thread;
+  private PreviewFrame pending=null;
+  private boolean isShutdown=false;
+  private long droppedFrames=0;
+
+  /**
+   * Finds the FrameAnalyzerPlugins in a session.
+   *
+   * @param session the session of interest
+   * @return the plugins, or null if there are none
+   */
+  static List<FrameAnalyzerPlugin> findAnalyzers(CameraSession session) {
+    ArrayList<FrameAnalyzerPlugin> result=null;
+
+    for (CameraPlugin plugin : session.getPlugins()) {
+      if (plugin instanceof FrameAnalyzerPlugin) {
+        if (result==null) {
+          result=new ArrayList<FrameAnalyzerPlugin>();
+        }
+
+        result.add((FrameAnalyzerPlugin)plugin);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * @param analyzers the FrameAnalyzerPlugins of a session
+   * @return the largest of their maximum frame sizes
+   */
+  static Size getMaxSize(List<FrameAnalyzerPlugin> analyzers) {
+    Size result=null;
+
+    for (FrameAnalyzerPlugin analyzer : analyzers) {
+      Size size=analyzer.getMaxSize();
+
+      if (result==null ||
+          (long)size.getWidth()*size.getHeight()>
+              (long)result.getWidth()*result.getHeight()) {
+        result=size;
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Constructor. Starts the analysis thread.
+   *
+   * @param analyzers the analyzers to receive frames
+   * @param isDebug true to log analyzer failures
+   */
+  FrameDispatcher(List<FrameAnalyzerPlugin> analyzers, boolean isDebug) {
+    this.analyzers=
+        analyzers.toArray(new FrameAnalyzerPlugin[analyzers.size()]);
+    this.lastNanos=new long[this.analyzers.length];
+    this.isDebug=isDebug;
+
+    for (int i=0;i<lastNanos.length;i++) {
+      lastNanos[i]=Long.MIN_VALUE;
+    }
+
+    thread=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, "CWAC-Cam2 FrameDispatcher");
+    thread.start();
+  }
+
+  /**
+   * Checks whether any analyzer is ready for a frame, so the
+   * engine can skip wrapping frames that nobody wants.
+   *
+   * @param nanos the current System.nanoTime()
+   * @return true if a frame arriving now would be analyzed
+   */
+  synchronized boolean isWanted(long nanos) {
+    if (isShutdown) {
+      return(false);
+    }
+
+    for (int i=0;i<analyzers.length;i++) {
+      if (isDue(i, nanos)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  /**
+   * Queues a frame for analysis, replacing (and recycling) any
+   * frame that is still waiting.
+   *
+   * @param frame the frame to analyze
+   */
+  void offer(PreviewFrame frame) {
+    PreviewFrame toRecycle;
+
+    synchronized(this) {
+      if (isShutdown) {
+        toRecycle=frame;
+      }
+      else {
+        toRecycle=pending;
+        pending=frame;
+
+        if (toRecycle!=null) {
+          droppedFrames++;
+        }
+
+        notifyAll();
+      }
+    }
+
+    if (toRecycle!=null) {
+      toRecycle.recycle();
+    }
+  }
+
+  /**
+   * @return the number of frames that were replaced by newer
+   * ones before an analyzer could get to them
+   */
+  synchronized long getDroppedFrameCount() {
+    return(droppedFrames);
+  }
+
+  /**
+   * Stops the analysis thread, recycling any waiting frame,
+   * and waits briefly for an analyzer that is in the middle
+   * of a frame to finish with it.
+   */
+  void shutdown() {
+    PreviewFrame toRecycle;
+
+    synchronized(this) {
+      isShutdown=true;
+      toRecycle=pending;
+      pending=null;
+      notifyAll();
+    }
+
+    if (toRecycle!=null) {
+      toRecycle.recycle();
+    }
+
+    try {
+      thread.join(SHUTDOWN_WAIT_MILLIS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void dispatch() {
+    while (true) {
+      PreviewFrame frame;
+      boolean[] due=new boolean[analyzers.length];
+
+      synchronized(this) {
+        while (pending==null && !isShutdown) {
+          try {
+            wait();
+          }
+          catch (InterruptedException e) {
+            // keep waiting, shutdown() will tell us when to stop
+          }
+        }
+
+        if (isShutdown) {
+          return;
+        }
+
+        frame=pending;
+        pending=null;
+
+        for (int i=0;i<analyzers.length;i++) {
+          due[i]=isDue(i, frame.getTimestampNanos());
+
+          if (due[i]) {
+            lastNanos[i]=frame.getTimestampNanos();
+          }
+        }
+      }
+
+      try {
+        for (int i=0;i<analyzers.length;i++) {
+          if (due[i]) {
+            try {
+              analyzers[i].getAnalyzer().analyze(frame);
+            }
+            catch (RuntimeException e) {
+              if (isDebug) {
+                Log.e(getClass().getSimpleName(), "Exception analyzing frame", e);
+              }
+            }
+          }
+        }
+      }
+      finally {
+        frame.recycle();
+      }
+    }
+  }
+
+  private boolean isDue(int i, long nanos) {
+    return(lastNanos[i]==Long.MIN_VALUE ||
+        nanos-lastNanos[i]>=analyzers[i].getMinIntervalNanos());
+  }
+}
@@ -17,6 +17,14 @@ package com.commonsware.cwac.cam2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+import com.commonsware.cwac.cam2.util.BitmapPool;
+import com.commonsware.cwac.cam2.util.BufferPool;
+import com.commonsware.cwac.cam2.util.JpegHeader;
+import com.commonsware.cwac.cam2.util.Size;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a picture taken by the camera, to be passed through
@@ -27,17 +35,86 @@ import android.graphics.BitmapFactory;
  * call getBitmap(true) to force creation of a Bitmap for those
  * JPEG bytes, but this is memory-intensive and should be avoided
  * where possible.
+ *
+ * The byte[] may be a recycled buffer that is larger than the
+ * JPEG itself, so use getJpegLength() to find out how many
+ * bytes of it are the picture. Call release() once you no
+ * longer need the picture, so the buffer can be recycled for
+ * a later picture.
+ *
+ * For a PictureTransaction that requested zero-copy, the
+ * ImageContext instead wraps the camera's own buffer. Use
+ * getJpegBuffer() to read it without copying it onto the Java
+ * heap. That buffer is only valid until the ImageProcessor chain
+ * finishes; calling getJpeg() before then copies the picture
+ * into a byte[] that remains valid afterwards. If nothing in the
+ * chain called getJpeg(), the picture is gone once the chain
+ * finishes, and getJpeg() throws an IllegalStateException.
+ *
+ * Bitmaps are decoded into recycled Bitmaps from the default
+ * BitmapPool where possible, and the Bitmaps from getBitmap()
+ * and buildPreviewThumbnail() go back to that pool once the
+ * picture is released or its JPEG data is replaced. Do not
+ * hold onto those Bitmaps past that point.
  */
 public class ImageContext {
-  private static final double LOG_2=Math.log(2.0d);
+  private static final int BYTES_PER_PIXEL=4; // ARGB_8888
+  private static final int MIN_PREVIEW_EMBEDDED_SIDE=640;
+  private static final int MIN_RESULT_EMBEDDED_SIDE=160;
+  private static final float MAX_ASPECT_RATIO_DIFFERENCE=0.05f;
   private Context ctxt;
   private byte[] jpeg;
+  private ByteBuffer jpegBuffer;
+  private Closeable jpegBufferSource;
+  private boolean isZeroCopy=false;
+  private int jpegLength;
+  private BufferPool pool;
+  private boolean isChainComplete=false;
+  private boolean isReleaseRequested=false;
+  private volatile CaptureTimings timings=null;
   private Bitmap bmp;
-  private Bitmap thumbnail;
+  private volatile Bitmap thumbnail;
+  private volatile Bitmap resultThumbnail;
+  private final Object thumbnailLock=new Object();
+  private int pendingThumbnails=0;
 
   ImageContext(Context ctxt, byte[] jpeg) {
+    this(ctxt, jpeg, jpeg.length, null);
+  }
+
+  /**
+   * Constructor for an ImageContext holding a copy of the
+   * picture. ctxt may be null off-device, such as in
+   * benchmarks, so long as nothing calls getContext() or
+   * decodes the picture.
+   */
+  ImageContext(Context ctxt, byte[] jpeg, int jpegLength,
+               BufferPool pool) {
+    this.ctxt=(ctxt==null ? null : ctxt.getApplicationContext());
+    this.jpeg=jpeg;
+    this.jpegLength=jpegLength;
+    this.pool=pool;
+  }
+
+  /**
+   * Constructor for a zero-copy ImageContext.
+   *
+   * @param ctxt any Context will do
+   * @param jpegBuffer the JPEG data, from its position to its
+   *                   limit
+   * @param source what to close once the ImageProcessor chain
+   *               is done with jpegBuffer
+   * @param pool where to get a byte[] from, should somebody
+   *             call getJpeg()
+   */
+  ImageContext(Context ctxt, ByteBuffer jpegBuffer, Closeable source,
+               BufferPool pool) {
     this.ctxt=ctxt.getApplicationContext();
-    setJpeg(jpeg);
+    this.jpegBuffer=jpegBuffer.slice();
+    this.jpegBufferSource=source;
+    this.jpegLength=this.jpegBuffer.remaining();
+    this.pool=pool;
+    this.isZeroCopy=true;
   }
 
   /**
@@ -49,10 +126,65 @@ public class ImageContext {
   }
 
   /**
-   * @return the byte[] of JPEG-encoded data for the picture
+   * @return the byte[] of JPEG-encoded data for the picture,
+   * which may be longer than the JPEG itself (see
+   * getJpegLength()), or null if the picture was released
+   * @throws IllegalStateException if this is a zero-copy
+   * picture whose buffer went back to the camera when the
+   * ImageProcessor chain finished, without being copied
    */
   public byte[] getJpeg() {
-    return(jpeg);
+    Closeable toClose=null;
+    byte[] result;
+
+    synchronized(this) {
+      if (jpeg==null && jpegBuffer!=null) {
+        ByteBuffer src=jpegBuffer.duplicate();
+
+        jpeg=(pool==null ? new byte[jpegLength] : pool.acquire(jpegLength));
+        src.get(jpeg, 0, jpegLength);
+        jpegBuffer=null;
+        toClose=jpegBufferSource;
+        jpegBufferSource=null;
+      }
+      else if (jpeg==null && isZeroCopy && !isReleaseRequested) {
+        throw new IllegalStateException("Zero-copy buffer was returned to the camera when the chain completed, without being copied");
+      }
+
+      result=jpeg;
+    }
+
+    closeQuietly(toClose);
+
+    return(result);
+  }
+
+  /**
+   * Returns a read-only view on the JPEG-encoded data, from
+   * position 0 to a limit of getJpegLength(). Each call returns
+   * an independent view, so callers do not interfere with one
+   * another's position. For a zero-copy picture, this is a view
+   * on the camera's buffer, and it is only valid until the
+   * ImageProcessor chain is done.
+   *
+   * @return a read-only ByteBuffer holding the JPEG
+   */
+  public ByteBuffer getJpegBuffer() {
+    synchronized(this) {
+      if (jpegBuffer!=null) {
+        return(jpegBuffer.asReadOnlyBuffer());
+      }
+    }
+
+    return(ByteBuffer.wrap(getJpeg(), 0, jpegLength).asReadOnlyBuffer());
+  }
+
+  /**
+   * @return the number of bytes, starting at index 0 of
+   * getJpeg(), that hold the JPEG-encoded data
+   */
+  public int getJpegLength() {
+    return(jpegLength);
   }
 
   /**
@@ -61,9 +193,156 @@ public class ImageContext {
    * @param jpeg the new JPEG data
    */
   public void setJpeg(byte[] jpeg) {
-    this.jpeg=jpeg;
-    this.bmp=null;
-    this.thumbnail=null;
+    setJpeg(jpeg, jpeg.length);
+  }
+
+  /**
+   * Updates the JPEG data, invalidating any previous Bitmap.
+   * If the previous JPEG data came from a recycled buffer, that
+   * buffer is returned for recycling, so do not hold onto it.
+   *
+   * @param jpeg the new JPEG data
+   * @param jpegLength the number of bytes of jpeg, starting
+   *                   at index 0, that hold the JPEG-encoded data
+   */
+  public void setJpeg(byte[] jpeg, int jpegLength) {
+    Bitmap oldBmp;
+    Bitmap oldThumbnail;
+    Bitmap oldResultThumbnail;
+    byte[] old;
+    BufferPool oldPool;
+    Closeable toClose;
+
+    synchronized(this) {
+      old=this.jpeg;
+      oldPool=this.pool;
+      toClose=jpegBufferSource;
+      this.jpeg=jpeg;
+      this.jpegLength=jpegLength;
+      this.pool=null;
+      this.jpegBuffer=null;
+      this.jpegBufferSource=null;
+      this.isZeroCopy=false;
+    }
+
+    synchronized(thumbnailLock) {
+      oldBmp=bmp;
+      oldThumbnail=thumbnail;
+      oldResultThumbnail=resultThumbnail;
+      bmp=null;
+      thumbnail=null;
+      resultThumbnail=null;
+    }
+
+    closeQuietly(toClose);
+    recycleBitmaps(oldBmp, oldThumbnail, oldResultThumbnail);
+
+    if (oldPool!=null && old!=null && old!=jpeg) {
+      oldPool.release(old);
+    }
+  }
+
+  /**
+   * Indicates that you no longer need the JPEG data, so its
+   * buffer can be recycled for a later picture. If the
+   * PictureTransaction is still running processors on this
+   * picture, the buffer is recycled once they finish. Do not use
+   * getJpeg() after calling this, and do not use Bitmaps from
+   * getBitmap() or buildPreviewThumbnail() once the picture
+   * has been recycled, as they go back to the BitmapPool.
+   */
+  public void release() {
+    synchronized(this) {
+      isReleaseRequested=true;
+    }
+
+    recycleIfDone();
+  }
+
+  CaptureTimings getTimings() {
+    return(timings);
+  }
+
+  void setTimings(CaptureTimings timings) {
+    this.timings=timings;
+  }
+
+  /**
+   * Called by the CameraEngine once every ImageProcessor
+   * has finished with this picture. For a zero-copy picture,
+   * this closes the camera's buffer.
+   */
+  void onChainComplete() {
+    Closeable toClose;
+
+    synchronized(this) {
+      isChainComplete=true;
+      toClose=jpegBufferSource;
+      jpegBufferSource=null;
+      jpegBuffer=null;
+    }
+
+    closeQuietly(toClose);
+    recycleIfDone();
+  }
+
+  private void recycleIfDone() {
+    byte[] toRecycle=null;
+    BufferPool recycleTo=null;
+    boolean isDone;
+
+    synchronized(this) {
+      isDone=isChainComplete && isReleaseRequested &&
+          pendingThumbnails==0;
+
+      if (isDone && pool!=null) {
+        toRecycle=jpeg;
+        recycleTo=pool;
+        jpeg=null;
+        jpegLength=0;
+        pool=null;
+      }
+    }
+
+    if (recycleTo!=null && toRecycle!=null) {
+      recycleTo.release(toRecycle);
+    }
+
+    if (isDone) {
+      Bitmap oldBmp;
+      Bitmap oldThumbnail;
+      Bitmap oldResultThumbnail;
+
+      synchronized(thumbnailLock) {
+        oldBmp=bmp;
+        oldThumbnail=thumbnail;
+        oldResultThumbnail=resultThumbnail;
+        bmp=null;
+        thumbnail=null;
+        resultThumbnail=null;
+      }
+
+      recycleBitmaps(oldBmp, oldThumbnail, oldResultThumbnail);
+    }
+  }
+
+  private static void recycleBitmaps(Bitmap... bitmaps) {
+    BitmapPool bitmapPool=BitmapPool.getDefault();
+
+    for (Bitmap bitmap : bitmaps) {
+      bitmapPool.release(bitmap);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable!=null) {
+      try {
+        closeable.close();
+      }
+      catch (IOException e) {
+        // nothing useful to do about it
+      }
+    }
   }
 
   /**
@@ -76,63 +355,228 @@ public class ImageContext {
    * @return the Bitmap rendition of the picture
    */
   public Bitmap getBitmap(boolean force) {
-    if (bmp==null && force) {
-      updateBitmap();
-    }
+    synchronized(thumbnailLock) {
+      if (bmp==null && force) {
+        updateBitmap();
+      }
 
-    return(bmp);
+      return(bmp);
+    }
   }
 
+  /**
+   * Builds a thumbnail suitable for showing the picture on the
+   * screen, such as in ConfirmationFragment. The thumbnail is
+   * cached, so later calls are cheap. The first call decodes
+   * the picture, so avoid calling this on the main application
+   * thread; add a ThumbnailProcessor to the PictureTransaction
+   * to have it built in the background.
+   *
+   * @return the thumbnail
+   */
   public Bitmap buildPreviewThumbnail() {
-    // TODO: move this into PictureTransaction work somewhere, so done
-    // on a background thread
+    synchronized(thumbnailLock) {
+      if (thumbnail==null) {
+        thumbnail=createThumbnail(2000000, MIN_PREVIEW_EMBEDDED_SIDE);
+      }
 
-    if (thumbnail==null) {
-      thumbnail=createThumbnail(200000.0d, null, 2000000);
+      return(thumbnail);
     }
+  }
 
-    return(thumbnail);
+  /**
+   * @return the thumbnail built by buildPreviewThumbnail(), or
+   * null if it has not been built (yet)
+   */
+  public Bitmap getPreviewThumbnail() {
+    synchronized(thumbnailLock) {
+      return(thumbnail);
+    }
   }
 
+  /**
+   * Builds a small thumbnail suitable for returning in the
+   * "data" extra of an ACTION_IMAGE_CAPTURE result. As with
+   * buildPreviewThumbnail(), the thumbnail is cached, and the
+   * first call decodes the picture.
+   *
+   * @return the thumbnail
+   */
   public Bitmap buildResultThumbnail() {
-    // TODO: move this onto background thread
+    synchronized(thumbnailLock) {
+      if (resultThumbnail==null) {
+        resultThumbnail=createThumbnail(950000, MIN_RESULT_EMBEDDED_SIDE);
+      }
+
+      return(resultThumbnail);
+    }
+  }
+
+  /**
+   * Builds the result thumbnail, as does buildResultThumbnail(),
+   * but hands it off to the caller, so it does not go back to
+   * the BitmapPool when the picture is released. Use this for
+   * a thumbnail that will outlive the picture, such as one
+   * put into a result Intent.
+   *
+   * @return the thumbnail
+   */
+  Bitmap detachResultThumbnail() {
+    synchronized(thumbnailLock) {
+      Bitmap result=buildResultThumbnail();
 
-    return(createThumbnail(100000.0d, null, 950000));
+      resultThumbnail=null;
+
+      return(result);
+    }
   }
 
-  private Bitmap createThumbnail(double jpegLengthGuess, Bitmap inBitmap, int limit) {
-    double ratio=(double)jpeg.length / jpegLengthGuess;
-    int inSampleSize;
+  /**
+   * Called when a ThumbnailProcessor starts building thumbnails
+   * in the background, so the JPEG buffer is not recycled out
+   * from under it.
+   */
+  void onThumbnailsStarted() {
+    synchronized(this) {
+      pendingThumbnails++;
+    }
+  }
 
-    if (ratio > 1.0d) {
-      inSampleSize=1 << (int)(Math.ceil(Math.log(ratio) / LOG_2));
-    } else {
-      inSampleSize=1;
+  /**
+   * Called when a ThumbnailProcessor is done building
+   * thumbnails.
+   */
+  void onThumbnailsFinished() {
+    synchronized(this) {
+      pendingThumbnails--;
     }
 
-    return(createThumbnail(inSampleSize, inBitmap, limit));
+    recycleIfDone();
   }
 
-  private Bitmap createThumbnail(int inSampleSize, Bitmap inBitmap, int limit) {
-    BitmapFactory.Options opts=new BitmapFactory.Options();
+  /**
+   * Uses the thumbnail embedded in the EXIF data, if it is big
+   * enough and has the same aspect ratio as the picture.
+   * Otherwise, decodes the JPEG once, at the power-of-two
+   * sample size that fits the limit, working from the
+   * dimensions in the JPEG's SOF segment (or, failing that, a
+   * bounds-only decode).
+   */
+  private Bitmap createThumbnail(int limit, int minEmbeddedSide) {
+    Size size=getSize();
+    Bitmap embedded=decodeExifThumbnail(size, limit, minEmbeddedSide);
+
+    if (embedded!=null) {
+      return(embedded);
+    }
+
+    int sampleSize=JpegHeader.computeSampleSize(size.getWidth(),
+        size.getHeight(), BYTES_PER_PIXEL, limit);
+
+    return(decode(getJpeg(), jpegLength, size, sampleSize));
+  }
+
+  /**
+   * @return the embedded EXIF thumbnail, decoded, or null if
+   * there is none that will do
+   */
+  private Bitmap decodeExifThumbnail(Size size, int limit,
+                                     int minEmbeddedSide) {
+    ByteBuffer exifThumbnail=JpegHeader.findExifThumbnail(getJpegBuffer());
+
+    if (exifThumbnail==null) {
+      return(null);
+    }
+
+    Size thumbSize=JpegHeader.readSize(exifThumbnail);
+
+    if (thumbSize==null ||
+        Math.max(thumbSize.getWidth(), thumbSize.getHeight())<minEmbeddedSide ||
+        (long)thumbSize.getWidth()*thumbSize.getHeight()*BYTES_PER_PIXEL>limit) {
+      return(null);
+    }
+
+    // some cameras letterbox the thumbnail into a fixed size
+    // (e.g., 160x120 for a 16:9 picture), so skip those
+
+    float ratio=(float)size.getWidth()/size.getHeight();
+    float thumbRatio=(float)thumbSize.getWidth()/thumbSize.getHeight();
+
+    if (Math.abs(ratio-thumbRatio)>MAX_ASPECT_RATIO_DIFFERENCE) {
+      return(null);
+    }
+
+    byte[] bytes=new byte[exifThumbnail.remaining()];
 
-    opts.inSampleSize=inSampleSize;
-    opts.inBitmap=inBitmap;
+    exifThumbnail.get(bytes);
 
-    Bitmap result=BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+    return(decode(bytes, bytes.length, thumbSize, 1));
+  }
 
-    if (result.getByteCount()>limit) {
-      return(createThumbnail(inSampleSize+1, inBitmap, limit));
+  /**
+   * @return the dimensions of the picture, as encoded (i.e.,
+   * ignoring any EXIF orientation)
+   */
+  private Size getSize() {
+    Size result=JpegHeader.readSize(getJpegBuffer());
+
+    if (result==null) {
+      BitmapFactory.Options opts=new BitmapFactory.Options();
+
+      opts.inJustDecodeBounds=true;
+      BitmapFactory.decodeByteArray(getJpeg(), 0, jpegLength, opts);
+      result=new Size(opts.outWidth, opts.outHeight);
     }
 
     return(result);
   }
 
   private void updateBitmap() {
+    bmp=decode(getJpeg(), jpegLength, getSize(), 1);
+  }
+
+  /**
+   * Decodes a JPEG into a mutable Bitmap, reusing one from the
+   * BitmapPool if there is a suitable one. Before API Level 19,
+   * BitmapFactory only reuses Bitmaps when not sampling, so we
+   * do not bother with the pool there if we are sampling.
+   *
+   * @param bytes the JPEG data
+   * @param length the number of bytes of JPEG data
+   * @param size the dimensions of the JPEG
+   * @param sampleSize the inSampleSize to use
+   * @return the decoded Bitmap
+   */
+  private static Bitmap decode(byte[] bytes, int length, Size size,
+                               int sampleSize) {
     BitmapFactory.Options opts=new BitmapFactory.Options();
+    BitmapPool bitmapPool=BitmapPool.getDefault();
+
+    opts.inSampleSize=sampleSize;
+    opts.inMutable=true;
+
+    if (sampleSize<=1 ||
+        Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+      // round up, so the recycled Bitmap is sure to be big enough
 
-    opts.inBitmap=bmp;
+      opts.inBitmap=bitmapPool.acquire(
+          (size.getWidth()+sampleSize-1)/sampleSize,
+          (size.getHeight()+sampleSize-1)/sampleSize,
+          Bitmap.Config.ARGB_8888);
+    }
+
+    if (opts.inBitmap!=null) {
+      try {
+        return(BitmapFactory.decodeByteArray(bytes, 0, length, opts));
+      }
+      catch (IllegalArgumentException e) {
+        // BitmapFactory did not like the recycled Bitmap after all
+
+        bitmapPool.release(opts.inBitmap);
+        opts.inBitmap=null;
+      }
+    }
 
-    bmp=BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+    return(BitmapFactory.decodeByteArray(bytes, 0, length, opts));
   }
 }
@@ -0,0 +1,326 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staged executor for the ImageProcessor chain of a
+ * PictureTransaction. Consecutive processors with the same
+ * ImageProcessor.Stage are grouped into a run, and each run
+ * is executed on the executor for its stage. Only so many
+ * pictures can be in the stages at once; when they are full,
+ * new pictures wait, in order, on an admission thread of the
+ * pipeline until a picture leaves. process() itself never
+ * blocks, as it is called on whatever thread delivered the
+ * picture, such as the camera's handler thread, which also
+ * delivers the camera's other callbacks.
+ * Hand-offs from one stage to the next never block, as a worker
+ * of one stage waiting on a full queue of another stage, whose
+ * workers are waiting on it in turn, would deadlock.
+ *
+ * Within one transaction, runs execute in order. Across
+ * transactions, the CPU runs of one picture can overlap with
+ * the I/O runs of the previous one. The I/O executor is
+ * single-threaded, so writes do not compete with one another
+ * for the storage device.
+ */
+class ImagePipeline {
+  private static final int CPU_POOL_SIZE=
+      Runtime.getRuntime().availableProcessors();
+  private static final int IO_POOL_SIZE=1;
+  private static final int MAX_WAITING=4;
+  private static final int MAX_IN_FLIGHT=CPU_POOL_SIZE+MAX_WAITING;
+  private static final int KEEP_ALIVE_SECONDS=60;
+  private final ThreadPoolExecutor cpu=
+      buildExecutor(CPU_POOL_SIZE);
+  private final ThreadPoolExecutor io=
+      buildExecutor(IO_POOL_SIZE);
+  private final ThreadPoolExecutor admission=buildExecutor(1);
+  private final Semaphore inFlight=new Semaphore(MAX_IN_FLIGHT, true);
+  private final CameraEngine engine;
+  private int jobCount=0;
+  private boolean isShutdown=false;
+
+  ImagePipeline(CameraEngine engine) {
+    this.engine=engine;
+  }
+
+  /**
+   * Runs the processors of the transaction against the
+   * picture. Returns immediately; if the pipeline is full, the
+   * picture waits for a picture already in the pipeline to
+   * finish. Posts a PictureTakenEvent once the last Stage.CPU
+   * processor finishes, and a PictureCompletedEvent once every
+   * processor finishes. If a processor fails, the events not yet
+   * posted are posted with the exception, so a
+   * PictureCompletedEvent always follows.
+   *
+   * @param xact the transaction whose processors should run
+   * @param imageContext the picture to process
+   */
+  void process(PictureTransaction xact, ImageContext imageContext) {
+    List<Run> runs=new ArrayList<Run>();
+    Run current=null;
+    int lastCpuRun=-1;
+
+    for (ImageProcessor processor : xact.getProcessors()) {
+      ImageProcessor.Stage stage=getStage(processor);
+
+      if (current==null || current.stage!=stage) {
+        current=new Run(stage);
+        runs.add(current);
+      }
+
+      current.processors.add(processor);
+
+      if (stage==ImageProcessor.Stage.CPU) {
+        lastCpuRun=runs.size()-1;
+      }
+    }
+
+    final Job job=new Job(xact, imageContext, runs, lastCpuRun);
+
+    synchronized(this) {
+      if (isShutdown) {
+        job.fail(new RejectedExecutionException("Pipeline is shut down"),
+            false);
+
+        return;
+      }
+
+      jobCount++;
+    }
+
+    try {
+      admission.execute(new Runnable() {
+        @Override
+        public void run() {
+          job.admit();
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      job.fail(e, true);
+    }
+  }
+
+  /**
+   * Stops accepting new pictures. Pictures already in the
+   * pipeline are allowed to finish, after which the executors
+   * are shut down. Since runs can hand off from either stage to
+   * the other, neither executor can be shut down while a
+   * picture is still in the pipeline.
+   */
+  void shutdown() {
+    synchronized(this) {
+      isShutdown=true;
+
+      if (jobCount>0) {
+        return;
+      }
+    }
+
+    stopExecutors();
+  }
+
+  /**
+   * Stops accepting new pictures, then blocks until pictures
+   * already in the pipeline have finished, including I/O runs
+   * that are handed off from CPU runs along the way (and vice
+   * versa).
+   */
+  void shutdownAndWait() {
+    shutdown();
+
+    try {
+      admission.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      cpu.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      io.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void onJobFinished(Job job) {
+    if (job.hasPermit) {
+      inFlight.release();
+    }
+
+    synchronized(this) {
+      jobCount--;
+
+      if (!isShutdown || jobCount>0) {
+        return;
+      }
+    }
+
+    stopExecutors();
+  }
+
+  private void stopExecutors() {
+    admission.shutdown();
+    cpu.shutdown();
+    io.shutdown();
+  }
+
+  private ThreadPoolExecutor getExecutor(ImageProcessor.Stage stage) {
+    return(stage==ImageProcessor.Stage.IO ? io : cpu);
+  }
+
+  private static ImageProcessor.Stage getStage(ImageProcessor processor) {
+    if (processor instanceof ImageProcessor.Staged) {
+      ImageProcessor.Stage result=
+          ((ImageProcessor.Staged)processor).getStage();
+
+      if (result!=null) {
+        return(result);
+      }
+    }
+
+    return(ImageProcessor.Stage.CPU);
+  }
+
+  private static ThreadPoolExecutor buildExecutor(int poolSize) {
+    ThreadPoolExecutor result=new ThreadPoolExecutor(poolSize, poolSize,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+
+    result.allowCoreThreadTimeOut(true);
+
+    return(result);
+  }
+
+  private static class Run {
+    final ImageProcessor.Stage stage;
+    final ArrayList<ImageProcessor> processors=
+        new ArrayList<ImageProcessor>();
+
+    Run(ImageProcessor.Stage stage) {
+      this.stage=stage;
+    }
+  }
+
+  private class Job implements Runnable {
+    private final PictureTransaction xact;
+    private final ImageContext imageContext;
+    private final List<Run> runs;
+    private final int lastCpuRun;
+    private int index=0;
+    private boolean takenPosted=false;
+    private boolean hasPermit=false;
+
+    Job(PictureTransaction xact, ImageContext imageContext,
+        List<Run> runs, int lastCpuRun) {
+      this.xact=xact;
+      this.imageContext=imageContext;
+      this.runs=runs;
+      this.lastCpuRun=lastCpuRun;
+    }
+
+    /**
+     * Waits, on the admission thread, for room in the pipeline,
+     * then starts the first run.
+     */
+    void admit() {
+      try {
+        inFlight.acquire();
+        hasPermit=true;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(e, true);
+
+        return;
+      }
+
+      if (lastCpuRun<0) {
+        postTaken();
+      }
+
+      next();
+    }
+
+    @Override
+    public void run() {
+      Run run=runs.get(index);
+
+      try {
+        for (ImageProcessor processor : run.processors) {
+          xact.runProcessor(processor, imageContext);
+        }
+      }
+      catch (RuntimeException e) {
+        fail(e, true);
+
+        return;
+      }
+
+      if (index==lastCpuRun) {
+        postTaken();
+      }
+
+      index++;
+      next();
+    }
+
+    void next() {
+      if (index<runs.size()) {
+        try {
+          getExecutor(runs.get(index).stage).execute(this);
+        }
+        catch (RejectedExecutionException e) {
+          fail(e, true);
+        }
+      }
+      else {
+        imageContext.onChainComplete();
+        engine.getBus().post(new CameraEngine.PictureCompletedEvent(imageContext));
+        onJobFinished(this);
+      }
+    }
+
+    void postTaken() {
+      takenPosted=true;
+      engine.getBus().post(new CameraEngine.PictureTakenEvent(imageContext));
+    }
+
+    /**
+     * @param e what went wrong
+     * @param isInFlight true if the job was accepted by
+     *                   process(), false if it was turned away
+     */
+    void fail(Exception e, boolean isInFlight) {
+      imageContext.onChainComplete();
+
+      if (!takenPosted) {
+        engine.getBus().post(new CameraEngine.PictureTakenEvent(e));
+      }
+
+      engine.getBus().post(new CameraEngine.PictureCompletedEvent(e));
+
+      if (isInFlight) {
+        onJobFinished(this);
+      }
+    }
+  }
+}
@@ -21,6 +21,36 @@ package com.commonsware.cwac.cam2;
  * needs writing to.
  */
 public interface ImageProcessor {
+  /**
+   * The kind of work that an ImageProcessor performs. When the
+   * CameraEngine is pipelined, this determines which executor
+   * runs the processor.
+   */
+  enum Stage {
+    /**
+     * In-memory work, such as transforming the JPEG or
+     * building a Bitmap
+     */
+    CPU,
+
+    /**
+     * Persistence work, such as writing the JPEG to storage
+     */
+    IO
+  }
+
+  /**
+   * Optional interface for an ImageProcessor to declare its
+   * Stage. Processors that do not implement this interface are
+   * treated as Stage.CPU.
+   */
+  interface Staged {
+    /**
+     * @return the Stage of work that this processor performs
+     */
+    Stage getStage();
+  }
+
   /**
    * Manipulate the picture indicated by the ImageContext.
    * Properties for configuring this particular bit of image
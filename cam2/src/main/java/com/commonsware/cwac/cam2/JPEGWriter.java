@@ -17,14 +17,23 @@ package com.commonsware.cwac.cam2;
 import android.content.Context;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import com.commonsware.cwac.cam2.util.BufferPool;
+import com.commonsware.cwac.cam2.util.DurableFileWriter;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * ImageProcessor that writes a JPEG file out to some form
  * of local storage. At present, it supports writing out to a
  * local filesystem path.
+ *
+ * Files are written to a temporary file and renamed into place,
+ * synced as dictated by the durability policy of the CameraEngine
+ * (see setDurabilityPolicy() on CameraEngine).
  */
 public class JPEGWriter extends AbstractImageProcessor {
   /**
@@ -42,6 +51,9 @@ public class JPEGWriter extends AbstractImageProcessor {
    */
   public static final String PROP_UPDATE_MEDIA_STORE="update";
 
+  private static final DurableFileWriter DEFAULT_FILE_WRITER=
+      new DurableFileWriter(DurableFileWriter.Policy.syncPerFile());
+
   /**
    * {@inheritDoc}
    */
@@ -60,6 +72,18 @@ public class JPEGWriter extends AbstractImageProcessor {
    * {@inheritDoc}
    */
   @Override
+  public Stage getStage() {
+    return(Stage.IO);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * If the CameraEngine has write-behind enabled, this copies
+   * the JPEG and hands it to the engine's WriteBehindQueue,
+   * returning before the picture is written.
+   */
+  @Override
   public void process(PictureTransaction xact, ImageContext imageContext) {
     Uri output=xact.getProperties().getParcelable(PROP_OUTPUT);
     boolean updateMediaStore=xact
@@ -67,36 +91,134 @@ public class JPEGWriter extends AbstractImageProcessor {
         .getBoolean(PROP_UPDATE_MEDIA_STORE, false);
 
     if (output!=null) {
+      CameraEngine engine=xact.getEngine();
+      WriteBehindQueue queue=
+          (engine==null ? null : engine.getWriteBehindQueue());
+
+      if (queue!=null) {
+        BufferPool pool=engine.getBufferPool();
+        int length=imageContext.getJpegLength();
+        byte[] copy=pool.acquire(length);
+
+        imageContext.getJpegBuffer().get(copy, 0, length);
+
+        if (queue.enqueue(new QueuedWrite(engine, imageContext.getContext(),
+            output, updateMediaStore, copy, length, xact.getTimings()))) {
+          return;
+        }
+
+        pool.release(copy);
+      }
+
       try {
-        if (output.getScheme().equals("file")) {
-          String path=output.getPath();
-          File f=new File(path);
+        boolean isDurable=write(imageContext.getContext(),
+            getFileWriter(xact), output, updateMediaStore,
+            imageContext.getJpegBuffer());
+
+        markWritten(xact.getTimings(), isDurable);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Exception when trying to write JPEG", e);
+      }
+    }
+  }
 
-          f.getParentFile().mkdirs();
+  private static DurableFileWriter getFileWriter(PictureTransaction xact) {
+    CameraEngine engine=xact.getEngine();
 
-          FileOutputStream fos=new FileOutputStream(f);
+    return(engine==null ? DEFAULT_FILE_WRITER : engine.getFileWriter());
+  }
 
-          fos.write(imageContext.getJpeg());
-          fos.flush();
-          fos.getFD().sync();
-          fos.close();
+  private static void markWritten(CaptureTimings timings,
+                                  boolean isDurable) {
+    if (timings!=null) {
+      timings.mark(CaptureTimings.Phase.FILE_WRITTEN);
 
-          if (updateMediaStore) {
-            MediaScannerConnection.scanFile(imageContext.getContext(),
-                new String[]{path}, new String[]{"image/jpeg"},
-                null);
-          }
-        }
-        else {
-          OutputStream out=getContext().getContentResolver().openOutputStream(output);
+      if (isDurable) {
+        timings.mark(CaptureTimings.Phase.FILE_DURABLE);
+      }
+    }
+  }
 
-          out.write(imageContext.getJpeg());
-          out.flush();
-          out.close();
+  /**
+   * @return true if the picture is known to be on the storage
+   * device, false otherwise
+   */
+  private static boolean write(Context ctxt, DurableFileWriter fileWriter,
+                               Uri output, boolean updateMediaStore,
+                               ByteBuffer jpeg) throws IOException {
+    if (output.getScheme().equals("file")) {
+      String path=output.getPath();
+
+      fileWriter.write(new File(path), jpeg);
+
+      if (updateMediaStore) {
+        MediaScannerConnection.scanFile(ctxt,
+            new String[]{path}, new String[]{"image/jpeg"},
+            null);
+      }
+
+      return(fileWriter.getPolicy()==DurableFileWriter.Policy.syncPerFile());
+    }
+    else {
+      OutputStream out=ctxt.getContentResolver().openOutputStream(output);
+
+      try {
+        WritableByteChannel channel=Channels.newChannel(out);
+
+        while (jpeg.hasRemaining()) {
+          channel.write(jpeg);
         }
+
+        out.flush();
+      }
+      finally {
+        out.close();
+      }
+    }
+
+    return(false);
+  }
+
+  private static class QueuedWrite extends WriteBehindQueue.Write {
+    private final CameraEngine engine;
+    private final Context ctxt;
+    private final Uri output;
+    private final boolean updateMediaStore;
+    private final byte[] jpeg;
+    private final int length;
+    private final CaptureTimings timings;
+    private boolean isDurable=false;
+
+    QueuedWrite(CameraEngine engine, Context ctxt, Uri output,
+                boolean updateMediaStore, byte[] jpeg, int length,
+                CaptureTimings timings) {
+      super(length);
+      this.timings=timings;
+      this.engine=engine;
+      this.ctxt=ctxt;
+      this.output=output;
+      this.updateMediaStore=updateMediaStore;
+      this.jpeg=jpeg;
+      this.length=length;
+    }
+
+    @Override
+    void write() throws Exception {
+      isDurable=JPEGWriter.write(ctxt, engine.getFileWriter(), output,
+          updateMediaStore, ByteBuffer.wrap(jpeg, 0, length));
+    }
+
+    @Override
+    void onWritten(Exception e) {
+      engine.getBufferPool().release(jpeg);
+
+      if (e==null) {
+        markWritten(timings, isDurable);
+        engine.getBus().post(new CameraEngine.PictureWrittenEvent(output));
       }
-      catch (Exception e) {
-        throw new UnsupportedOperationException("Exception when trying to write JPEG", e);
+      else {
+        engine.getBus().post(new CameraEngine.PictureWrittenEvent(e));
       }
     }
   }
@@ -0,0 +1,92 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import com.commonsware.cwac.cam2.util.JpegHeader;
+import com.commonsware.cwac.cam2.util.LosslessJpegRotator;
+
+/**
+ * ImageProcessor that rotates the picture so it is the right
+ * way up, losslessly, via LosslessJpegRotator. The rotation
+ * comes from the PROP_DEGREES property of the
+ * PictureTransaction, which CameraController fills in when it
+ * is set to use lossless rotation. Failing that, the EXIF
+ * orientation of the picture is used, for cameras that just
+ * tag the picture rather than rotating it.
+ *
+ * Put this ahead of other processors in the chain, so they
+ * see the rotated picture. If the picture cannot be rotated
+ * (e.g., it is not a baseline JPEG), it is left alone.
+ */
+public class LosslessRotationProcessor extends AbstractImageProcessor {
+  /**
+   * Property for the clockwise rotation, in degrees, to apply.
+   * Once the picture is rotated, this is set to 0; if it
+   * cannot be rotated, it is left alone, so an ExifProcessor
+   * later in the chain can tag the picture with the rotation
+   * instead.
+   */
+  public static final String PROP_DEGREES="degrees";
+  private final boolean trim;
+
+  /**
+   * Constructor. Any partial MCU that cannot be rotated
+   * losslessly is trimmed off.
+   *
+   * @param ctxt any Context will do
+   */
+  public LosslessRotationProcessor(Context ctxt) {
+    this(ctxt, true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param trim true to trim off a partial MCU (up to 15 pixels)
+   *             along an edge that cannot be rotated losslessly,
+   *             false to leave such pictures alone
+   */
+  public LosslessRotationProcessor(Context ctxt, boolean trim) {
+    super(ctxt);
+    this.trim=trim;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void process(PictureTransaction xact, ImageContext imageContext) {
+    int degrees=xact.getProperties().getInt(PROP_DEGREES, -1);
+
+    if (degrees<0) {
+      degrees=LosslessJpegRotator.toDegrees(
+          JpegHeader.readOrientation(imageContext.getJpegBuffer()));
+    }
+
+    if (degrees<=0) {
+      return;
+    }
+
+    byte[] rotated=LosslessJpegRotator.rotate(imageContext.getJpegBuffer(),
+        degrees, trim);
+
+    if (rotated!=null) {
+      imageContext.setJpeg(rotated);
+      xact.getProperties().putInt(PROP_DEGREES, 0);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import com.commonsware.cwac.cam2.util.Utils;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Decides what size of picture a camera should take. Capture,
+ * encoding, and writing all take longer the more pixels there
+ * are, so if you do not need full-resolution pictures, pick a
+ * strategy that asks for fewer of them.
+ *
+ * Strategies are Serializable, so they can be passed to
+ * CameraActivity via its IntentBuilder.
+ */
+public interface PictureSizeStrategy extends Serializable {
+  /**
+   * Picks the picture size for a camera.
+   *
+   * @param camera the camera that will take the pictures
+   * @param previewSize the preview size chosen for the camera
+   * @return one of the camera's picture sizes, or null if it
+   * has none
+   */
+  Size choosePictureSize(CameraDescriptor camera, Size previewSize);
+
+  /**
+   * Picks the largest picture size, by area. This is the
+   * default.
+   */
+  class Largest implements PictureSizeStrategy {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+      return(Utils.getLargestPictureSize(camera));
+    }
+  }
+
+  /**
+   * Picks the smallest picture size whose longer side is at
+   * least a given number of pixels, or the largest picture size
+   * if none are that big. This is what CameraController uses
+   * for setDownscale().
+   */
+  class SmallestAtLeast implements PictureSizeStrategy {
+    private final int minSide;
+
+    /**
+     * Constructor.
+     *
+     * @param minSide the minimum length of the longer side, in
+     *                pixels
+     */
+    public SmallestAtLeast(int minSide) {
+      this.minSide=minSide;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+      return(Utils.getSmallestPictureSizeAtLeast(camera, minSide));
+    }
+  }
+
+  /**
+   * Picks the picture size whose pixel count is closest to a
+   * given number of megapixels, preferring the larger size in
+   * case of a tie.
+   */
+  class ClosestToMegapixels implements PictureSizeStrategy {
+    private final float megapixels;
+
+    /**
+     * Constructor.
+     *
+     * @param megapixels the desired number of megapixels (e.g.,
+     *                   2.0f for 2 million pixels)
+     */
+    public ClosestToMegapixels(float megapixels) {
+      this.megapixels=megapixels;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+      double target=megapixels*1000000.0;
+      Size result=null;
+      long resultArea=0;
+      double resultDistance=0;
+
+      for (Size size : camera.getPictureSizes()) {
+        long area=(long)size.getWidth()*size.getHeight();
+        double distance=Math.abs(area-target);
+
+        if (result==null || distance<resultDistance ||
+            (distance==resultDistance && area>resultArea)) {
+          result=size;
+          resultArea=area;
+          resultDistance=distance;
+        }
+      }
+
+      return(result);
+    }
+  }
+
+  /**
+   * Picks the largest picture size whose aspect ratio is
+   * closest to that of the preview, so the picture shows what
+   * the user saw, without the camera cropping the sensor
+   * differently for the preview and the picture.
+   */
+  class ClosestAspectRatio implements PictureSizeStrategy {
+    private static final double TOLERANCE=0.01;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+      List<Size> sizes=camera.getPictureSizes();
+
+      if (previewSize==null) {
+        return(Utils.getLargestPictureSize(camera));
+      }
+
+      double target=getAspectRatio(previewSize);
+      double bestDistance=Double.MAX_VALUE;
+
+      for (Size size : sizes) {
+        bestDistance=
+            Math.min(bestDistance, Math.abs(getAspectRatio(size)-target));
+      }
+
+      // among the sizes with (nearly) the best aspect ratio,
+      // take the biggest
+
+      Size result=null;
+      long resultArea=0;
+
+      for (Size size : sizes) {
+        long area=(long)size.getWidth()*size.getHeight();
+        double distance=Math.abs(getAspectRatio(size)-target);
+
+        if (distance<=bestDistance+TOLERANCE &&
+            (result==null || area>resultArea)) {
+          result=size;
+          resultArea=area;
+        }
+      }
+
+      return(result);
+    }
+
+    private static double getAspectRatio(Size size) {
+      return((double)size.getWidth()/size.getHeight());
+    }
+  }
+
+  /**
+   * Picks the largest picture size that, once decoded into a
+   * Bitmap, fits within a given number of bytes, or the
+   * smallest picture size if none do. Use this to keep
+   * pictures that you will decode from running the app out of
+   * heap.
+   */
+  class MaxBytes implements PictureSizeStrategy {
+    private static final int ARGB_8888_BYTES_PER_PIXEL=4;
+    private final long maxBytes;
+    private final int bytesPerPixel;
+
+    /**
+     * Constructor, for pictures that will be decoded into
+     * ARGB_8888 Bitmaps.
+     *
+     * @param maxBytes the most bytes that a decoded picture
+     *                 may take up
+     */
+    public MaxBytes(long maxBytes) {
+      this(maxBytes, ARGB_8888_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes the most bytes that a decoded picture
+     *                 may take up
+     * @param bytesPerPixel the number of bytes that each pixel
+     *                      takes up when decoded
+     */
+    public MaxBytes(long maxBytes, int bytesPerPixel) {
+      this.maxBytes=maxBytes;
+      this.bytesPerPixel=bytesPerPixel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Size choosePictureSize(CameraDescriptor camera, Size previewSize) {
+      Size largestFit=null;
+      long largestFitArea=0;
+      Size smallest=null;
+      long smallestArea=0;
+
+      for (Size size : camera.getPictureSizes()) {
+        long area=(long)size.getWidth()*size.getHeight();
+
+        if (area*bytesPerPixel<=maxBytes &&
+            (largestFit==null || area>largestFitArea)) {
+          largestFit=size;
+          largestFitArea=area;
+        }
+
+        if (smallest==null || area<smallestArea) {
+          smallest=size;
+          smallestArea=area;
+        }
+      }
+
+      return(largestFit==null ? smallest : largestFit);
+    }
+  }
+}
@@ -15,10 +15,12 @@
 package com.commonsware.cwac.cam2;
 
 import android.content.Context;
+import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class encapsulating the information needed to take a picture
@@ -27,7 +29,10 @@ import java.util.ArrayList;
  */
 public class PictureTransaction {
   private ArrayList<ImageProcessor> processors=new ArrayList<ImageProcessor>();
-  private Bundle props=new Bundle();
+  private Bundle props=null;
+  private boolean isZeroCopy=false;
+  private CameraEngine engine=null;
+  private CaptureTimings timings=null;
 
   private PictureTransaction() {
     // use the builder, please
@@ -35,12 +40,58 @@ public class PictureTransaction {
 
   ImageContext process(ImageContext imageContext) {
     for (ImageProcessor processor : processors) {
-      processor.process(this, imageContext);
+      runProcessor(processor, imageContext);
     }
 
     return(imageContext);
   }
 
+  void runProcessor(ImageProcessor processor, ImageContext imageContext) {
+    CaptureTimings.ProcessorTiming timing=
+        (timings==null ? null : timings.onProcessorStart(processor));
+
+    try {
+      processor.process(this, imageContext);
+    }
+    finally {
+      if (timing!=null) {
+        timings.onProcessorEnd(timing);
+      }
+    }
+  }
+
+  /**
+   * @return the timings of the picture being taken for this
+   * transaction, or null if it is not being taken by an engine
+   */
+  CaptureTimings getTimings() {
+    return(timings);
+  }
+
+  void setTimings(CaptureTimings timings) {
+    this.timings=timings;
+  }
+
+  /**
+   * @return the engine that took the picture, or null if
+   * the transaction is not being processed by an engine
+   */
+  CameraEngine getEngine() {
+    return(engine);
+  }
+
+  void setEngine(CameraEngine engine) {
+    this.engine=engine;
+  }
+
+  boolean isZeroCopy() {
+    return(isZeroCopy);
+  }
+
+  List<ImageProcessor> getProcessors() {
+    return(processors);
+  }
+
   ImageProcessor findProcessorByTag(String tag) {
     for (ImageProcessor processor : processors) {
       if (processor.getTag().equals(tag)) {
@@ -60,9 +111,30 @@ public class PictureTransaction {
    * @return the properties Bundle
    */
   public Bundle getProperties() {
+    if (props==null) {
+      props=new Bundle();
+    }
+
     return(props);
   }
 
+  /**
+   * Supplies a PictureTransaction for each picture of a burst,
+   * taken via takeBurst() on CameraEngine.
+   */
+  public interface Factory {
+    /**
+     * Called as each picture of the burst arrives, in order.
+     * Typically, each picture should have its own output
+     * destination (e.g., a distinct file).
+     *
+     * @param index the position of the picture in the burst,
+     *              starting at 0
+     * @return the PictureTransaction for that picture
+     */
+    PictureTransaction buildTransaction(int index);
+  }
+
   /**
    * Builder class to create an instance of a PictureTransaction.
    */
@@ -89,6 +161,47 @@ public class PictureTransaction {
       return(this);
     }
 
+    /**
+     * Requests that the picture be handed to the ImageProcessor
+     * chain in the camera's own buffer, rather than being copied
+     * onto the Java heap first. Processors should use
+     * getJpegBuffer() on the ImageContext to avoid the copy.
+     * The camera's buffer is given back once the chain is done,
+     * so once the PictureTakenEvent or PictureCompletedEvent
+     * is raised, the JPEG data is only available if some
+     * processor called getJpeg() along the way; otherwise,
+     * getJpeg() throws an IllegalStateException. Hence, this is
+     * best used when a processor like JPEGWriter is responsible
+     * for the picture. Engines that cannot support zero-copy
+     * ignore this request.
+     *
+     * @return the Builder, for more API calls
+     */
+    public Builder zeroCopy() {
+      result.isZeroCopy=true;
+
+      return(this);
+    }
+
+    /**
+     * Indicates where the picture was taken, to be recorded in
+     * its EXIF data. Adds an ExifProcessor to the start of the
+     * chain, if there is not one already.
+     *
+     * @param ctxt any Context will do
+     * @param location where the picture was taken
+     * @return the Builder, for more API calls
+     */
+    public Builder location(Context ctxt, Location location) {
+      if (result.findProcessorByTag(ExifProcessor.class.getCanonicalName())==null) {
+        result.processors.add(0, new ExifProcessor(ctxt));
+      }
+
+      result.getProperties().putParcelable(ExifProcessor.PROP_LOCATION, location);
+
+      return(this);
+    }
+
     /**
      * Indicates that the picture should be written to the
      * designated filesystem path. Use the two-parameter
@@ -0,0 +1,136 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * Fixed ring of preallocated preview buffers for the classic
+ * camera API, handed to the camera via addCallbackBuffer(), so
+ * per-frame work does not allocate a byte array per frame the
+ * way setPreviewCallback() does. Buffers are sized from the
+ * configured preview size and format. Once a consumer is done
+ * with a frame, recycle() hands its buffer back to the camera.
+ *
+ * When every buffer is out with consumers, the camera has
+ * nowhere to put the next frame and silently drops it. The
+ * ring estimates how many frames were dropped that way, from
+ * how long it ran dry and the preview frame rate.
+ */
+class PreviewBufferRing implements PreviewFrame.Recycler {
+  private final Camera camera;
+  private final int width;
+  private final int height;
+  private final long frameIntervalNanos;
+  private int buffersInCamera=0;
+  private long dryStartNanos=-1;
+  private long droppedFrames=0;
+
+  /**
+   * Constructor. Allocates the buffers and hands them to the
+   * camera.
+   *
+   * @param camera the camera, already configured
+   * @param params the camera's current parameters
+   * @param count the number of buffers
+   */
+  PreviewBufferRing(Camera camera, Camera.Parameters params, int count) {
+    Camera.Size size=params.getPreviewSize();
+    int[] fpsRange=new int[2];
+
+    params.getPreviewFpsRange(fpsRange);
+
+    this.camera=camera;
+    this.width=size.width;
+    this.height=size.height;
+    this.frameIntervalNanos=
+        1000000000L*1000/fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+
+    int bufferSize=width*height*
+        ImageFormat.getBitsPerPixel(params.getPreviewFormat())/8;
+
+    for (int i=0;i<count;i++) {
+      camera.addCallbackBuffer(new byte[bufferSize]);
+    }
+
+    buffersInCamera=count;
+  }
+
+  /**
+   * @return the width of the preview frames
+   */
+  int getWidth() {
+    return(width);
+  }
+
+  /**
+   * @return the height of the preview frames
+   */
+  int getHeight() {
+    return(height);
+  }
+
+  /**
+   * Notes that the camera has handed us a buffer, filled with
+   * a preview frame. Call from onPreviewFrame().
+   */
+  synchronized void onFrameReceived() {
+    buffersInCamera--;
+
+    if (buffersInCamera==0) {
+      dryStartNanos=System.nanoTime();
+    }
+  }
+
+  /**
+   * Hands a buffer back to the camera.
+   *
+   * @param buffer a buffer from onPreviewFrame()
+   */
+  void recycle(byte[] buffer) {
+    synchronized(this) {
+      if (dryStartNanos>=0) {
+        droppedFrames+=(System.nanoTime()-dryStartNanos)/frameIntervalNanos;
+        dryStartNanos=-1;
+      }
+
+      buffersInCamera++;
+    }
+
+    try {
+      camera.addCallbackBuffer(buffer);
+    }
+    catch (RuntimeException e) {
+      // camera was released, so the buffer is no longer needed
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void recycle(PreviewFrame frame) {
+    recycle(frame.getData());
+  }
+
+  /**
+   * @return the estimated number of preview frames that the
+   * camera dropped because no buffer was free
+   */
+  synchronized long getDroppedFrameCount() {
+    return(droppedFrames);
+  }
+}
@@ -0,0 +1,163 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.Build;
+import java.nio.ByteBuffer;
+
+/**
+ * A preview frame, handed to a FrameAnalyzer. Frames from
+ * CameraTwoEngine wrap a YUV_420_888 Image; frames from
+ * ClassicCameraEngine wrap an NV21 byte array. Either way,
+ * getLuminance() offers the Y (grayscale) plane, which is all
+ * that many analyzers need.
+ */
+public class PreviewFrame {
+  /**
+   * Returns a frame's memory to its source, once the frame
+   * has been analyzed (or dropped).
+   */
+  interface Recycler {
+    void recycle(PreviewFrame frame);
+  }
+
+  private final int width;
+  private final int height;
+  private final int format;
+  private final long timestampNanos;
+  private final Image image;
+  private final byte[] data;
+  private final Recycler recycler;
+
+  /**
+   * Constructor, for CameraTwoEngine.
+   *
+   * @param image a YUV_420_888 image
+   * @param timestampNanos when the frame arrived, in
+   *                       System.nanoTime() terms
+   * @param recycler what to do with the frame once it is
+   *                 no longer needed
+   */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  PreviewFrame(Image image, long timestampNanos, Recycler recycler) {
+    this.width=image.getWidth();
+    this.height=image.getHeight();
+    this.format=image.getFormat();
+    this.timestampNanos=timestampNanos;
+    this.image=image;
+    this.data=null;
+    this.recycler=recycler;
+  }
+
+  /**
+   * Constructor, for ClassicCameraEngine.
+   *
+   * @param data an NV21 frame
+   * @param width the width of the frame
+   * @param height the height of the frame
+   * @param timestampNanos when the frame arrived, in
+   *                       System.nanoTime() terms
+   * @param recycler what to do with the frame once it is
+   *                 no longer needed
+   */
+  PreviewFrame(byte[] data, int width, int height, long timestampNanos,
+               Recycler recycler) {
+    this.width=width;
+    this.height=height;
+    this.format=ImageFormat.NV21;
+    this.timestampNanos=timestampNanos;
+    this.image=null;
+    this.data=data;
+    this.recycler=recycler;
+  }
+
+  /**
+   * @return the width of the frame, in pixels
+   */
+  public int getWidth() {
+    return(width);
+  }
+
+  /**
+   * @return the height of the frame, in pixels
+   */
+  public int getHeight() {
+    return(height);
+  }
+
+  /**
+   * @return the ImageFormat of the frame, either
+   * ImageFormat.YUV_420_888 or ImageFormat.NV21
+   */
+  public int getFormat() {
+    return(format);
+  }
+
+  /**
+   * @return when the frame arrived, in System.nanoTime() terms
+   */
+  public long getTimestampNanos() {
+    return(timestampNanos);
+  }
+
+  /**
+   * @return the Image behind this frame, for frames from
+   * CameraTwoEngine, or null otherwise. Do not close it.
+   */
+  public Image getImage() {
+    return(image);
+  }
+
+  /**
+   * @return the NV21 bytes behind this frame, for frames from
+   * ClassicCameraEngine, or null otherwise
+   */
+  public byte[] getData() {
+    return(data);
+  }
+
+  /**
+   * @return the Y (luminance) plane, one byte per pixel, in
+   * rows getLuminanceRowStride() bytes apart
+   */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public ByteBuffer getLuminance() {
+    if (image!=null) {
+      return(image.getPlanes()[0].getBuffer().asReadOnlyBuffer());
+    }
+
+    return(ByteBuffer.wrap(data, 0, width*height).asReadOnlyBuffer());
+  }
+
+  /**
+   * @return the number of bytes from the start of one row of
+   * getLuminance() to the start of the next
+   */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public int getLuminanceRowStride() {
+    if (image!=null) {
+      return(image.getPlanes()[0].getRowStride());
+    }
+
+    return(width);
+  }
+
+  void recycle() {
+    recycler.recycle(this);
+  }
+}
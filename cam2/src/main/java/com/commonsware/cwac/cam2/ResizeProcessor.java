@@ -0,0 +1,367 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import com.commonsware.cwac.cam2.util.BitmapPool;
+import com.commonsware.cwac.cam2.util.ExifRewriter;
+import com.commonsware.cwac.cam2.util.JpegHeader;
+import com.commonsware.cwac.cam2.util.LosslessJpegRotator;
+import com.commonsware.cwac.cam2.util.Size;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ImageProcessor that scales the picture down so its longer
+ * side is no more than a given number of pixels, re-encoding
+ * it at a given JPEG quality. Pictures that are already small
+ * enough are left alone.
+ *
+ * The picture is decoded at the largest power-of-two reduction
+ * that is still at least as big as the result, which the JPEG
+ * decoder does while decoding (in the DCT domain), without
+ * building the full-size Bitmap. A filtered scale then takes it
+ * the rest of the way, into a Bitmap from the BitmapPool.
+ *
+ * If the picture needs to be rotated (per the PROP_DEGREES
+ * property of LosslessRotationProcessor, or the EXIF
+ * orientation), that rotation is applied as part of the scale,
+ * for free, and PROP_DEGREES is set to 0. The EXIF segment of
+ * the original picture is copied into the result, with the
+ * pixel dimensions updated and, if the picture was rotated,
+ * the orientation reset and the embedded thumbnail dropped.
+ *
+ * CameraController puts this at the start of the chain when it
+ * is set to downscale pictures, so later processors work with
+ * the smaller picture.
+ */
+public class ResizeProcessor extends AbstractImageProcessor {
+  /**
+   * The JPEG quality used by default, on a 0-100 scale.
+   */
+  public static final int DEFAULT_QUALITY=90;
+  private static final int SOI_LENGTH=2;
+  private final int maxSide;
+  private final int quality;
+
+  /**
+   * Constructor. Pictures are re-encoded at DEFAULT_QUALITY.
+   *
+   * @param ctxt any Context will do
+   * @param maxSide the maximum length of the longer side of
+   *                the picture, in pixels
+   */
+  public ResizeProcessor(Context ctxt, int maxSide) {
+    this(ctxt, maxSide, DEFAULT_QUALITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param maxSide the maximum length of the longer side of
+   *                the picture, in pixels
+   * @param quality the JPEG quality to re-encode at, on a
+   *                0-100 scale
+   */
+  public ResizeProcessor(Context ctxt, int maxSide, int quality) {
+    super(ctxt);
+
+    if (maxSide<=0) {
+      throw new IllegalArgumentException("maxSide must be positive");
+    }
+
+    if (quality<0 || quality>100) {
+      throw new IllegalArgumentException("quality must be from 0 to 100");
+    }
+
+    this.maxSide=maxSide;
+    this.quality=quality;
+  }
+
+  /**
+   * @return the maximum length of the longer side of the
+   * picture, in pixels
+   */
+  public int getMaxSide() {
+    return(maxSide);
+  }
+
+  /**
+   * @return the JPEG quality that pictures are re-encoded at
+   */
+  public int getQuality() {
+    return(quality);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void process(PictureTransaction xact, ImageContext imageContext) {
+    // BitmapFactory needs a byte[], so copy a zero-copy picture
+    // up front, rather than have the decode pull the camera's
+    // buffer out from under us
+
+    byte[] jpeg=imageContext.getJpeg();
+    ByteBuffer original=imageContext.getJpegBuffer();
+    Size size=JpegHeader.readSize(original);
+
+    if (size==null) {
+      BitmapFactory.Options opts=new BitmapFactory.Options();
+
+      opts.inJustDecodeBounds=true;
+      BitmapFactory.decodeByteArray(jpeg, 0, imageContext.getJpegLength(),
+          opts);
+      size=new Size(opts.outWidth, opts.outHeight);
+    }
+
+    int longSide=Math.max(size.getWidth(), size.getHeight());
+
+    if (size.getWidth()<=0 || size.getHeight()<=0 || longSide<=maxSide) {
+      return;
+    }
+
+    int degrees=xact.getProperties()
+        .getInt(LosslessRotationProcessor.PROP_DEGREES, -1);
+
+    if (degrees<0) {
+      degrees=LosslessJpegRotator.toDegrees(
+          JpegHeader.readOrientation(original));
+    }
+
+    // flips (and anything else odd) stay in the EXIF orientation
+
+    if (degrees<0) {
+      degrees=0;
+    }
+
+    int sampleSize=1;
+
+    while (longSide/(sampleSize*2)>=maxSide) {
+      sampleSize*=2;
+    }
+
+    int width=Math.max(1,
+        Math.round((float)size.getWidth()*maxSide/longSide));
+    int height=Math.max(1,
+        Math.round((float)size.getHeight()*maxSide/longSide));
+    BitmapPool bitmapPool=BitmapPool.getDefault();
+    Bitmap decoded=decode(imageContext, size, sampleSize, bitmapPool);
+    Bitmap scaled=decoded;
+
+    if (decoded==null) {
+      return;
+    }
+
+    if (degrees!=0 || decoded.getWidth()!=width ||
+        decoded.getHeight()!=height) {
+      scaled=scale(decoded, width, height, degrees, bitmapPool);
+      bitmapPool.release(decoded);
+    }
+
+    int resultWidth=scaled.getWidth();
+    int resultHeight=scaled.getHeight();
+    ExposedByteArrayOutputStream out=
+        new ExposedByteArrayOutputStream(width*height/4);
+
+    scaled.compress(Bitmap.CompressFormat.JPEG, quality, out);
+    bitmapPool.release(scaled);
+
+    byte[] result=addExif(original, out.getBuffer(), out.size(),
+        resultWidth, resultHeight, degrees!=0);
+
+    if (result==null) {
+      imageContext.setJpeg(out.getBuffer(), out.size());
+    }
+    else {
+      imageContext.setJpeg(result);
+    }
+
+    if (degrees!=0) {
+      xact.getProperties().putInt(LosslessRotationProcessor.PROP_DEGREES, 0);
+    }
+  }
+
+  /**
+   * Decodes the picture at the given sample size, reusing a
+   * Bitmap from the BitmapPool if there is a suitable one.
+   * Before API Level 19, BitmapFactory only reuses Bitmaps when
+   * not sampling, so we only bother with the pool on newer
+   * devices.
+   */
+  private static Bitmap decode(ImageContext imageContext, Size size,
+                               int sampleSize, BitmapPool bitmapPool) {
+    BitmapFactory.Options opts=new BitmapFactory.Options();
+    byte[] jpeg=imageContext.getJpeg();
+    int length=imageContext.getJpegLength();
+
+    opts.inSampleSize=sampleSize;
+    opts.inMutable=true;
+
+    if (sampleSize<=1 ||
+        Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+      opts.inBitmap=bitmapPool.acquire(
+          (size.getWidth()+sampleSize-1)/sampleSize,
+          (size.getHeight()+sampleSize-1)/sampleSize,
+          Bitmap.Config.ARGB_8888);
+    }
+
+    if (opts.inBitmap!=null) {
+      try {
+        return(BitmapFactory.decodeByteArray(jpeg, 0, length, opts));
+      }
+      catch (IllegalArgumentException e) {
+        // BitmapFactory did not like the recycled Bitmap after all
+
+        bitmapPool.release(opts.inBitmap);
+        opts.inBitmap=null;
+      }
+    }
+
+    return(BitmapFactory.decodeByteArray(jpeg, 0, length, opts));
+  }
+
+  /**
+   * Scales (and rotates) the decoded picture, with filtering,
+   * into a Bitmap from the BitmapPool, or a fresh one if the
+   * pool has nothing suitable.
+   *
+   * @param width the width of the result, before rotation
+   * @param height the height of the result, before rotation
+   */
+  private static Bitmap scale(Bitmap decoded, int width, int height,
+                              int degrees, BitmapPool bitmapPool) {
+    boolean swap=(degrees==90 || degrees==270);
+    int resultWidth=(swap ? height : width);
+    int resultHeight=(swap ? width : height);
+    Bitmap result=acquire(resultWidth, resultHeight, bitmapPool);
+    Matrix matrix=new Matrix();
+    RectF bounds=new RectF(0, 0, decoded.getWidth(), decoded.getHeight());
+
+    matrix.setScale((float)width/decoded.getWidth(),
+        (float)height/decoded.getHeight());
+    matrix.postRotate(degrees);
+    matrix.mapRect(bounds);
+    matrix.postTranslate(-bounds.left, -bounds.top);
+
+    result.eraseColor(Color.BLACK);
+    new Canvas(result).drawBitmap(decoded, matrix,
+        new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+
+    return(result);
+  }
+
+  /**
+   * Gets a Bitmap of exactly the requested size from the
+   * BitmapPool, reconfiguring a bigger one on API Level 19+,
+   * or creates one if the pool has nothing suitable.
+   */
+  private static Bitmap acquire(int width, int height,
+                                BitmapPool bitmapPool) {
+    Bitmap result=
+        bitmapPool.acquire(width, height, Bitmap.Config.ARGB_8888);
+
+    if (result!=null &&
+        (result.getWidth()!=width || result.getHeight()!=height ||
+            result.getConfig()!=Bitmap.Config.ARGB_8888)) {
+      if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+        reconfigure(result, width, height);
+      }
+      else {
+        bitmapPool.release(result);
+        result=null;
+      }
+    }
+
+    if (result==null) {
+      result=Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    return(result);
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static void reconfigure(Bitmap bitmap, int width, int height) {
+    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /**
+   * Copies the EXIF segment of the original picture into the
+   * re-encoded one, right after its SOI marker, then updates
+   * the pixel dimensions and, if the picture was rotated, the
+   * orientation.
+   *
+   * @return the re-encoded picture with the EXIF segment, or
+   * null if the original had none
+   */
+  private static byte[] addExif(ByteBuffer original, byte[] encoded,
+                                int encodedLength, int width, int height,
+                                boolean rotated) {
+    ByteBuffer exif=JpegHeader.findExifSegment(original);
+
+    if (exif==null || encodedLength<SOI_LENGTH) {
+      return(null);
+    }
+
+    byte[] spliced=new byte[encodedLength+exif.remaining()];
+    int exifLength=exif.remaining();
+
+    System.arraycopy(encoded, 0, spliced, 0, SOI_LENGTH);
+    exif.get(spliced, SOI_LENGTH, exifLength);
+    System.arraycopy(encoded, SOI_LENGTH, spliced, SOI_LENGTH+exifLength,
+        encodedLength-SOI_LENGTH);
+
+    ExifRewriter rewriter=new ExifRewriter()
+        .setLong(ExifRewriter.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION,
+            width)
+        .setLong(ExifRewriter.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION,
+            height);
+
+    // the embedded thumbnail is in the old orientation
+
+    if (rotated) {
+      rewriter.setOrientation(1).removeThumbnail();
+    }
+
+    byte[] result=rewriter.rewrite(ByteBuffer.wrap(spliced));
+
+    return(result==null ? spliced : result);
+  }
+
+  /**
+   * ByteArrayOutputStream that hands over its buffer, rather
+   * than copying it as toByteArray() does.
+   */
+  private static class ExposedByteArrayOutputStream
+      extends ByteArrayOutputStream {
+    ExposedByteArrayOutputStream(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return(buf);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.os.Process;
+import de.greenrobot.event.EventBus;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ImageProcessor that builds the thumbnails of the picture in
+ * the background, so they are ready by the time the UI wants
+ * them, without decoding the picture on the main application
+ * thread. The thumbnails are built on a dedicated background
+ * thread, so the rest of the chain (and the PictureTakenEvent)
+ * does not wait for them; a ThumbnailReadyEvent is raised once
+ * they are cached in the ImageContext, or once building them
+ * has failed.
+ */
+public class ThumbnailProcessor extends AbstractImageProcessor {
+  private static ExecutorService executor=null;
+  private final boolean buildPreview;
+  private final boolean buildResult;
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param buildPreview true to build the thumbnail from
+   *                     buildPreviewThumbnail() on ImageContext
+   * @param buildResult true to build the thumbnail from
+   *                    buildResultThumbnail() on ImageContext
+   */
+  public ThumbnailProcessor(Context ctxt, boolean buildPreview,
+                            boolean buildResult) {
+    super(ctxt);
+    this.buildPreview=buildPreview;
+    this.buildResult=buildResult;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void process(PictureTransaction xact,
+                      final ImageContext imageContext) {
+    final CameraEngine engine=xact.getEngine();
+
+    // make sure we have our own copy of a zero-copy picture,
+    // as the camera's buffer goes away when the chain is done
+
+    imageContext.getJpeg();
+    imageContext.onThumbnailsStarted();
+
+    getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        Throwable failure=null;
+
+        try {
+          if (buildPreview) {
+            imageContext.buildPreviewThumbnail();
+          }
+
+          if (buildResult) {
+            imageContext.buildResultThumbnail();
+          }
+        }
+        catch (RuntimeException e) {
+          failure=e;
+        }
+        catch (OutOfMemoryError e) {
+          failure=e;
+        }
+        finally {
+          imageContext.onThumbnailsFinished();
+        }
+
+        ThumbnailReadyEvent event=
+            new ThumbnailReadyEvent(imageContext, failure);
+
+        if (engine==null) {
+          EventBus.getDefault().post(event);
+        }
+        else {
+          engine.getBus().post(event);
+        }
+      }
+    });
+  }
+
+  synchronized private static ExecutorService getExecutor() {
+    if (executor==null) {
+      executor=Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread result=new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "CWAC-Cam2 ThumbnailProcessor");
+
+          result.setDaemon(true);
+
+          return(result);
+        }
+      });
+    }
+
+    return(executor);
+  }
+
+  /**
+   * Event raised when the thumbnails requested of a
+   * ThumbnailProcessor are ready, or could not be built. A
+   * thumbnail is null if the picture could not be decoded.
+   */
+  public static class ThumbnailReadyEvent {
+    private final ImageContext imageContext;
+    private final Throwable failure;
+
+    ThumbnailReadyEvent(ImageContext imageContext, Throwable failure) {
+      this.imageContext=imageContext;
+      this.failure=failure;
+    }
+
+    /**
+     * @return the picture whose thumbnails are ready
+     */
+    public ImageContext getImageContext() {
+      return(imageContext);
+    }
+
+    /**
+     * @return what went wrong building the thumbnails (e.g.,
+     * running out of memory), or null if nothing did
+     */
+    public Throwable getFailure() {
+      return(failure);
+    }
+  }
+}
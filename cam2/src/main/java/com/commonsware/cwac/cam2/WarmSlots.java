@@ -0,0 +1,241 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds open cameras that are not in use right now, keyed by
+ * camera ID, so that a later open() can reuse one rather than
+ * opening the camera from scratch. Each parked camera is
+ * released after an idle timeout, if nobody takes it first.
+ * When more cameras are parked than there are slots, the
+ * longest-parked one is released. All methods are thread-safe.
+ *
+ * @param <T> the type representing an open camera
+ */
+class WarmSlots<T> {
+  /**
+   * Releases a camera that is no longer wanted.
+   *
+   * @param <T> the type representing an open camera
+   */
+  interface Releaser<T> {
+    void release(T camera);
+  }
+
+  private final Releaser<T> releaser;
+  private final LinkedHashMap<String, Slot<T>> slots=
+      new LinkedHashMap<String, Slot<T>>();
+  private int maxSlots;
+  private ScheduledExecutorService timer=null;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSlots how many cameras can be parked at once
+   * @param releaser how to release a camera
+   */
+  WarmSlots(int maxSlots, Releaser<T> releaser) {
+    this.maxSlots=maxSlots;
+    this.releaser=releaser;
+  }
+
+  /**
+   * Changes how many cameras can be parked at once, releasing
+   * the longest-parked ones if there are now too many.
+   *
+   * @param maxSlots how many cameras can be parked at once
+   */
+  void setMaxSlots(int maxSlots) {
+    synchronized(this) {
+      this.maxSlots=maxSlots;
+    }
+
+    trim();
+  }
+
+  /**
+   * Parks an open camera.
+   *
+   * @param id the camera's ID
+   * @param camera the open camera
+   * @param timeoutMillis how long to keep it open, if nobody
+   *                      takes it
+   */
+  void park(final String id, final T camera, long timeoutMillis) {
+    T replaced=null;
+
+    synchronized(this) {
+      Slot<T> old=slots.remove(id);
+
+      if (old!=null) {
+        old.expiry.cancel(false);
+        replaced=old.camera;
+      }
+
+      ScheduledFuture<?> expiry=getTimer().schedule(new Runnable() {
+        @Override
+        public void run() {
+          expire(id, camera);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+      slots.put(id, new Slot<T>(camera, expiry));
+    }
+
+    if (replaced!=null && replaced!=camera) {
+      releaser.release(replaced);
+    }
+
+    trim();
+  }
+
+  /**
+   * Takes a parked camera out of its slot.
+   *
+   * @param id the camera's ID
+   * @return the open camera, or null if that camera is not
+   * parked
+   */
+  synchronized T take(String id) {
+    Slot<T> slot=slots.remove(id);
+
+    if (slot==null) {
+      return(null);
+    }
+
+    slot.expiry.cancel(false);
+
+    return(slot.camera);
+  }
+
+  /**
+   * Forgets about a parked camera without releasing it, such
+   * as when it has been disconnected.
+   *
+   * @param camera the camera to forget
+   */
+  synchronized void forget(T camera) {
+    Iterator<Slot<T>> i=slots.values().iterator();
+
+    while (i.hasNext()) {
+      Slot<T> slot=i.next();
+
+      if (slot.camera==camera) {
+        slot.expiry.cancel(false);
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @param id the camera's ID
+   * @return true if that camera is parked, false otherwise
+   */
+  synchronized boolean isParked(String id) {
+    return(slots.containsKey(id));
+  }
+
+  /**
+   * Releases every parked camera.
+   */
+  void releaseAll() {
+    LinkedHashMap<String, Slot<T>> toRelease;
+
+    synchronized(this) {
+      toRelease=new LinkedHashMap<String, Slot<T>>(slots);
+      slots.clear();
+
+      if (timer!=null) {
+        timer.shutdownNow();
+        timer=null;
+      }
+    }
+
+    for (Slot<T> slot : toRelease.values()) {
+      releaser.release(slot.camera);
+    }
+  }
+
+  private void trim() {
+    while (true) {
+      T eldest;
+
+      synchronized(this) {
+        if (slots.size()<=maxSlots) {
+          return;
+        }
+
+        Map.Entry<String, Slot<T>> entry=
+            slots.entrySet().iterator().next();
+
+        slots.remove(entry.getKey());
+        entry.getValue().expiry.cancel(false);
+        eldest=entry.getValue().camera;
+      }
+
+      releaser.release(eldest);
+    }
+  }
+
+  private void expire(String id, T camera) {
+    synchronized(this) {
+      Slot<T> slot=slots.get(id);
+
+      if (slot==null || slot.camera!=camera) {
+        return;
+      }
+
+      slots.remove(id);
+    }
+
+    releaser.release(camera);
+  }
+
+  private ScheduledExecutorService getTimer() {
+    if (timer==null) {
+      timer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread result=new Thread(r, "CWAC-Cam2 WarmSlots");
+
+          result.setDaemon(true);
+
+          return(result);
+        }
+      });
+    }
+
+    return(timer);
+  }
+
+  private static class Slot<T> {
+    final T camera;
+    final ScheduledFuture<?> expiry;
+
+    Slot(T camera, ScheduledFuture<?> expiry) {
+      this.camera=camera;
+      this.expiry=expiry;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Queue of pictures waiting to be written, drained in order by
+ * a dedicated writer thread. Get one from getWriteBehindQueue()
+ * on CameraEngine, after enabling it via setWriteBehind().
+ *
+ * Once the queue holds more than a high-water mark of pictures
+ * or bytes, a WriteBackpressureEvent is raised with isThrottled()
+ * returning true, so the UI can hold off on taking more pictures.
+ * Once the queue drains to half of the high-water mark, another
+ * WriteBackpressureEvent is raised with isThrottled() returning
+ * false.
+ */
+public class WriteBehindQueue {
+  private static final int DEFAULT_HIGH_WATER_DEPTH=8;
+  private static final long DEFAULT_HIGH_WATER_BYTES=64*1024*1024;
+  private static final Write SHUTDOWN=new Write(0) {
+    @Override
+    void write() {
+      // marker, never written
+    }
+
+    @Override
+    void onWritten(Exception e) {
+      // marker, never written
+    }
+  };
+  private final LinkedBlockingQueue<Write> queue=
+      new LinkedBlockingQueue<Write>();
+  private final CameraEngine engine;
+  private Runnable onDrained=null;
+  private final Thread writerThread;
+  private int depth=0;
+  private long bytesPending=0;
+  private int highWaterDepth=DEFAULT_HIGH_WATER_DEPTH;
+  private long highWaterBytes=DEFAULT_HIGH_WATER_BYTES;
+  private boolean isThrottled=false;
+  private boolean isShutdown=false;
+
+  /**
+   * Constructor.
+   *
+   * @param engine the engine whose bus gets our events
+   */
+  WriteBehindQueue(CameraEngine engine) {
+    this.engine=engine;
+
+    writerThread=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "CWAC-Cam2 WriteBehindQueue");
+    writerThread.setPriority(Thread.MIN_PRIORITY);
+    writerThread.start();
+  }
+
+  /**
+   * Sets the high-water mark for the queue. The queue is
+   * considered to be backed up if it exceeds either limit.
+   *
+   * @param maxDepth maximum number of pending pictures
+   * @param maxBytes maximum number of pending bytes
+   */
+  synchronized public void setHighWaterMark(int maxDepth, long maxBytes) {
+    highWaterDepth=maxDepth;
+    highWaterBytes=maxBytes;
+  }
+
+  /**
+   * @return the number of pictures waiting to be written,
+   * including any that are being written right now
+   */
+  synchronized public int getDepth() {
+    return(depth);
+  }
+
+  /**
+   * @return the number of bytes of pictures waiting to be
+   * written, including any that are being written right now
+   */
+  synchronized public long getBytesPending() {
+    return(bytesPending);
+  }
+
+  /**
+   * @return true if the queue is past its high-water mark and
+   * has not yet drained back down, false otherwise
+   */
+  synchronized public boolean isThrottled() {
+    return(isThrottled);
+  }
+
+  /**
+   * Adds a write to the end of the queue.
+   *
+   * @param write the write to perform
+   * @return true if the write was queued, false if the queue
+   * has been shut down and the caller needs to write on its own
+   */
+  boolean enqueue(Write write) {
+    CameraEngine.WriteBackpressureEvent event=null;
+
+    synchronized(this) {
+      if (isShutdown) {
+        return(false);
+      }
+
+      depth++;
+      bytesPending+=write.size;
+
+      if (!isThrottled &&
+          (depth>highWaterDepth || bytesPending>highWaterBytes)) {
+        isThrottled=true;
+        event=new CameraEngine.WriteBackpressureEvent(true, depth,
+            bytesPending);
+      }
+
+      queue.add(write);
+    }
+
+    if (event!=null) {
+      engine.getBus().post(event);
+    }
+
+    return(true);
+  }
+
+  /**
+   * Stops accepting new writes. The writer thread finishes
+   * the writes already in the queue, then exits.
+   */
+  void shutdown() {
+    shutdown(null);
+  }
+
+  /**
+   * Stops accepting new writes. The writer thread finishes
+   * the writes already in the queue, then runs the onDrained
+   * Runnable and exits.
+   *
+   * @param onDrained work to do on the writer thread once the
+   *                  queue is drained, or null
+   */
+  void shutdown(Runnable onDrained) {
+    synchronized(this) {
+      if (isShutdown) {
+        return;
+      }
+
+      isShutdown=true;
+      this.onDrained=onDrained;
+    }
+
+    queue.add(SHUTDOWN);
+  }
+
+  private void drain() {
+    while (true) {
+      Write write;
+
+      try {
+        write=queue.take();
+      }
+      catch (InterruptedException e) {
+        continue;
+      }
+
+      if (write==SHUTDOWN) {
+        break;
+      }
+
+      Exception failure=null;
+
+      try {
+        write.write();
+      }
+      catch (Exception e) {
+        failure=e;
+      }
+
+      write.onWritten(failure);
+      onWriteCompleted(write);
+    }
+
+    Runnable toRun;
+
+    synchronized(this) {
+      toRun=onDrained;
+    }
+
+    if (toRun!=null) {
+      toRun.run();
+    }
+  }
+
+  private void onWriteCompleted(Write write) {
+    CameraEngine.WriteBackpressureEvent event=null;
+
+    synchronized(this) {
+      depth--;
+      bytesPending-=write.size;
+
+      if (isThrottled &&
+          depth<=highWaterDepth/2 && bytesPending<=highWaterBytes/2) {
+        isThrottled=false;
+        event=new CameraEngine.WriteBackpressureEvent(false, depth,
+            bytesPending);
+      }
+    }
+
+    if (event!=null) {
+      engine.getBus().post(event);
+    }
+  }
+
+  /**
+   * A unit of work for the queue.
+   */
+  abstract static class Write {
+    final long size;
+
+    Write(long size) {
+      this.size=size;
+    }
+
+    /**
+     * Called on the writer thread to do the actual writing.
+     *
+     * @throws Exception if the write fails
+     */
+    abstract void write() throws Exception;
+
+    /**
+     * Called on the writer thread after write(), successful
+     * or not.
+     *
+     * @param e the exception thrown by write(), or null
+     */
+    abstract void onWritten(Exception e);
+  }
+}
@@ -0,0 +1,212 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ring of the most recent full-resolution frames streamed
+ * from the camera, for zero-shutter-lag pictures. Registered
+ * both as the listener for the ImageReader that receives the
+ * frames and as the CaptureCallback for the repeating request,
+ * the latter so we know the autofocus state of each frame.
+ *
+ * The ImageReader needs room for one image beyond the depth
+ * of the ring, so the next frame can be acquired before the
+ * oldest one is evicted.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ZeroShutterLagRing extends CameraCaptureSession.CaptureCallback
+    implements ImageReader.OnImageAvailableListener {
+  private static final long SAME_CLOCK_NANOS=1000000000L;
+  private static final int MAX_RESULTS=32;
+  private final int depth;
+  private final boolean preferFocused;
+  private final ArrayDeque<Frame> frames=new ArrayDeque<Frame>();
+  private final LinkedHashMap<Long, Integer> afStates=
+      new LinkedHashMap<Long, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+          return(size()>MAX_RESULTS);
+        }
+      };
+
+  /**
+   * Constructor.
+   *
+   * @param depth the most frames to hold
+   * @param preferFocused true to pick frames where autofocus
+   *                      had settled, if there are any
+   */
+  ZeroShutterLagRing(int depth, boolean preferFocused) {
+    this.depth=depth;
+    this.preferFocused=preferFocused;
+  }
+
+  /**
+   * @return the number of images the ImageReader needs to be
+   * able to hold
+   */
+  int getMaxImages() {
+    return(depth+1);
+  }
+
+  @Override
+  public void onImageAvailable(ImageReader reader) {
+    synchronized(this) {
+      while (frames.size()>=depth) {
+        frames.removeFirst().image.close();
+      }
+
+      while (true) {
+        try {
+          Image image=reader.acquireNextImage();
+
+          if (image!=null) {
+            frames.addLast(new Frame(image, System.nanoTime()));
+          }
+
+          return;
+        }
+        catch (IllegalStateException e) {
+          // a picture taken from the ring is still in use, so
+          // we need to make more room
+
+          if (frames.isEmpty()) {
+            return;
+          }
+
+          frames.removeFirst().image.close();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onCaptureCompleted(CameraCaptureSession session,
+                                 CaptureRequest request,
+                                 TotalCaptureResult result) {
+    Long timestamp=result.get(CaptureResult.SENSOR_TIMESTAMP);
+    Integer afState=result.get(CaptureResult.CONTROL_AF_STATE);
+
+    if (timestamp!=null && afState!=null) {
+      synchronized(this) {
+        afStates.put(timestamp, afState);
+      }
+    }
+  }
+
+  /**
+   * Removes the frame closest to the requested time from the
+   * ring. The caller is responsible for closing the image.
+   *
+   * @param requestNanos when the picture was requested, in
+   *                     System.nanoTime() terms
+   * @return the image, or null if the ring is empty
+   */
+  synchronized Image take(long requestNanos) {
+    if (frames.isEmpty()) {
+      return(null);
+    }
+
+    long target=toSensorTime(requestNanos);
+    boolean focusedOnly=preferFocused && hasFocusedFrame();
+    Frame best=null;
+
+    for (Frame frame : frames) {
+      if (focusedOnly && !isFocused(frame)) {
+        continue;
+      }
+
+      if (best==null ||
+          Math.abs(frame.image.getTimestamp()-target)<
+              Math.abs(best.image.getTimestamp()-target)) {
+        best=frame;
+      }
+    }
+
+    frames.remove(best);
+
+    return(best.image);
+  }
+
+  /**
+   * Releases all frames in the ring.
+   */
+  synchronized void clear() {
+    for (Frame frame : frames) {
+      frame.image.close();
+    }
+
+    frames.clear();
+    afStates.clear();
+  }
+
+  /**
+   * Converts a System.nanoTime() value into the clock used
+   * for sensor timestamps. Many devices use the same clock; if
+   * the newest frame's timestamp is not close to when it
+   * arrived, we assume a different clock and use that frame
+   * to map from one to the other.
+   */
+  private long toSensorTime(long nanos) {
+    Frame newest=frames.getLast();
+    long offset=newest.arrivalNanos-newest.image.getTimestamp();
+
+    if (Math.abs(offset)<SAME_CLOCK_NANOS) {
+      return(nanos);
+    }
+
+    return(nanos-offset);
+  }
+
+  private boolean hasFocusedFrame() {
+    for (Frame frame : frames) {
+      if (isFocused(frame)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  private boolean isFocused(Frame frame) {
+    Integer afState=afStates.get(frame.image.getTimestamp());
+
+    return(afState!=null &&
+        (afState==CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+            afState==CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED));
+  }
+
+  private static class Frame {
+    final Image image;
+    final long arrivalNanos;
+
+    Frame(Image image, long arrivalNanos) {
+      this.image=image;
+      this.arrivalNanos=arrivalNanos;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.plugin;
+
+import com.commonsware.cwac.cam2.CameraConfigurator;
+import com.commonsware.cwac.cam2.CameraPlugin;
+import com.commonsware.cwac.cam2.CameraSession;
+import com.commonsware.cwac.cam2.FrameAnalyzer;
+import com.commonsware.cwac.cam2.util.Size;
+
+/**
+ * A plugin that hands preview frames to a FrameAnalyzer while
+ * the preview is running. Frames are delivered no faster than
+ * the requested frame rate; frames that arrive while the
+ * analyzer is busy replace one another, so only the newest
+ * is analyzed next.
+ *
+ * CameraTwoEngine delivers YUV_420_888 frames from a separate,
+ * low-resolution stream, no bigger than the requested maximum
+ * size (or the smallest size the camera offers, if none fit).
+ * If several FrameAnalyzerPlugins are in a session, the stream
+ * uses the largest of their maximum sizes. ClassicCameraEngine
+ * delivers NV21 frames at the preview size, as the classic API
+ * has no separate stream.
+ */
+public class FrameAnalyzerPlugin implements CameraPlugin {
+  private static final Size DEFAULT_MAX_SIZE=new Size(640, 480);
+  private final FrameAnalyzer analyzer;
+  private final long minIntervalNanos;
+  private final Size maxSize;
+
+  /**
+   * Constructor, for frames up to 640x480.
+   *
+   * @param analyzer the analyzer to receive frames
+   * @param maxFramesPerSecond the most frames to analyze per
+   *                           second, or 0 for as many as
+   *                           the analyzer can handle
+   */
+  public FrameAnalyzerPlugin(FrameAnalyzer analyzer,
+                             float maxFramesPerSecond) {
+    this(analyzer, maxFramesPerSecond, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param analyzer the analyzer to receive frames
+   * @param maxFramesPerSecond the most frames to analyze per
+   *                           second, or 0 for as many as
+   *                           the analyzer can handle
+   * @param maxSize the largest frames that the analyzer wants
+   */
+  public FrameAnalyzerPlugin(FrameAnalyzer analyzer,
+                             float maxFramesPerSecond, Size maxSize) {
+    if (maxFramesPerSecond<0) {
+      throw new IllegalArgumentException("maxFramesPerSecond cannot be negative");
+    }
+
+    this.analyzer=analyzer;
+    this.maxSize=maxSize;
+
+    if (maxFramesPerSecond==0) {
+      minIntervalNanos=0;
+    }
+    else {
+      minIntervalNanos=(long)(1000000000L/maxFramesPerSecond);
+    }
+  }
+
+  /**
+   * @return the analyzer to receive frames
+   */
+  public FrameAnalyzer getAnalyzer() {
+    return(analyzer);
+  }
+
+  /**
+   * @return the least time between frames handed to the
+   * analyzer, in nanoseconds
+   */
+  public long getMinIntervalNanos() {
+    return(minIntervalNanos);
+  }
+
+  /**
+   * @return the largest frames that the analyzer wants
+   */
+  public Size getMaxSize() {
+    return(maxSize);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The engine sets up the frame stream itself, so there are
+   * no configurators for this plugin.
+   */
+  @Override
+  public <T extends CameraConfigurator> T buildConfigurator(Class<T> type) {
+    return(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void validate(CameraSession session) {
+    // no validation required
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void destroy() {
+    // not required
+  }
+}
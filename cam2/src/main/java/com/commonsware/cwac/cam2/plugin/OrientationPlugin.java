@@ -38,14 +38,39 @@ import com.commonsware.cwac.cam2.util.Size;
 /**
  * Plugin for managing orientation effects on the previews
  * and pictures.
+ *
+ * By default, the camera is asked to rotate pictures itself.
+ * Some devices do that by re-encoding the JPEG, which is slow.
+ * Pass true for rotateLater to have the camera deliver pictures
+ * in the sensor's orientation instead; getPictureOrientation()
+ * then reports the rotation that a LosslessRotationProcessor
+ * needs to apply.
  */
 public class OrientationPlugin implements CameraPlugin {
   private final Context ctxt;
+  private final boolean rotateLater;
   private OrientationEventListener orientationEventListener;
-  private int lastOrientation=OrientationEventListener.ORIENTATION_UNKNOWN;
+  private volatile int lastOrientation=OrientationEventListener.ORIENTATION_UNKNOWN;
+  private volatile boolean isClassic=true;
+  private volatile int classicOrientation=0;
+  private volatile int sensorOrientation=0;
+  private volatile boolean facingFront=false;
 
   public OrientationPlugin(Context ctxt) {
+    this(ctxt, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param rotateLater true to leave pictures in the sensor's
+   *                    orientation, to be rotated after the fact,
+   *                    false to have the camera rotate them
+   */
+  public OrientationPlugin(Context ctxt, boolean rotateLater) {
     this.ctxt=ctxt.getApplicationContext();
+    this.rotateLater=rotateLater;
 
     orientationEventListener=new OrientationEventListener(ctxt) {
       @Override
@@ -94,6 +119,45 @@ public class OrientationPlugin implements CameraPlugin {
     }
   }
 
+  /**
+   * @return true if pictures are left in the sensor's
+   * orientation, false if the camera rotates them
+   */
+  public boolean isRotateLater() {
+    return(rotateLater);
+  }
+
+  /**
+   * @return the clockwise rotation, in degrees, that a picture
+   * taken right now needs, to be the right way up
+   */
+  public int getPictureOrientation() {
+    if (isClassic) {
+      return(classicOrientation);
+    }
+
+    return(getTwoOrientation(sensorOrientation, facingFront));
+  }
+
+  // based on https://developer.android.com/reference/android/hardware/camera2/CaptureRequest.html#JPEG_ORIENTATION
+
+  private int getTwoOrientation(int sensorOrientation,
+                                boolean facingFront) {
+    int pictureOrientation=0;
+
+    if (lastOrientation!=android.view.OrientationEventListener.ORIENTATION_UNKNOWN) {
+      int deviceOrientation=(lastOrientation + 45) / 90 * 90;
+
+      if (facingFront) {
+        deviceOrientation = -deviceOrientation;
+      }
+
+      pictureOrientation=(sensorOrientation + deviceOrientation + 360) % 360;
+    }
+
+    return(pictureOrientation);
+  }
+
   class Classic extends SimpleClassicCameraConfigurator {
     /**
      * {@inheritDoc}
@@ -142,7 +206,9 @@ public class OrientationPlugin implements CameraPlugin {
         outputOrientation=displayOrientation;
       }
 
-      params.setRotation(outputOrientation);
+      isClassic=true;
+      classicOrientation=outputOrientation;
+      params.setRotation(rotateLater ? 0 : outputOrientation);
 
       return(params);
     }
@@ -157,22 +223,12 @@ public class OrientationPlugin implements CameraPlugin {
     public void addToCaptureRequest(CameraCharacteristics cc,
                                     boolean facingFront,
                                     CaptureRequest.Builder captureBuilder) {
-      // based on https://developer.android.com/reference/android/hardware/camera2/CaptureRequest.html#JPEG_ORIENTATION
-
-      int pictureOrientation=0;
-
-      if (lastOrientation!=android.view.OrientationEventListener.ORIENTATION_UNKNOWN) {
-        int sensorOrientation=cc.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        int deviceOrientation=(lastOrientation + 45) / 90 * 90;
-
-        if (facingFront) {
-          deviceOrientation = -deviceOrientation;
-        }
-
-        pictureOrientation=(sensorOrientation + deviceOrientation + 360) % 360;
-      }
+      isClassic=false;
+      sensorOrientation=cc.get(CameraCharacteristics.SENSOR_ORIENTATION);
+      OrientationPlugin.this.facingFront=facingFront;
 
-      captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, pictureOrientation);
+      captureBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+          rotateLater ? 0 : getTwoOrientation(sensorOrientation, facingFront));
     }
   }
 }
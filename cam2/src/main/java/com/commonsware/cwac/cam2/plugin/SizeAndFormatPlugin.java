@@ -35,9 +35,11 @@ import com.commonsware.cwac.cam2.util.Size;
  * needs to be in the plugin chain for the CameraSession.
  */
 public class SizeAndFormatPlugin implements CameraPlugin {
+  private static final int DEFAULT_MAX_IMAGES=2;
   final private Size pictureSize;
   final private Size previewSize;
   private final int pictureFormat;
+  private final int maxImages;
 
   /**
    * Constructor.
@@ -49,9 +51,34 @@ public class SizeAndFormatPlugin implements CameraPlugin {
    *                      (e.g., ImageFormat.JPEG)
    */
   public SizeAndFormatPlugin(Size previewSize, Size pictureSize, int pictureFormat) {
+    this(previewSize, pictureSize, pictureFormat, DEFAULT_MAX_IMAGES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param previewSize the size of preview images
+   * @param pictureSize the size of pictures to be taken
+   * @param pictureFormat the format of pictures to be taken, in
+   *                      the form of an ImageFormat constant
+   *                      (e.g., ImageFormat.JPEG)
+   * @param maxImages the number of pictures that can be held
+   *                  by the camera at once, for engines that
+   *                  support it; raise this above the default
+   *                  of 2 if pictures are held for a while (e.g.,
+   *                  zero-copy PictureTransactions), so holding
+   *                  one does not stall the next capture
+   */
+  public SizeAndFormatPlugin(Size previewSize, Size pictureSize,
+                             int pictureFormat, int maxImages) {
+    if (maxImages<1) {
+      throw new IllegalArgumentException("maxImages must be at least 1");
+    }
+
     this.previewSize=previewSize;
     this.pictureSize=pictureSize;
     this.pictureFormat=pictureFormat;
+    this.maxImages=maxImages;
   }
 
   /**
@@ -111,7 +138,7 @@ public class SizeAndFormatPlugin implements CameraPlugin {
     @Override
     public ImageReader buildImageReader() {
       return(ImageReader.newInstance(pictureSize.getWidth(),
-          pictureSize.getHeight(), pictureFormat, 2));
+          pictureSize.getHeight(), pictureFormat, maxImages));
     }
   }
 }
@@ -0,0 +1,128 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.plugin;
+
+import com.commonsware.cwac.cam2.CameraConfigurator;
+import com.commonsware.cwac.cam2.CameraPlugin;
+import com.commonsware.cwac.cam2.CameraSession;
+import com.commonsware.cwac.cam2.util.Size;
+
+/**
+ * A plugin that requests zero-shutter-lag (ZSL) pictures.
+ * While the preview is running, the camera continuously
+ * delivers full-resolution pictures into a ring of recent
+ * frames. Taking a picture picks the frame closest to the
+ * moment of the request, skipping the focus and exposure
+ * round trip with the camera.
+ *
+ * The ring is limited both by a number of frames and by a
+ * memory budget; whichever is smaller wins. Frames are
+ * budgeted at 1.5 bytes per pixel, which is the size of an
+ * uncompressed YUV frame and hence an upper bound for the
+ * buffers that the camera fills with JPEG data.
+ *
+ * Only CameraTwoEngine supports ZSL; other engines ignore this
+ * plugin. A ZSL session cannot take bursts.
+ */
+public class ZeroShutterLagPlugin implements CameraPlugin {
+  private final int maxFrames;
+  private final long maxBytes;
+  private final boolean preferFocused;
+
+  /**
+   * Constructor.
+   *
+   * @param maxFrames the most frames to hold in the ring
+   * @param maxBytes the most memory to spend on the ring
+   * @param preferFocused true if frames where autofocus had
+   *                      settled should be picked over closer
+   *                      frames where it had not, false to just
+   *                      pick the closest frame
+   */
+  public ZeroShutterLagPlugin(int maxFrames, long maxBytes,
+                              boolean preferFocused) {
+    if (maxFrames<1) {
+      throw new IllegalArgumentException("maxFrames must be at least 1");
+    }
+
+    this.maxFrames=maxFrames;
+    this.maxBytes=maxBytes;
+    this.preferFocused=preferFocused;
+  }
+
+  /**
+   * @return the most frames to hold in the ring
+   */
+  public int getMaxFrames() {
+    return(maxFrames);
+  }
+
+  /**
+   * @return the most memory to spend on the ring
+   */
+  public long getMaxBytes() {
+    return(maxBytes);
+  }
+
+  /**
+   * @return true if frames where autofocus had settled should
+   * be preferred, false otherwise
+   */
+  public boolean isFocusedPreferred() {
+    return(preferFocused);
+  }
+
+  /**
+   * Determines how deep the ring can be for pictures of a
+   * given size.
+   *
+   * @param pictureSize the size of the pictures
+   * @return the number of frames to hold, which will be 0 if
+   * even one frame would exceed the memory budget
+   */
+  public int getDepthFor(Size pictureSize) {
+    long bytesPerFrame=
+        (long)pictureSize.getWidth()*pictureSize.getHeight()*3/2;
+
+    return((int)Math.min(maxFrames, maxBytes/bytesPerFrame));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The engine sets up ZSL itself, so there are no
+   * configurators for this plugin.
+   */
+  @Override
+  public <T extends CameraConfigurator> T buildConfigurator(Class<T> type) {
+    return(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void validate(CameraSession session) {
+    // no validation required
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void destroy() {
+    // not required
+  }
+}
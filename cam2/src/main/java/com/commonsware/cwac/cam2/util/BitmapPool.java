@@ -0,0 +1,271 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Pool of recyclable Bitmaps, for use as inBitmap when decoding,
+ * bucketed by size class (the power of two at or below the
+ * number of bytes that the Bitmap uses).
+ *
+ * On API Level 19+, any pooled Bitmap that is big enough can be
+ * reused for a decode, so acquire() hands back the smallest one
+ * that fits, within a factor of MAX_OVERSIZE. On older devices,
+ * BitmapFactory can only reuse a Bitmap of exactly the same size
+ * and configuration, and only when inSampleSize is 1, so
+ * acquire() looks only for exact matches there.
+ *
+ * The pool retains released Bitmaps up to a byte budget,
+ * evicting the least-recently-released ones to make room. All
+ * methods are thread-safe.
+ */
+public class BitmapPool {
+  private static final int MAX_OVERSIZE=4;
+  private static final int MAX_BUCKET_SHIFT=31;
+  private static final int DEFAULT_MEMORY_FRACTION=8;
+  private static BitmapPool defaultPool=null;
+  private final ArrayDeque<Bitmap>[] buckets;
+  private final LinkedHashSet<Bitmap> lru=new LinkedHashSet<Bitmap>();
+  private final long maxBytesRetained;
+  private long bytesRetained=0;
+  private long hits=0;
+  private long misses=0;
+
+  /**
+   * @return the process-wide pool, which by default may retain
+   * up to an eighth of the heap
+   */
+  synchronized public static BitmapPool getDefault() {
+    if (defaultPool==null) {
+      defaultPool=new BitmapPool(Runtime.getRuntime().maxMemory()/
+          DEFAULT_MEMORY_FRACTION);
+    }
+
+    return(defaultPool);
+  }
+
+  /**
+   * Replaces the process-wide pool, such as to use a different
+   * byte budget.
+   *
+   * @param pool the pool to use
+   */
+  synchronized public static void setDefault(BitmapPool pool) {
+    if (defaultPool!=null && defaultPool!=pool) {
+      defaultPool.clear();
+    }
+
+    defaultPool=pool;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytesRetained the maximum number of bytes that
+   *                         the pool will hold onto in released
+   *                         Bitmaps
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BitmapPool(long maxBytesRetained) {
+    this.maxBytesRetained=maxBytesRetained;
+    buckets=new ArrayDeque[MAX_BUCKET_SHIFT+1];
+
+    for (int i=0;i<buckets.length;i++) {
+      buckets[i]=new ArrayDeque<Bitmap>();
+    }
+  }
+
+  /**
+   * Retrieves a Bitmap from the pool that can be used as
+   * inBitmap to decode an image of the requested size. Unlike
+   * BufferPool, this does not allocate anything if there is no
+   * suitable Bitmap, as BitmapFactory will do that.
+   *
+   * @param width the width of the decoded image
+   * @param height the height of the decoded image
+   * @param config the configuration of the decoded image
+   * @return a Bitmap to reuse, or null if there is none
+   */
+  public Bitmap acquire(int width, int height, Bitmap.Config config) {
+    long needed=(long)width*height*getBytesPerPixel(config);
+
+    if (width<=0 || height<=0 || needed>Integer.MAX_VALUE) {
+      synchronized(this) {
+        misses++;
+      }
+
+      return(null);
+    }
+
+    boolean exact=Build.VERSION.SDK_INT<Build.VERSION_CODES.KITKAT;
+    int first=getBucketFor((int)needed);
+    int last=
+        (exact ? first : getBucketFor((int)Math.min(Integer.MAX_VALUE,
+            needed*MAX_OVERSIZE)));
+
+    synchronized(this) {
+      for (int i=first;i<=last;i++) {
+        Bitmap best=null;
+
+        for (Bitmap candidate : buckets[i]) {
+          if (exact) {
+            if (candidate.getWidth()==width &&
+                candidate.getHeight()==height &&
+                candidate.getConfig()==config) {
+              best=candidate;
+              break;
+            }
+          }
+          else {
+            int bytes=getAllocationByteCount(candidate);
+
+            if (bytes>=needed && bytes<=needed*MAX_OVERSIZE &&
+                (best==null || bytes<getAllocationByteCount(best))) {
+              best=candidate;
+            }
+          }
+        }
+
+        if (best!=null) {
+          buckets[i].remove(best);
+          lru.remove(best);
+          bytesRetained-=getAllocationByteCount(best);
+          hits++;
+
+          return(best);
+        }
+      }
+
+      misses++;
+    }
+
+    return(null);
+  }
+
+  /**
+   * Returns a Bitmap to the pool for later reuse, evicting
+   * the least-recently-released Bitmaps if needed to stay
+   * within the budget. Immutable or recycled Bitmaps, or ones
+   * bigger than the whole budget, are ignored. Do not use the
+   * Bitmap after releasing it.
+   *
+   * @param bitmap the Bitmap to return
+   */
+  public void release(Bitmap bitmap) {
+    if (bitmap==null || bitmap.isRecycled() || !bitmap.isMutable()) {
+      return;
+    }
+
+    int bytes=getAllocationByteCount(bitmap);
+
+    if (bytes<=0 || bytes>maxBytesRetained) {
+      return;
+    }
+
+    synchronized(this) {
+      if (!lru.add(bitmap)) {
+        return;
+      }
+
+      buckets[getBucketFor(bytes)].offerFirst(bitmap);
+      bytesRetained+=bytes;
+
+      Iterator<Bitmap> i=lru.iterator();
+
+      while (bytesRetained>maxBytesRetained && i.hasNext()) {
+        Bitmap eldest=i.next();
+        int eldestBytes=getAllocationByteCount(eldest);
+
+        i.remove();
+        buckets[getBucketFor(eldestBytes)].remove(eldest);
+        bytesRetained-=eldestBytes;
+      }
+    }
+  }
+
+  /**
+   * Drops all retained Bitmaps.
+   */
+  synchronized public void clear() {
+    for (ArrayDeque<Bitmap> bucket : buckets) {
+      bucket.clear();
+    }
+
+    lru.clear();
+    bytesRetained=0;
+  }
+
+  /**
+   * @return the number of acquire() calls satisfied by a
+   * recycled Bitmap
+   */
+  synchronized public long getHitCount() {
+    return(hits);
+  }
+
+  /**
+   * @return the number of acquire() calls that found nothing
+   * suitable
+   */
+  synchronized public long getMissCount() {
+    return(misses);
+  }
+
+  /**
+   * @return the number of bytes held in released Bitmaps,
+   * awaiting reuse
+   */
+  synchronized public long getBytesRetained() {
+    return(bytesRetained);
+  }
+
+  /**
+   * @return the maximum number of bytes that the pool will
+   * retain
+   */
+  public long getMaxBytesRetained() {
+    return(maxBytesRetained);
+  }
+
+  private static int getAllocationByteCount(Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+      return(bitmap.getAllocationByteCount());
+    }
+
+    return(bitmap.getByteCount());
+  }
+
+  private static int getBytesPerPixel(Bitmap.Config config) {
+    if (config==Bitmap.Config.ALPHA_8) {
+      return(1);
+    }
+    else if (config==Bitmap.Config.RGB_565 ||
+        config==Bitmap.Config.ARGB_4444) {
+      return(2);
+    }
+
+    return(4);
+  }
+
+  private static int getBucketFor(int bytes) {
+    return(Math.min(MAX_BUCKET_SHIFT,
+        31-Integer.numberOfLeadingZeros(Math.max(1, bytes))));
+  }
+}
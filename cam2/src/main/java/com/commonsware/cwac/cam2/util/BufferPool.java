@@ -0,0 +1,168 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of recyclable byte[] buffers, bucketed by size. Buffers
+ * handed out by acquire() have a power-of-two length that is
+ * at least as big as what was requested, so callers need to
+ * track the length of the data that they put in the buffer.
+ *
+ * The pool retains released buffers up to a byte budget; buffers
+ * released beyond that budget are simply dropped for the garbage
+ * collector. All methods are thread-safe.
+ */
+public class BufferPool {
+  private static final int MIN_BUCKET_SHIFT=16; // 64KB
+  private static final int MAX_BUCKET_SHIFT=30; // 1GB
+  private final ArrayDeque<byte[]>[] buckets;
+  private final long maxBytesRetained;
+  private long bytesRetained=0;
+  private long hits=0;
+  private long misses=0;
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytesRetained the maximum number of bytes that
+   *                         the pool will hold onto in released
+   *                         buffers
+   */
+  @SuppressWarnings("unchecked")
+  public BufferPool(long maxBytesRetained) {
+    this.maxBytesRetained=maxBytesRetained;
+    buckets=new ArrayDeque[MAX_BUCKET_SHIFT-MIN_BUCKET_SHIFT+1];
+
+    for (int i=0;i<buckets.length;i++) {
+      buckets[i]=new ArrayDeque<byte[]>();
+    }
+  }
+
+  /**
+   * Retrieves a buffer from the pool, allocating a fresh one
+   * if there is no suitable buffer available.
+   *
+   * @param minLength the number of bytes needed
+   * @return a buffer of at least minLength bytes
+   */
+  public byte[] acquire(int minLength) {
+    int bucket=getBucketFor(minLength);
+
+    if (bucket<0) {
+      synchronized(this) {
+        misses++;
+      }
+
+      return(new byte[minLength]);
+    }
+
+    synchronized(this) {
+      byte[] result=buckets[bucket].pollFirst();
+
+      if (result!=null) {
+        hits++;
+        bytesRetained-=result.length;
+
+        return(result);
+      }
+
+      misses++;
+    }
+
+    return(new byte[1<<(bucket+MIN_BUCKET_SHIFT)]);
+  }
+
+  /**
+   * Returns a buffer to the pool for later reuse. Buffers that
+   * did not come from acquire(), or that would put the pool
+   * over its budget, are ignored. Do not use the buffer after
+   * releasing it.
+   *
+   * @param buffer the buffer to return
+   */
+  public void release(byte[] buffer) {
+    if (buffer==null) {
+      return;
+    }
+
+    int bucket=getBucketFor(buffer.length);
+
+    if (bucket<0 || buffer.length!=1<<(bucket+MIN_BUCKET_SHIFT)) {
+      return;
+    }
+
+    synchronized(this) {
+      if (bytesRetained+buffer.length<=maxBytesRetained) {
+        buckets[bucket].offerFirst(buffer);
+        bytesRetained+=buffer.length;
+      }
+    }
+  }
+
+  /**
+   * Drops all retained buffers.
+   */
+  synchronized public void clear() {
+    for (ArrayDeque<byte[]> bucket : buckets) {
+      bucket.clear();
+    }
+
+    bytesRetained=0;
+  }
+
+  /**
+   * @return the number of acquire() calls satisfied by a
+   * recycled buffer
+   */
+  synchronized public long getHitCount() {
+    return(hits);
+  }
+
+  /**
+   * @return the number of acquire() calls that had to
+   * allocate a new buffer
+   */
+  synchronized public long getMissCount() {
+    return(misses);
+  }
+
+  /**
+   * @return the number of bytes held in released buffers,
+   * awaiting reuse
+   */
+  synchronized public long getBytesRetained() {
+    return(bytesRetained);
+  }
+
+  /**
+   * @return the maximum number of bytes that the pool will
+   * retain
+   */
+  public long getMaxBytesRetained() {
+    return(maxBytesRetained);
+  }
+
+  private static int getBucketFor(int length) {
+    int shift=MIN_BUCKET_SHIFT;
+
+    while (shift<=MAX_BUCKET_SHIFT && (1<<shift)<length) {
+      shift++;
+    }
+
+    return(shift>MAX_BUCKET_SHIFT ? -1 : shift-MIN_BUCKET_SHIFT);
+  }
+}
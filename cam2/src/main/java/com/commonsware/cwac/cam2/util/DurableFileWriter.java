@@ -0,0 +1,381 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes files through a FileChannel, by way of a uniquely-named
+ * temporary file in the same directory that is renamed into
+ * place once it is complete. Hence, other code never sees a
+ * partially-written file at the target path.
+ *
+ * How hard the writer works to get the bytes onto the storage
+ * device is governed by a Policy:
+ *
+ * - syncPerFile() syncs every file before renaming it, then
+ * syncs the directory, so the rename itself survives a crash,
+ * which is the most durable and the slowest
+ *
+ * - groupCommit() renames each file into place right away, then
+ * syncs batches of files, and their directories, at once, after
+ * a certain number of files or a certain amount of time,
+ * whichever comes first; a crash before the batch is committed
+ * can leave a file of that batch empty or truncated
+ *
+ * - noSync() renames each file right away and leaves it up to
+ * the OS to write the bytes whenever it gets around to it
+ *
+ * Directories can only be synced on API Level 21+, where
+ * android.system.Os offers fsync() on a directory opened
+ * read-only. On older devices, a crash shortly after a write
+ * could lose the rename, leaving the file at its temporary
+ * name (or the previous file at the target path), though never
+ * a partially-written file at the target path.
+ *
+ * All methods are thread-safe.
+ */
+public class DurableFileWriter {
+  private final Policy policy;
+  private final ArrayList<File> pending=new ArrayList<File>();
+  private ScheduledExecutorService timer=null;
+  private ScheduledFuture<?> scheduledCommit=null;
+
+  /**
+   * Constructor.
+   *
+   * @param policy how hard to work on durability
+   */
+  public DurableFileWriter(Policy policy) {
+    this.policy=policy;
+  }
+
+  /**
+   * @return the durability policy for this writer
+   */
+  public Policy getPolicy() {
+    return(policy);
+  }
+
+  /**
+   * Writes the bytes from the buffer's position to its limit
+   * to the target file, replacing any existing file. The file
+   * is at the target path once this returns, though under a
+   * group commit policy, it is not synced until its batch is
+   * committed.
+   *
+   * @param target the file to write
+   * @param data the bytes to write
+   * @throws IOException if there is a problem writing the file
+   */
+  public void write(File target, ByteBuffer data) throws IOException {
+    File dir=target.getAbsoluteFile().getParentFile();
+
+    dir.mkdirs();
+
+    File tmp=File.createTempFile("."+target.getName()+".", ".tmp", dir);
+
+    try {
+      FileOutputStream fos=new FileOutputStream(tmp);
+
+      try {
+        FileChannel channel=fos.getChannel();
+
+        while (data.hasRemaining()) {
+          channel.write(data);
+        }
+
+        if (policy.mode==Mode.SYNC_PER_FILE) {
+          fos.getFD().sync();
+        }
+      }
+      finally {
+        fos.close();
+      }
+
+      rename(tmp, target);
+    }
+    catch (IOException e) {
+      tmp.delete();
+
+      throw e;
+    }
+
+    if (policy.mode==Mode.SYNC_PER_FILE) {
+      syncDirectory(dir);
+    }
+    else if (policy.mode==Mode.GROUP_COMMIT) {
+      addPending(target);
+    }
+  }
+
+  /**
+   * Commits any files that are awaiting a group commit: syncs
+   * them, then syncs their directories. This is a no-op for
+   * other policies.
+   *
+   * @throws IOException if there is a problem syncing a file
+   * or directory; all pending files are still attempted
+   */
+  public void flush() throws IOException {
+    ArrayList<File> toCommit;
+
+    synchronized(this) {
+      if (scheduledCommit!=null) {
+        scheduledCommit.cancel(false);
+        scheduledCommit=null;
+      }
+
+      toCommit=new ArrayList<File>(pending);
+      pending.clear();
+    }
+
+    IOException failure=null;
+    LinkedHashSet<File> dirs=new LinkedHashSet<File>();
+
+    for (File file : toCommit) {
+      dirs.add(file.getAbsoluteFile().getParentFile());
+
+      try {
+        sync(file);
+      }
+      catch (IOException e) {
+        failure=e;
+      }
+    }
+
+    for (File dir : dirs) {
+      try {
+        syncDirectory(dir);
+      }
+      catch (IOException e) {
+        failure=e;
+      }
+    }
+
+    if (failure!=null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Flushes any pending files and stops the group-commit timer.
+   * The writer can still be used afterwards, though doing so
+   * will start a fresh timer if one is needed.
+   *
+   * @throws IOException if there is a problem syncing a file
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      synchronized(this) {
+        if (timer!=null) {
+          timer.shutdown();
+          timer=null;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of files written but not yet committed
+   * by a group commit
+   */
+  synchronized public int getPendingCount() {
+    return(pending.size());
+  }
+
+  private void addPending(File file) throws IOException {
+    boolean commitNow;
+
+    synchronized(this) {
+      pending.add(file);
+      commitNow=pending.size()>=policy.maxFiles;
+
+      if (!commitNow && scheduledCommit==null) {
+        if (timer==null) {
+          timer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread result=new Thread(r, "DurableFileWriter");
+
+              result.setDaemon(true);
+
+              return(result);
+            }
+          });
+        }
+
+        scheduledCommit=timer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              flush();
+            }
+            catch (IOException e) {
+              // nobody to tell; the files are in place, just
+              // not known to be on the storage device
+            }
+          }
+        }, policy.maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (commitNow) {
+      flush();
+    }
+  }
+
+  private static void sync(File file) throws IOException {
+    // append, so opening the file does not truncate it
+
+    FileOutputStream fos=new FileOutputStream(file, true);
+
+    try {
+      fos.getFD().sync();
+    }
+    finally {
+      fos.close();
+    }
+  }
+
+  private static void rename(File tmp, File target) throws IOException {
+    if (!tmp.renameTo(target)) {
+      throw new IOException("Could not rename "+tmp+" to "+target);
+    }
+  }
+
+  /**
+   * Syncs a directory, so renames into it survive a crash.
+   * This is a no-op before API Level 21, and on filesystems
+   * that do not support syncing directories.
+   */
+  private static void syncDirectory(File dir) throws IOException {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.LOLLIPOP) {
+      syncDirectoryViaOs(dir);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private static void syncDirectoryViaOs(File dir) throws IOException {
+    try {
+      FileDescriptor fd=Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+
+      try {
+        Os.fsync(fd);
+      }
+      finally {
+        Os.close(fd);
+      }
+    }
+    catch (ErrnoException e) {
+      if (e.errno!=OsConstants.EINVAL) {
+        throw new IOException("Could not sync "+dir, e);
+      }
+    }
+  }
+
+  private enum Mode {
+    SYNC_PER_FILE, GROUP_COMMIT, NO_SYNC
+  }
+
+  /**
+   * How hard a DurableFileWriter should work to ensure that
+   * written bytes are on the storage device. Use the static
+   * methods to get an instance.
+   */
+  public static class Policy {
+    private static final Policy SYNC_PER_FILE=
+        new Policy(Mode.SYNC_PER_FILE, 1, 0);
+    private static final Policy NO_SYNC=
+        new Policy(Mode.NO_SYNC, 0, 0);
+    private final Mode mode;
+    private final int maxFiles;
+    private final long maxDelayMillis;
+
+    private Policy(Mode mode, int maxFiles, long maxDelayMillis) {
+      this.mode=mode;
+      this.maxFiles=maxFiles;
+      this.maxDelayMillis=maxDelayMillis;
+    }
+
+    /**
+     * @return a policy that syncs each file before renaming it
+     * into place, then syncs its directory
+     */
+    public static Policy syncPerFile() {
+      return(SYNC_PER_FILE);
+    }
+
+    /**
+     * Returns a policy that syncs files in batches. Files are
+     * renamed into place right away; only the syncs are
+     * deferred.
+     *
+     * @param maxFiles sync once this many files are awaiting
+     *                 a sync
+     * @param maxDelayMillis sync once the oldest file awaiting
+     *                       a sync has waited this long
+     * @return the policy
+     */
+    public static Policy groupCommit(int maxFiles, long maxDelayMillis) {
+      if (maxFiles<1) {
+        throw new IllegalArgumentException("maxFiles must be at least 1");
+      }
+
+      if (maxDelayMillis<0) {
+        throw new IllegalArgumentException("maxDelayMillis cannot be negative");
+      }
+
+      return(new Policy(Mode.GROUP_COMMIT, maxFiles, maxDelayMillis));
+    }
+
+    /**
+     * @return a policy that never syncs, leaving it up to the
+     * OS to get the bytes to the storage device
+     */
+    public static Policy noSync() {
+      return(NO_SYNC);
+    }
+
+    @Override
+    public String toString() {
+      if (mode==Mode.GROUP_COMMIT) {
+        return("groupCommit("+maxFiles+", "+maxDelayMillis+"ms)");
+      }
+
+      return(mode==Mode.SYNC_PER_FILE ? "syncPerFile" : "noSync");
+    }
+  }
+}
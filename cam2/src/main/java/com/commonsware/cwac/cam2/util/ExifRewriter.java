@@ -0,0 +1,678 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Sets EXIF tags in a JPEG without touching its image data.
+ * Collect the tags to set via the setters, then call rewrite()
+ * to get a copy of the JPEG with a new EXIF (APP1) segment
+ * spliced in place of the old one.
+ *
+ * The existing EXIF data is kept byte for byte, as a great many
+ * things in it (most notably, maker notes) refer to one another
+ * by offset. Changed IFDs are instead appended, with the TIFF
+ * header (or IFD0, for the Exif and GPS IFDs) pointing to the
+ * new copy. The old copy is simply left unreferenced. If there
+ * is no EXIF data, a fresh segment is created.
+ *
+ * An APP1 segment cannot exceed 64KB, so rewrite() returns null
+ * if the tags do not fit.
+ */
+public class ExifRewriter {
+  public static final int IFD_0=0;
+  public static final int IFD_EXIF=1;
+  public static final int IFD_GPS=2;
+
+  public static final int TAG_ORIENTATION=0x0112;
+  public static final int TAG_EXIF_IFD_POINTER=0x8769;
+  public static final int TAG_GPS_IFD_POINTER=0x8825;
+  public static final int TAG_DATE_TIME_ORIGINAL=0x9003;
+  public static final int TAG_OFFSET_TIME_ORIGINAL=0x9011;
+  public static final int TAG_SUB_SEC_TIME_ORIGINAL=0x9291;
+  public static final int TAG_PIXEL_X_DIMENSION=0xA002;
+  public static final int TAG_PIXEL_Y_DIMENSION=0xA003;
+  public static final int TAG_GPS_VERSION_ID=0x0000;
+  public static final int TAG_GPS_LATITUDE_REF=0x0001;
+  public static final int TAG_GPS_LATITUDE=0x0002;
+  public static final int TAG_GPS_LONGITUDE_REF=0x0003;
+  public static final int TAG_GPS_LONGITUDE=0x0004;
+  public static final int TAG_GPS_ALTITUDE_REF=0x0005;
+  public static final int TAG_GPS_ALTITUDE=0x0006;
+  public static final int TAG_GPS_TIME_STAMP=0x0007;
+  public static final int TAG_GPS_DATE_STAMP=0x001D;
+
+  private static final int TYPE_BYTE=1;
+  private static final int TYPE_ASCII=2;
+  private static final int TYPE_SHORT=3;
+  private static final int TYPE_LONG=4;
+  private static final int TYPE_RATIONAL=5;
+  private static final int TYPE_SRATIONAL=10;
+  private static final int MAX_SEGMENT_LENGTH=0xFFFF;
+  private static final byte[] EXIF_HEADER={'E', 'x', 'i', 'f', 0, 0};
+  private static final Charset ASCII=Charset.forName("US-ASCII");
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final TreeMap<Integer, Value>[] changes=new TreeMap[] {
+      new TreeMap<Integer, Value>(), new TreeMap<Integer, Value>(),
+      new TreeMap<Integer, Value>()
+  };
+  private boolean removeThumbnail=false;
+
+  /**
+   * Unlinks the thumbnail (IFD1) from the EXIF data, such as
+   * when the picture has changed in a way that the thumbnail
+   * does not reflect.
+   *
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter removeThumbnail() {
+    removeThumbnail=true;
+
+    return(this);
+  }
+
+  /**
+   * Sets the Orientation tag.
+   *
+   * @param orientation the EXIF orientation, from 1 to 8
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setOrientation(int orientation) {
+    return(setShort(IFD_0, TAG_ORIENTATION, orientation));
+  }
+
+  /**
+   * Sets when the picture was taken, down to the millisecond,
+   * via the DateTimeOriginal, SubSecTimeOriginal, and
+   * OffsetTimeOriginal tags.
+   *
+   * @param millis when the picture was taken, in
+   *               System.currentTimeMillis() terms
+   * @param zone the time zone in which to express the time
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setDateTimeOriginal(long millis, TimeZone zone) {
+    Calendar cal=Calendar.getInstance(zone, Locale.US);
+    int offsetMinutes=zone.getOffset(millis)/60000;
+
+    cal.setTimeInMillis(millis);
+    setAscii(IFD_EXIF, TAG_DATE_TIME_ORIGINAL,
+        String.format(Locale.US, "%04d:%02d:%02d %02d:%02d:%02d",
+            cal.get(Calendar.YEAR), cal.get(Calendar.MONTH)+1,
+            cal.get(Calendar.DAY_OF_MONTH), cal.get(Calendar.HOUR_OF_DAY),
+            cal.get(Calendar.MINUTE), cal.get(Calendar.SECOND)));
+    setAscii(IFD_EXIF, TAG_SUB_SEC_TIME_ORIGINAL,
+        String.format(Locale.US, "%03d", cal.get(Calendar.MILLISECOND)));
+
+    return(setAscii(IFD_EXIF, TAG_OFFSET_TIME_ORIGINAL,
+        String.format(Locale.US, "%c%02d:%02d", offsetMinutes<0 ? '-' : '+',
+            Math.abs(offsetMinutes)/60, Math.abs(offsetMinutes)%60)));
+  }
+
+  /**
+   * Sets where the picture was taken, via the GPS IFD.
+   *
+   * @param latitude the latitude, in degrees
+   * @param longitude the longitude, in degrees
+   * @param fixMillis when the location was determined, in
+   *                  System.currentTimeMillis() terms, or -1 if
+   *                  that is not known
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setGpsLocation(double latitude, double longitude,
+                                     long fixMillis) {
+    setBytes(IFD_GPS, TAG_GPS_VERSION_ID, new byte[] {2, 2, 0, 0});
+    setAscii(IFD_GPS, TAG_GPS_LATITUDE_REF, latitude<0 ? "S" : "N");
+    setRationals(IFD_GPS, TAG_GPS_LATITUDE, toDegreesMinutesSeconds(latitude));
+    setAscii(IFD_GPS, TAG_GPS_LONGITUDE_REF, longitude<0 ? "W" : "E");
+    setRationals(IFD_GPS, TAG_GPS_LONGITUDE,
+        toDegreesMinutesSeconds(longitude));
+
+    if (fixMillis>=0) {
+      Calendar cal=
+          Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+
+      cal.setTimeInMillis(fixMillis);
+      setRationals(IFD_GPS, TAG_GPS_TIME_STAMP,
+          cal.get(Calendar.HOUR_OF_DAY), 1, cal.get(Calendar.MINUTE), 1,
+          cal.get(Calendar.SECOND)*1000+cal.get(Calendar.MILLISECOND), 1000);
+      setAscii(IFD_GPS, TAG_GPS_DATE_STAMP,
+          String.format(Locale.US, "%04d:%02d:%02d", cal.get(Calendar.YEAR),
+              cal.get(Calendar.MONTH)+1, cal.get(Calendar.DAY_OF_MONTH)));
+    }
+
+    return(this);
+  }
+
+  /**
+   * Sets the altitude of where the picture was taken.
+   *
+   * @param meters the altitude, in meters above sea level
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setGpsAltitude(double meters) {
+    setBytes(IFD_GPS, TAG_GPS_ALTITUDE_REF, new byte[] {(byte)(meters<0 ? 1 : 0)});
+
+    return(setRationals(IFD_GPS, TAG_GPS_ALTITUDE,
+        Math.round(Math.abs(meters)*100), 100));
+  }
+
+  /**
+   * Sets a tag to a single SHORT value.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param value the value
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setShort(int ifd, int tag, int value) {
+    return(set(ifd, tag, new Value(TYPE_SHORT, 1, new long[] {value})));
+  }
+
+  /**
+   * Sets a tag to a single LONG value.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param value the value
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setLong(int ifd, int tag, long value) {
+    return(set(ifd, tag, new Value(TYPE_LONG, 1, new long[] {value})));
+  }
+
+  /**
+   * Sets a tag to an ASCII string.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param value the value, which should be plain ASCII
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setAscii(int ifd, int tag, String value) {
+    byte[] chars=value.getBytes(ASCII);
+    byte[] bytes=new byte[chars.length+1]; // NUL-terminated
+
+    System.arraycopy(chars, 0, bytes, 0, chars.length);
+
+    return(set(ifd, tag, new Value(TYPE_ASCII, bytes)));
+  }
+
+  /**
+   * Sets a tag to a sequence of BYTE values.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param value the value
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setBytes(int ifd, int tag, byte[] value) {
+    return(set(ifd, tag, new Value(TYPE_BYTE, value.clone())));
+  }
+
+  /**
+   * Sets a tag to one or more RATIONAL values.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param fractions numerator and denominator pairs
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setRationals(int ifd, int tag, long... fractions) {
+    return(set(ifd, tag,
+        new Value(TYPE_RATIONAL, fractions.length/2, fractions.clone())));
+  }
+
+  /**
+   * Sets a tag to one or more SRATIONAL values.
+   *
+   * @param ifd IFD_0, IFD_EXIF, or IFD_GPS
+   * @param tag the tag
+   * @param fractions numerator and denominator pairs
+   * @return the rewriter, for chaining
+   */
+  public ExifRewriter setSignedRationals(int ifd, int tag, long... fractions) {
+    return(set(ifd, tag,
+        new Value(TYPE_SRATIONAL, fractions.length/2, fractions.clone())));
+  }
+
+  /**
+   * @return true if no tags have been set (nor the thumbnail
+   * removed), false otherwise
+   */
+  public boolean isEmpty() {
+    if (removeThumbnail) {
+      return(false);
+    }
+
+    for (TreeMap<Integer, Value> ifd : changes) {
+      if (!ifd.isEmpty()) {
+        return(false);
+      }
+    }
+
+    return(true);
+  }
+
+  /**
+   * Creates a copy of a JPEG with the tags set. The image
+   * data is copied as-is, in one shot.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @return the new JPEG, or null if this does not look like a
+   * JPEG, or the EXIF data would be too big
+   */
+  public byte[] rewrite(ByteBuffer jpeg) {
+    if (jpeg.limit()<4 || (jpeg.get(0)&0xFF)!=0xFF ||
+        (jpeg.get(1)&0xFF)!=0xD8) {
+      return(null);
+    }
+
+    JpegHeader.Exif exif=JpegHeader.findExif(jpeg);
+    byte[] tiff;
+    int spliceStart;
+    int spliceEnd;
+
+    try {
+      if (exif==null) {
+        tiff=buildTiff();
+        spliceStart=2;
+        spliceEnd=2;
+      }
+      else {
+        tiff=extendTiff(exif);
+        spliceStart=exif.segment;
+        spliceEnd=exif.tiff+exif.tiffLength;
+      }
+    }
+    catch (IndexOutOfBoundsException e) {
+      return(null);
+    }
+
+    int segmentLength=2+EXIF_HEADER.length+tiff.length;
+
+    if (segmentLength>MAX_SEGMENT_LENGTH) {
+      return(null);
+    }
+
+    int tail=jpeg.limit()-spliceEnd;
+    byte[] result=new byte[spliceStart+2+segmentLength+tail];
+    ByteBuffer src=jpeg.duplicate();
+    int at=spliceStart;
+
+    src.position(0);
+    src.get(result, 0, spliceStart);
+    result[at++]=(byte)0xFF;
+    result[at++]=(byte)0xE1;
+    result[at++]=(byte)(segmentLength>>8);
+    result[at++]=(byte)segmentLength;
+    System.arraycopy(EXIF_HEADER, 0, result, at, EXIF_HEADER.length);
+    at+=EXIF_HEADER.length;
+    System.arraycopy(tiff, 0, result, at, tiff.length);
+    at+=tiff.length;
+    src.position(spliceEnd);
+    src.get(result, at, tail);
+
+    return(result);
+  }
+
+  private ExifRewriter set(int ifd, int tag, Value value) {
+    if (ifd<IFD_0 || ifd>IFD_GPS) {
+      throw new IllegalArgumentException("Unrecognized IFD: "+ifd);
+    }
+
+    changes[ifd].put(tag, value);
+
+    return(this);
+  }
+
+  /**
+   * Builds TIFF data from scratch, for a JPEG with no EXIF.
+   */
+  private byte[] buildTiff() {
+    Tiff out=new Tiff(ByteOrder.BIG_ENDIAN);
+
+    out.writeByte('M');
+    out.writeByte('M');
+    out.writeShort(42);
+    out.writeInt(8);
+    writeIfds(out, new ArrayList<byte[]>(), new ArrayList<byte[]>(),
+        new ArrayList<byte[]>(), 0, 4);
+
+    return(out.toByteArray());
+  }
+
+  /**
+   * Copies the existing TIFF data and appends the changed
+   * IFDs to it.
+   */
+  private byte[] extendTiff(JpegHeader.Exif exif) {
+    Tiff out=new Tiff(exif.order);
+    byte[] original=new byte[exif.tiffLength];
+    ByteBuffer src=exif.jpeg.duplicate();
+
+    src.position(exif.tiff);
+    src.get(original);
+    out.append(original);
+
+    ArrayList<byte[]> ifd0=readEntries(exif, exif.ifd0);
+    ArrayList<byte[]> exifIfd=new ArrayList<byte[]>();
+    ArrayList<byte[]> gpsIfd=new ArrayList<byte[]>();
+    long ifd1=0;
+    int link=exif.findIfd1Link();
+
+    if (link>=0 && !removeThumbnail) {
+      ifd1=JpegHeader.readUnsignedInt(exif.jpeg, link, exif.order);
+    }
+
+    for (byte[] entry : ifd0) {
+      int tag=out.readShort(entry, 0);
+
+      if (tag==TAG_EXIF_IFD_POINTER) {
+        exifIfd=readEntries(exif, (int)out.readInt(entry, 8));
+      }
+      else if (tag==TAG_GPS_IFD_POINTER) {
+        gpsIfd=readEntries(exif, (int)out.readInt(entry, 8));
+      }
+    }
+
+    writeIfds(out, ifd0, exifIfd, gpsIfd, ifd1, 4);
+
+    return(out.toByteArray());
+  }
+
+  /**
+   * Appends new Exif and GPS IFDs, if they have changes, and a
+   * new IFD0 pointing to them, then points the TIFF header at
+   * the new IFD0.
+   */
+  private void writeIfds(Tiff out, ArrayList<byte[]> ifd0,
+                         ArrayList<byte[]> exifIfd, ArrayList<byte[]> gpsIfd,
+                         long ifd1, int headerLink) {
+    if (!changes[IFD_EXIF].isEmpty()) {
+      long at=writeIfd(out, exifIfd, changes[IFD_EXIF], 0);
+
+      changes[IFD_0].put(TAG_EXIF_IFD_POINTER,
+          new Value(TYPE_LONG, 1, new long[] {at}));
+    }
+
+    if (!changes[IFD_GPS].isEmpty()) {
+      long at=writeIfd(out, gpsIfd, changes[IFD_GPS], 0);
+
+      changes[IFD_0].put(TAG_GPS_IFD_POINTER,
+          new Value(TYPE_LONG, 1, new long[] {at}));
+    }
+
+    try {
+      out.patchInt(headerLink, writeIfd(out, ifd0, changes[IFD_0], ifd1));
+    }
+    finally {
+      changes[IFD_0].remove(TAG_EXIF_IFD_POINTER);
+      changes[IFD_0].remove(TAG_GPS_IFD_POINTER);
+    }
+  }
+
+  /**
+   * Appends an IFD, merging existing entries with changes.
+   * Existing entries are copied verbatim, so their offsets stay
+   * valid. Entries must be sorted by tag.
+   *
+   * @return the offset of the new IFD
+   */
+  private long writeIfd(final Tiff out, ArrayList<byte[]> existing,
+                        TreeMap<Integer, Value> changed, long next) {
+    ArrayList<byte[]> entries=new ArrayList<byte[]>();
+
+    for (byte[] entry : existing) {
+      if (!changed.containsKey(out.readShort(entry, 0))) {
+        entries.add(entry);
+      }
+    }
+
+    out.align();
+
+    long ifd=out.size();
+    int count=entries.size()+changed.size();
+    long values=ifd+2+count*12L+4;
+
+    // figure out where out-of-line values go, after the IFD
+
+    ArrayList<byte[]> valueData=new ArrayList<byte[]>();
+
+    for (Map.Entry<Integer, Value> change : changed.entrySet()) {
+      Value value=change.getValue();
+      byte[] data=value.encode(out.order);
+      byte[] entry=new byte[12];
+
+      out.writeShort(entry, 0, change.getKey());
+      out.writeShort(entry, 2, value.type);
+      out.writeInt(entry, 4, value.count);
+
+      if (data.length<=4) {
+        System.arraycopy(data, 0, entry, 8, data.length);
+      }
+      else {
+        out.writeInt(entry, 8, values);
+        valueData.add(data);
+        values+=data.length+(data.length&1);
+      }
+
+      entries.add(entry);
+    }
+
+    Collections.sort(entries, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] lhs, byte[] rhs) {
+        return(out.readShort(lhs, 0)-out.readShort(rhs, 0));
+      }
+    });
+
+    out.writeShort(count);
+
+    for (byte[] entry : entries) {
+      out.append(entry);
+    }
+
+    out.writeInt(next);
+
+    for (byte[] data : valueData) {
+      out.append(data);
+      out.align();
+    }
+
+    return(ifd);
+  }
+
+  private static ArrayList<byte[]> readEntries(JpegHeader.Exif exif,
+                                               int offset) {
+    ArrayList<byte[]> result=new ArrayList<byte[]>();
+
+    if (offset<=0 || offset+2>exif.tiffLength) {
+      return(result);
+    }
+
+    int count=JpegHeader.readUnsignedShort(exif.jpeg, exif.tiff+offset,
+        exif.order);
+
+    for (int i=0;i<count;i++) {
+      int at=offset+2+i*12;
+
+      if (at+12>exif.tiffLength) {
+        break;
+      }
+
+      byte[] entry=new byte[12];
+      ByteBuffer src=exif.jpeg.duplicate();
+
+      src.position(exif.tiff+at);
+      src.get(entry);
+      result.add(entry);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Converts degrees to the degrees, minutes, and seconds
+   * (to 1/1000th of a second) that EXIF wants.
+   */
+  private static long[] toDegreesMinutesSeconds(double value) {
+    long thousandths=Math.round(Math.abs(value)*3600000);
+
+    return(new long[] {thousandths/3600000, 1, (thousandths/60000)%60, 1,
+        thousandths%60000, 1000});
+  }
+
+  /**
+   * A tag's new value, held as numbers until we know the byte
+   * order, or as bytes for BYTE and ASCII types.
+   */
+  private static class Value {
+    final int type;
+    final int count;
+    final long[] numbers;
+    final byte[] bytes;
+
+    Value(int type, int count, long[] numbers) {
+      this.type=type;
+      this.count=count;
+      this.numbers=numbers;
+      this.bytes=null;
+    }
+
+    Value(int type, byte[] bytes) {
+      this.type=type;
+      this.count=bytes.length;
+      this.numbers=null;
+      this.bytes=bytes;
+    }
+
+    byte[] encode(ByteOrder order) {
+      if (bytes!=null) {
+        return(bytes);
+      }
+
+      int size=(type==TYPE_SHORT ? 2 : 4);
+      ByteBuffer result=
+          ByteBuffer.allocate(numbers.length*size).order(order);
+
+      for (long number : numbers) {
+        if (size==2) {
+          result.putShort((short)number);
+        }
+        else {
+          result.putInt((int)number);
+        }
+      }
+
+      return(result.array());
+    }
+  }
+
+  /**
+   * TIFF data being assembled, in a particular byte order.
+   */
+  private static class Tiff extends ByteArrayOutputStream {
+    final ByteOrder order;
+
+    Tiff(ByteOrder order) {
+      this.order=order;
+    }
+
+    void writeByte(int value) {
+      write(value);
+    }
+
+    void writeShort(int value) {
+      byte[] bytes=new byte[2];
+
+      writeShort(bytes, 0, value);
+      write(bytes, 0, 2);
+    }
+
+    void writeInt(long value) {
+      byte[] bytes=new byte[4];
+
+      writeInt(bytes, 0, value);
+      write(bytes, 0, 4);
+    }
+
+    void append(byte[] bytes) {
+      write(bytes, 0, bytes.length);
+    }
+
+    void align() {
+      if ((count&1)!=0) {
+        write(0);
+      }
+    }
+
+    void patchInt(int at, long value) {
+      writeInt(buf, at, value);
+    }
+
+    void writeShort(byte[] target, int at, int value) {
+      if (order==ByteOrder.BIG_ENDIAN) {
+        target[at]=(byte)(value>>8);
+        target[at+1]=(byte)value;
+      }
+      else {
+        target[at]=(byte)value;
+        target[at+1]=(byte)(value>>8);
+      }
+    }
+
+    void writeInt(byte[] target, int at, long value) {
+      if (order==ByteOrder.BIG_ENDIAN) {
+        writeShort(target, at, (int)(value>>16));
+        writeShort(target, at+2, (int)value);
+      }
+      else {
+        writeShort(target, at, (int)value);
+        writeShort(target, at+2, (int)(value>>16));
+      }
+    }
+
+    int readShort(byte[] source, int at) {
+      int first=source[at]&0xFF;
+      int second=source[at+1]&0xFF;
+
+      return(order==ByteOrder.BIG_ENDIAN ? (first<<8)|second :
+          (second<<8)|first);
+    }
+
+    long readInt(byte[] source, int at) {
+      long first=readShort(source, at);
+      long second=readShort(source, at+2);
+
+      return(order==ByteOrder.BIG_ENDIAN ? (first<<16)|second :
+          (second<<16)|first);
+    }
+  }
+}
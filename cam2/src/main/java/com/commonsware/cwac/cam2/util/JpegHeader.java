@@ -0,0 +1,440 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads basic facts about a JPEG from its headers, without
+ * decoding any of the image data.
+ */
+public class JpegHeader {
+  private static final int MARKER_SOI=0xD8;
+  private static final int MARKER_SOS=0xDA;
+  private static final int MARKER_EOI=0xD9;
+  private static final int MARKER_TEM=0x01;
+  private static final int MARKER_APP1=0xE1;
+  private static final int TAG_ORIENTATION=0x0112;
+  private static final int TAG_JPEG_INTERCHANGE_FORMAT=0x0201;
+  private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH=0x0202;
+  private static final byte[] EXIF_HEADER={'E', 'x', 'i', 'f', 0, 0};
+
+  /**
+   * Finds the dimensions of a JPEG, by scanning its markers
+   * for the start-of-frame (SOF) segment. This does not take
+   * EXIF orientation into account, so the dimensions are those
+   * of the image as encoded.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @return the dimensions, or null if this does not look like
+   * a JPEG or there is no SOF segment before the image data
+   */
+  public static Size readSize(ByteBuffer jpeg) {
+    int i=findSegment(jpeg, new SegmentFilter() {
+      @Override
+      public boolean accept(ByteBuffer jpeg, int marker, int start,
+                            int length) {
+        return(isStartOfFrame(marker) && length>=7);
+      }
+    });
+
+    if (i<0) {
+      return(null);
+    }
+
+    return(new Size(readUnsignedShort(jpeg, i+5, ByteOrder.BIG_ENDIAN),
+        readUnsignedShort(jpeg, i+3, ByteOrder.BIG_ENDIAN)));
+  }
+
+  /**
+   * Finds the thumbnail that many cameras embed in the EXIF
+   * (APP1) segment of a JPEG, in IFD1. The thumbnail is itself
+   * a JPEG.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @return a view on the thumbnail within the JPEG, from
+   * position 0 to its limit, or null if there is no thumbnail
+   */
+  public static ByteBuffer findExifThumbnail(ByteBuffer jpeg) {
+    Exif exif=findExif(jpeg);
+
+    if (exif==null) {
+      return(null);
+    }
+
+    int tiff=exif.tiff;
+    int tiffLength=exif.tiffLength;
+    ByteOrder order=exif.order;
+
+    // IFD0 tells us where IFD1 is, and IFD1 tells us where the
+    // thumbnail is; all offsets are from the TIFF header
+
+    int link=exif.findIfd1Link();
+
+    if (link<0) {
+      return(null);
+    }
+
+    long ifd1=readUnsignedInt(jpeg, link, order);
+
+    if (ifd1==0 || ifd1+2>tiffLength) {
+      return(null);
+    }
+
+    int ifd1Entries=readUnsignedShort(jpeg, tiff+(int)ifd1, order);
+    long thumbOffset=-1;
+    long thumbLength=-1;
+
+    for (int entry=0;entry<ifd1Entries;entry++) {
+      long at=ifd1+2+entry*12L;
+
+      if (at+12>tiffLength) {
+        return(null);
+      }
+
+      int tag=readUnsignedShort(jpeg, tiff+(int)at, order);
+
+      if (tag==TAG_JPEG_INTERCHANGE_FORMAT) {
+        thumbOffset=readUnsignedInt(jpeg, tiff+(int)at+8, order);
+      }
+      else if (tag==TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+        thumbLength=readUnsignedInt(jpeg, tiff+(int)at+8, order);
+      }
+    }
+
+    if (thumbOffset<0 || thumbLength<=0 ||
+        thumbOffset+thumbLength>tiffLength) {
+      return(null);
+    }
+
+    ByteBuffer result=jpeg.duplicate();
+
+    result.limit(tiff+(int)(thumbOffset+thumbLength));
+    result.position(tiff+(int)thumbOffset);
+
+    return(result.slice());
+  }
+
+  /**
+   * Finds the EXIF (APP1) segment of a JPEG, such as to copy
+   * it into a re-encoded rendition of the same picture.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @return a view on the whole segment, from its 0xFF 0xE1
+   * marker through the end of its payload, or null if there is
+   * no usable EXIF segment
+   */
+  public static ByteBuffer findExifSegment(ByteBuffer jpeg) {
+    Exif exif=findExif(jpeg);
+
+    if (exif==null) {
+      return(null);
+    }
+
+    ByteBuffer result=jpeg.duplicate();
+    int length=
+        readUnsignedShort(jpeg, exif.segment+2, ByteOrder.BIG_ENDIAN)+2;
+
+    result.limit(exif.segment+length);
+    result.position(exif.segment);
+
+    return(result.slice());
+  }
+
+  /**
+   * Reads the Orientation tag from the EXIF (APP1) segment of
+   * a JPEG, which says how the image needs to be rotated and/or
+   * flipped for display.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @return the orientation, from 1 to 8 as defined by EXIF, or
+   * 1 (i.e., no rotation) if there is no usable Orientation tag
+   */
+  public static int readOrientation(ByteBuffer jpeg) {
+    Exif exif=findExif(jpeg);
+
+    if (exif!=null) {
+      int i=exif.findIfd0Value(TAG_ORIENTATION);
+
+      if (i>=0) {
+        int result=readUnsignedShort(jpeg, i, exif.order);
+
+        if (result>=1 && result<=8) {
+          return(result);
+        }
+      }
+    }
+
+    return(1);
+  }
+
+  /**
+   * Computes the power-of-two sample size that makes a decoded
+   * image fit within a byte limit, in one shot.
+   *
+   * @param width the width of the JPEG
+   * @param height the height of the JPEG
+   * @param bytesPerPixel the bytes per pixel of the decoded
+   *                      Bitmap (e.g., 4 for ARGB_8888)
+   * @param limit the most bytes that the decoded Bitmap may use
+   * @return the sample size, for BitmapFactory.Options.inSampleSize
+   */
+  public static int computeSampleSize(int width, int height,
+                                      int bytesPerPixel, long limit) {
+    int sampleSize=1;
+
+    // decoders round partial blocks up, so we do too
+
+    while ((long)ceilDiv(width, sampleSize)*ceilDiv(height, sampleSize)*
+        bytesPerPixel>limit && sampleSize<(1<<30)) {
+      sampleSize<<=1;
+    }
+
+    return(sampleSize);
+  }
+
+  /**
+   * Walks the segments of a JPEG that precede the image data.
+   *
+   * @return the index of the length field of the first segment
+   * that the filter accepts, or -1 if there is none
+   */
+  private static int findSegment(ByteBuffer jpeg, SegmentFilter filter) {
+    int limit=jpeg.limit();
+
+    if (limit<4 || (jpeg.get(0)&0xFF)!=0xFF ||
+        (jpeg.get(1)&0xFF)!=MARKER_SOI) {
+      return(-1);
+    }
+
+    int i=2;
+
+    while (i+3<limit) {
+      if ((jpeg.get(i)&0xFF)!=0xFF) {
+        return(-1);
+      }
+
+      int marker=jpeg.get(i+1)&0xFF;
+
+      if (marker==0xFF) {
+        i++; // fill byte
+        continue;
+      }
+
+      i+=2;
+
+      if (marker==MARKER_TEM || (marker>=0xD0 && marker<=0xD7)) {
+        continue; // no length, no payload
+      }
+
+      if (marker==MARKER_SOS || marker==MARKER_EOI) {
+        return(-1);
+      }
+
+      int length=readUnsignedShort(jpeg, i, ByteOrder.BIG_ENDIAN);
+
+      if (length<2 || i+length>limit) {
+        return(-1);
+      }
+
+      if (filter.accept(jpeg, marker, i, length)) {
+        return(i);
+      }
+
+      i+=length;
+    }
+
+    return(-1);
+  }
+
+  /**
+   * Finds the EXIF (APP1) segment of a JPEG and the TIFF
+   * structure within it.
+   *
+   * @return the EXIF segment, or null if there is none or it is
+   * not well-formed
+   */
+  static Exif findExif(ByteBuffer jpeg) {
+    int i=findSegment(jpeg, new SegmentFilter() {
+      @Override
+      public boolean accept(ByteBuffer jpeg, int marker, int start,
+                            int length) {
+        return(marker==MARKER_APP1 && isExif(jpeg, start+2, length-2));
+      }
+    });
+
+    if (i<0) {
+      return(null);
+    }
+
+    int length=readUnsignedShort(jpeg, i, ByteOrder.BIG_ENDIAN)-2;
+    int tiff=i+2+EXIF_HEADER.length;
+    int tiffLength=length-EXIF_HEADER.length;
+
+    if (tiffLength<8) {
+      return(null);
+    }
+
+    ByteOrder order;
+
+    if (jpeg.get(tiff)=='I' && jpeg.get(tiff+1)=='I') {
+      order=ByteOrder.LITTLE_ENDIAN;
+    }
+    else if (jpeg.get(tiff)=='M' && jpeg.get(tiff+1)=='M') {
+      order=ByteOrder.BIG_ENDIAN;
+    }
+    else {
+      return(null);
+    }
+
+    long ifd0=readUnsignedInt(jpeg, tiff+4, order);
+
+    if (ifd0+2>tiffLength) {
+      return(null);
+    }
+
+    return(new Exif(jpeg, i-2, tiff, tiffLength, order, (int)ifd0));
+  }
+
+  private static boolean isExif(ByteBuffer jpeg, int start, int length) {
+    if (length<EXIF_HEADER.length) {
+      return(false);
+    }
+
+    for (int i=0;i<EXIF_HEADER.length;i++) {
+      if (jpeg.get(start+i)!=EXIF_HEADER[i]) {
+        return(false);
+      }
+    }
+
+    return(true);
+  }
+
+  static int readUnsignedShort(ByteBuffer buffer, int i,
+                                       ByteOrder order) {
+    int first=buffer.get(i)&0xFF;
+    int second=buffer.get(i+1)&0xFF;
+
+    if (order==ByteOrder.BIG_ENDIAN) {
+      return((first<<8)|second);
+    }
+
+    return((second<<8)|first);
+  }
+
+  static long readUnsignedInt(ByteBuffer buffer, int i,
+                                      ByteOrder order) {
+    long high=readUnsignedShort(buffer, i, order);
+    long low=readUnsignedShort(buffer, i+2, order);
+
+    if (order==ByteOrder.BIG_ENDIAN) {
+      return((high<<16)|low);
+    }
+
+    return((low<<16)|high);
+  }
+
+  private static int ceilDiv(int value, int divisor) {
+    return((value+divisor-1)/divisor);
+  }
+
+  /**
+   * SOF0 through SOF15 are 0xC0 through 0xCF, except for DHT
+   * (0xC4), JPG (0xC8), and DAC (0xCC).
+   */
+  private static boolean isStartOfFrame(int marker) {
+    return(marker>=0xC0 && marker<=0xCF && marker!=0xC4 &&
+        marker!=0xC8 && marker!=0xCC);
+  }
+
+  /**
+   * Where the pieces of an EXIF segment are, within a JPEG.
+   * Indexes are absolute (i.e., from the start of the JPEG),
+   * except for offsets read from the TIFF structure itself,
+   * which are from the start of the TIFF header.
+   */
+  static class Exif {
+    final ByteBuffer jpeg;
+    final int segment;
+    final int tiff;
+    final int tiffLength;
+    final ByteOrder order;
+    final int ifd0;
+
+    Exif(ByteBuffer jpeg, int segment, int tiff, int tiffLength,
+         ByteOrder order, int ifd0) {
+      this.jpeg=jpeg;
+      this.segment=segment;
+      this.tiff=tiff;
+      this.tiffLength=tiffLength;
+      this.order=order;
+      this.ifd0=ifd0;
+    }
+
+    /**
+     * @return the index of the value field of the IFD0 entry
+     * with the given tag, or -1 if there is none
+     */
+    int findIfd0Value(int tag) {
+      int entries=readUnsignedShort(jpeg, tiff+ifd0, order);
+
+      for (int entry=0;entry<entries;entry++) {
+        long at=ifd0+2+entry*12L;
+
+        if (at+12>tiffLength) {
+          return(-1);
+        }
+
+        if (readUnsignedShort(jpeg, tiff+(int)at, order)==tag) {
+          return(tiff+(int)at+8);
+        }
+      }
+
+      return(-1);
+    }
+
+    /**
+     * @return the index of the link from IFD0 to IFD1, or -1 if
+     * the IFD0 runs off the end of the segment
+     */
+    int findIfd1Link() {
+      int entries=readUnsignedShort(jpeg, tiff+ifd0, order);
+      long next=ifd0+2+entries*12L;
+
+      if (next+4>tiffLength) {
+        return(-1);
+      }
+
+      return(tiff+(int)next);
+    }
+  }
+
+  private interface SegmentFilter {
+    /**
+     * @param jpeg the JPEG
+     * @param marker the segment's marker (e.g., 0xE1 for APP1)
+     * @param start the index of the segment's length field
+     * @param length the segment's length, including the length
+     *               field itself
+     * @return true if this is the segment being sought
+     */
+    boolean accept(ByteBuffer jpeg, int marker, int start, int length);
+  }
+}
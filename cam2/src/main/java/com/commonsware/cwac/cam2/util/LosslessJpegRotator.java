@@ -0,0 +1,1123 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Rotates a JPEG by 90, 180, or 270 degrees without decoding
+ * it to pixels, the way jpegtran does: the Huffman-coded data
+ * is decoded to DCT coefficients, the 8x8 blocks are moved to
+ * their new positions, the coefficients within each block are
+ * transposed and/or have their signs flipped, and the result
+ * is Huffman-coded again. No quality is lost, and no Bitmap
+ * is needed, though the coefficients of the whole image are
+ * held in memory (two bytes per pixel per component, before
+ * subsampling).
+ *
+ * Only baseline (and extended sequential) Huffman-coded JPEGs,
+ * with 8-bit samples and all components in one scan, are
+ * supported. That covers what camera hardware produces.
+ *
+ * A partial MCU along the edge that rotates to the top or
+ * left of the picture cannot be moved losslessly, as its
+ * padding would wind up on the visible side. Such pictures
+ * can either be left alone or have that partial MCU trimmed
+ * off, as with jpegtran's -trim option.
+ *
+ * The output uses the standard Huffman tables from the JPEG
+ * specification and no restart markers. Any EXIF Orientation
+ * tag is reset to 1, and the EXIF thumbnail is unlinked, as it
+ * would otherwise be displayed unrotated.
+ */
+public class LosslessJpegRotator {
+  private static final int MARKER_SOF0=0xC0;
+  private static final int MARKER_SOF1=0xC1;
+  private static final int MARKER_DHT=0xC4;
+  private static final int MARKER_SOI=0xD8;
+  private static final int MARKER_EOI=0xD9;
+  private static final int MARKER_SOS=0xDA;
+  private static final int MARKER_DQT=0xDB;
+  private static final int MARKER_DRI=0xDD;
+  private static final int MARKER_APP1=0xE1;
+  private static final int TAG_ORIENTATION=0x0112;
+
+  private static final int[] ZIGZAG={
+      0, 1, 8, 16, 9, 2, 3, 10,
+      17, 24, 32, 25, 18, 11, 4, 5,
+      12, 19, 26, 33, 40, 48, 41, 34,
+      27, 20, 13, 6, 7, 14, 21, 28,
+      35, 42, 49, 56, 57, 50, 43, 36,
+      29, 22, 15, 23, 30, 37, 44, 51,
+      58, 59, 52, 45, 38, 31, 39, 46,
+      53, 60, 61, 54, 47, 55, 62, 63
+  };
+
+  // standard tables, from Annex K.3 of the JPEG specification
+
+  private static final int[] STD_DC_LUMINANCE_BITS=
+      {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+  private static final int[] STD_DC_LUMINANCE_VALUES=
+      {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+  private static final int[] STD_DC_CHROMINANCE_BITS=
+      {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+  private static final int[] STD_DC_CHROMINANCE_VALUES=
+      {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+  private static final int[] STD_AC_LUMINANCE_BITS=
+      {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+  private static final int[] STD_AC_LUMINANCE_VALUES={
+      0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+      0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+      0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+      0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+      0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+      0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+      0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+      0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+      0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+      0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+      0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+      0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+      0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+      0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+      0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+      0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+      0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+      0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+      0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+      0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+      0xf9, 0xfa
+  };
+  private static final int[] STD_AC_CHROMINANCE_BITS=
+      {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+  private static final int[] STD_AC_CHROMINANCE_VALUES={
+      0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+      0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+      0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+      0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+      0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+      0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+      0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+      0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+      0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+      0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+      0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+      0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+      0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+      0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+      0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+      0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+      0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+      0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+      0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+      0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+      0xf9, 0xfa
+  };
+
+  /**
+   * Converts an EXIF orientation to the clockwise rotation
+   * that puts the picture upright.
+   *
+   * @param orientation the EXIF orientation, from 1 to 8
+   * @return 0, 90, 180, or 270, or -1 if the orientation
+   * involves a flip, which this class does not handle
+   */
+  public static int toDegrees(int orientation) {
+    switch (orientation) {
+      case 1:
+        return(0);
+      case 3:
+        return(180);
+      case 6:
+        return(90);
+      case 8:
+        return(270);
+    }
+
+    return(-1);
+  }
+
+  /**
+   * Converts a clockwise rotation to the EXIF orientation that
+   * asks viewers to apply it.
+   *
+   * @param degrees 0, 90, 180, or 270
+   * @return the EXIF orientation
+   */
+  public static int toOrientation(int degrees) {
+    switch (degrees) {
+      case 90:
+        return(6);
+      case 180:
+        return(3);
+      case 270:
+        return(8);
+    }
+
+    return(1);
+  }
+
+  /**
+   * Rotates a JPEG clockwise.
+   *
+   * @param jpeg the JPEG, from position 0 to its limit; the
+   *             buffer's position is not changed
+   * @param degrees 90, 180, or 270
+   * @param trim true to trim off a partial MCU that cannot be
+   *             rotated losslessly, false to give up instead
+   * @return the rotated JPEG, or null if this JPEG cannot be
+   * rotated (e.g., it is progressive, or it would need trimming
+   * and trim is false)
+   */
+  public static byte[] rotate(ByteBuffer jpeg, int degrees, boolean trim) {
+    if (degrees!=90 && degrees!=180 && degrees!=270) {
+      throw new IllegalArgumentException("Can only rotate by 90, 180, or 270 degrees");
+    }
+
+    try {
+      return(new Transform(jpeg, degrees, trim).run());
+    }
+    catch (MalformedException e) {
+      return(null);
+    }
+    catch (IndexOutOfBoundsException e) {
+      return(null);
+    }
+  }
+
+  /**
+   * The state of one rotation: what we learn from the JPEG's
+   * headers, plus the coefficients themselves.
+   */
+  private static class Transform {
+    final ByteBuffer in;
+    final int degrees;
+    final boolean trim;
+    final ByteArrayOutputStream out;
+    final int[][] quantTables=new int[4][];
+    final int[] quantPrecision=new int[4];
+    final HuffmanDecoder[] dcDecoders=new HuffmanDecoder[4];
+    final HuffmanDecoder[] acDecoders=new HuffmanDecoder[4];
+    int restartInterval=0;
+    int width;
+    int height;
+    Component[] components;
+    int maxH;
+    int maxV;
+    int mcusX;
+    int mcusY;
+
+    Transform(ByteBuffer jpeg, int degrees, boolean trim) {
+      this.in=jpeg;
+      this.degrees=degrees;
+      this.trim=trim;
+      this.out=new ByteArrayOutputStream(jpeg.limit()+1024);
+    }
+
+    byte[] run() throws MalformedException {
+      int limit=in.limit();
+
+      if (limit<4 || (in.get(0)&0xFF)!=0xFF ||
+          (in.get(1)&0xFF)!=MARKER_SOI) {
+        throw new MalformedException();
+      }
+
+      out.write(0xFF);
+      out.write(MARKER_SOI);
+
+      int i=2;
+
+      while (true) {
+        if (i+4>limit || (in.get(i)&0xFF)!=0xFF) {
+          throw new MalformedException();
+        }
+
+        int marker=in.get(i+1)&0xFF;
+
+        if (marker==0xFF) {
+          i++; // fill byte
+          continue;
+        }
+
+        i+=2;
+
+        if (marker==MARKER_EOI || (marker>=0xD0 && marker<=0xD7)) {
+          throw new MalformedException();
+        }
+
+        int length=readShort(i);
+
+        if (length<2 || i+length>limit) {
+          throw new MalformedException();
+        }
+
+        int start=i+2;
+        int end=i+length;
+
+        if (marker==MARKER_SOF0 || marker==MARKER_SOF1) {
+          readFrame(start, end);
+        }
+        else if (marker>=0xC2 && marker<=0xCF && marker!=MARKER_DHT &&
+            marker!=0xC8 && marker!=0xCC) {
+          return(null); // progressive, lossless, or arithmetic
+        }
+        else if (marker==0xCC) {
+          return(null); // arithmetic coding conditioning
+        }
+        else if (marker==MARKER_DQT) {
+          readQuantTables(start, end);
+        }
+        else if (marker==MARKER_DHT) {
+          readHuffmanTables(start, end);
+        }
+        else if (marker==MARKER_DRI) {
+          restartInterval=readShort(start);
+        }
+        else if (marker==MARKER_SOS) {
+          if (components==null || !readScanHeader(start, end) ||
+              !isRotatable()) {
+            return(null);
+          }
+
+          decode(end);
+          writeHeaders();
+          encode();
+          out.write(0xFF);
+          out.write(MARKER_EOI);
+
+          return(out.toByteArray());
+        }
+        else {
+          copySegment(marker, i-2, end);
+        }
+
+        i=end;
+      }
+    }
+
+    private void readFrame(int start, int end) throws MalformedException {
+      if (end-start<6 || (in.get(start)&0xFF)!=8) {
+        throw new MalformedException(); // only 8-bit samples
+      }
+
+      height=readShort(start+1);
+      width=readShort(start+3);
+
+      int count=in.get(start+5)&0xFF;
+
+      if (width==0 || height==0 || count==0 || count>4 ||
+          end-start<6+count*3) {
+        throw new MalformedException();
+      }
+
+      components=new Component[count];
+
+      for (int c=0;c<count;c++) {
+        int at=start+6+c*3;
+        Component comp=new Component();
+
+        comp.id=in.get(at)&0xFF;
+        comp.h=(in.get(at+1)&0xFF)>>4;
+        comp.v=in.get(at+1)&0x0F;
+        comp.quantTable=in.get(at+2)&0x0F;
+
+        if (comp.h<1 || comp.h>4 || comp.v<1 || comp.v>4 ||
+            comp.quantTable>3) {
+          throw new MalformedException();
+        }
+
+        components[c]=comp;
+      }
+
+      // a lone component is coded block by block, regardless of
+      // its sampling factors
+
+      if (count==1) {
+        components[0].h=1;
+        components[0].v=1;
+      }
+
+      for (Component comp : components) {
+        maxH=Math.max(maxH, comp.h);
+        maxV=Math.max(maxV, comp.v);
+      }
+
+      mcusX=ceilDiv(width, 8*maxH);
+      mcusY=ceilDiv(height, 8*maxV);
+
+      for (Component comp : components) {
+        comp.blocksX=mcusX*comp.h;
+        comp.blocksY=mcusY*comp.v;
+      }
+    }
+
+    private void readQuantTables(int start, int end)
+        throws MalformedException {
+      int i=start;
+
+      while (i<end) {
+        int precision=(in.get(i)&0xFF)>>4;
+        int id=in.get(i)&0x0F;
+        int[] table=new int[64];
+
+        if (id>3 || i+1+64*(precision+1)>end) {
+          throw new MalformedException();
+        }
+
+        i++;
+
+        for (int k=0;k<64;k++) {
+          if (precision==0) {
+            table[ZIGZAG[k]]=in.get(i)&0xFF;
+            i++;
+          }
+          else {
+            table[ZIGZAG[k]]=readShort(i);
+            i+=2;
+          }
+        }
+
+        quantTables[id]=table;
+        quantPrecision[id]=precision;
+      }
+    }
+
+    private void readHuffmanTables(int start, int end)
+        throws MalformedException {
+      int i=start;
+
+      while (i<end) {
+        int tableClass=(in.get(i)&0xFF)>>4;
+        int id=in.get(i)&0x0F;
+        int[] bits=new int[16];
+        int total=0;
+
+        if (tableClass>1 || id>3 || i+17>end) {
+          throw new MalformedException();
+        }
+
+        for (int k=0;k<16;k++) {
+          bits[k]=in.get(i+1+k)&0xFF;
+          total+=bits[k];
+        }
+
+        i+=17;
+
+        if (i+total>end) {
+          throw new MalformedException();
+        }
+
+        int[] values=new int[total];
+
+        for (int k=0;k<total;k++) {
+          values[k]=in.get(i+k)&0xFF;
+        }
+
+        i+=total;
+
+        HuffmanDecoder decoder=new HuffmanDecoder(bits, values);
+
+        if (tableClass==0) {
+          dcDecoders[id]=decoder;
+        }
+        else {
+          acDecoders[id]=decoder;
+        }
+      }
+    }
+
+    /**
+     * @return true if the scan holds every component, in frame
+     * order, as a baseline sequential scan, false otherwise
+     */
+    private boolean readScanHeader(int start, int end)
+        throws MalformedException {
+      int count=in.get(start)&0xFF;
+
+      if (count!=components.length || end-start<1+count*2+3) {
+        return(false);
+      }
+
+      for (int c=0;c<count;c++) {
+        Component comp=components[c];
+        int at=start+1+c*2;
+
+        if ((in.get(at)&0xFF)!=comp.id) {
+          return(false);
+        }
+
+        int tables=in.get(at+1)&0xFF;
+
+        comp.dc=dcDecoders[(tables>>4)&0x03];
+        comp.ac=acDecoders[tables&0x03];
+
+        if (comp.dc==null || comp.ac==null ||
+            quantTables[comp.quantTable]==null) {
+          throw new MalformedException();
+        }
+      }
+
+      int at=start+1+count*2;
+
+      return((in.get(at)&0xFF)==0 && (in.get(at+1)&0xFF)==63 &&
+          (in.get(at+2)&0xFF)==0);
+    }
+
+    /**
+     * Checks whether the edges that wind up on the top and left
+     * are whole MCUs, trimming them to whole MCUs if allowed.
+     */
+    private boolean isRotatable() {
+      int mcuWidth=8*maxH;
+      int mcuHeight=8*maxV;
+      boolean trimWidth=(degrees==180 || degrees==270) &&
+          width%mcuWidth!=0;
+      boolean trimHeight=(degrees==90 || degrees==180) &&
+          height%mcuHeight!=0;
+
+      if (!trimWidth && !trimHeight) {
+        return(true);
+      }
+
+      if (!trim) {
+        return(false);
+      }
+
+      if (trimWidth) {
+        width=width/mcuWidth*mcuWidth;
+      }
+
+      if (trimHeight) {
+        height=height/mcuHeight*mcuHeight;
+      }
+
+      return(width>0 && height>0);
+    }
+
+    private void decode(int scanStart) throws MalformedException {
+      BitReader bits=new BitReader(in, scanStart);
+      int restartsLeft=restartInterval;
+      int nextRestart=0;
+
+      for (Component comp : components) {
+        comp.coefficients=new short[comp.blocksX*comp.blocksY*64];
+      }
+
+      for (int mcuY=0;mcuY<mcusY;mcuY++) {
+        for (int mcuX=0;mcuX<mcusX;mcuX++) {
+          if (restartInterval>0) {
+            if (restartsLeft==0) {
+              bits.readRestart(nextRestart);
+              nextRestart=(nextRestart+1)&7;
+              restartsLeft=restartInterval;
+
+              for (Component comp : components) {
+                comp.dcPredictor=0;
+              }
+            }
+
+            restartsLeft--;
+          }
+
+          for (Component comp : components) {
+            for (int y=0;y<comp.v;y++) {
+              for (int x=0;x<comp.h;x++) {
+                int block=(mcuY*comp.v+y)*comp.blocksX+mcuX*comp.h+x;
+
+                decodeBlock(bits, comp, block*64);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    private void decodeBlock(BitReader bits, Component comp, int offset)
+        throws MalformedException {
+      short[] coefficients=comp.coefficients;
+      int size=comp.dc.decode(bits);
+
+      if (size>0) {
+        comp.dcPredictor+=extend(bits.read(size), size);
+      }
+
+      coefficients[offset]=(short)comp.dcPredictor;
+
+      for (int k=1;k<64;k++) {
+        int symbol=comp.ac.decode(bits);
+        int run=symbol>>4;
+
+        size=symbol&0x0F;
+
+        if (size==0) {
+          if (run!=15) {
+            break; // end of block
+          }
+
+          k+=15;
+        }
+        else {
+          k+=run;
+
+          if (k>63) {
+            throw new MalformedException();
+          }
+
+          coefficients[offset+ZIGZAG[k]]=(short)extend(bits.read(size), size);
+        }
+      }
+    }
+
+    private void writeHeaders() {
+      boolean transpose=(degrees!=180);
+      boolean[] written=new boolean[4];
+
+      for (Component comp : components) {
+        int id=comp.quantTable;
+
+        if (written[id]) {
+          continue;
+        }
+
+        written[id]=true;
+
+        int[] table=quantTables[id];
+        int precision=quantPrecision[id];
+
+        writeMarker(MARKER_DQT, 1+64*(precision+1));
+        out.write((precision<<4)|id);
+
+        for (int k=0;k<64;k++) {
+          int natural=ZIGZAG[k];
+          int value=
+              (transpose ? table[(natural&7)*8+(natural>>3)] : table[natural]);
+
+          if (precision!=0) {
+            out.write(value>>8);
+          }
+
+          out.write(value&0xFF);
+        }
+      }
+
+      int newWidth=(transpose ? height : width);
+      int newHeight=(transpose ? width : height);
+
+      writeMarker(MARKER_SOF0, 6+components.length*3);
+      out.write(8);
+      out.write(newHeight>>8);
+      out.write(newHeight&0xFF);
+      out.write(newWidth>>8);
+      out.write(newWidth&0xFF);
+      out.write(components.length);
+
+      for (Component comp : components) {
+        out.write(comp.id);
+        out.write(transpose ? (comp.v<<4)|comp.h : (comp.h<<4)|comp.v);
+        out.write(comp.quantTable);
+      }
+
+      writeHuffmanTable(0x00, STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES);
+      writeHuffmanTable(0x10, STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES);
+
+      if (components.length>1) {
+        writeHuffmanTable(0x01, STD_DC_CHROMINANCE_BITS,
+            STD_DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, STD_AC_CHROMINANCE_BITS,
+            STD_AC_CHROMINANCE_VALUES);
+      }
+
+      writeMarker(MARKER_SOS, 1+components.length*2+3);
+      out.write(components.length);
+
+      for (int c=0;c<components.length;c++) {
+        out.write(components[c].id);
+        out.write(c==0 ? 0x00 : 0x11);
+      }
+
+      out.write(0);
+      out.write(63);
+      out.write(0);
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] bits,
+                                   int[] values) {
+      writeMarker(MARKER_DHT, 1+16+values.length);
+      out.write(classAndId);
+
+      for (int count : bits) {
+        out.write(count);
+      }
+
+      for (int value : values) {
+        out.write(value);
+      }
+    }
+
+    private void writeMarker(int marker, int payloadLength) {
+      int length=payloadLength+2;
+
+      out.write(0xFF);
+      out.write(marker);
+      out.write(length>>8);
+      out.write(length&0xFF);
+    }
+
+    /**
+     * Huffman-codes the coefficients in their new order. The
+     * new MCU grid has the sampling factors (and so the block
+     * counts) swapped if we are transposing, and covers only
+     * the blocks that survived any trimming.
+     */
+    private void encode() {
+      boolean transpose=(degrees!=180);
+      int newMaxH=(transpose ? maxV : maxH);
+      int newMaxV=(transpose ? maxH : maxV);
+      int newWidth=(transpose ? height : width);
+      int newHeight=(transpose ? width : height);
+      int newMcusX=ceilDiv(newWidth, 8*newMaxH);
+      int newMcusY=ceilDiv(newHeight, 8*newMaxV);
+      HuffmanEncoder dcLuminance=
+          new HuffmanEncoder(STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES);
+      HuffmanEncoder acLuminance=
+          new HuffmanEncoder(STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES);
+      HuffmanEncoder dcChrominance=
+          new HuffmanEncoder(STD_DC_CHROMINANCE_BITS,
+              STD_DC_CHROMINANCE_VALUES);
+      HuffmanEncoder acChrominance=
+          new HuffmanEncoder(STD_AC_CHROMINANCE_BITS,
+              STD_AC_CHROMINANCE_VALUES);
+      BitWriter bits=new BitWriter(out);
+      short[] block=new short[64];
+
+      for (Component comp : components) {
+        comp.dcPredictor=0;
+      }
+
+      for (int mcuY=0;mcuY<newMcusY;mcuY++) {
+        for (int mcuX=0;mcuX<newMcusX;mcuX++) {
+          for (int c=0;c<components.length;c++) {
+            Component comp=components[c];
+            int newH=(transpose ? comp.v : comp.h);
+            int newV=(transpose ? comp.h : comp.v);
+            HuffmanEncoder dc=(c==0 ? dcLuminance : dcChrominance);
+            HuffmanEncoder ac=(c==0 ? acLuminance : acChrominance);
+
+            // the blocks of the source that we are keeping
+
+            int srcBlocksX=ceilDiv(width, 8*maxH)*comp.h;
+            int srcBlocksY=ceilDiv(height, 8*maxV)*comp.v;
+
+            for (int y=0;y<newV;y++) {
+              for (int x=0;x<newH;x++) {
+                int dstX=mcuX*newH+x;
+                int dstY=mcuY*newV+y;
+                int srcX;
+                int srcY;
+
+                if (degrees==90) {
+                  srcX=dstY;
+                  srcY=srcBlocksY-1-dstX;
+                }
+                else if (degrees==270) {
+                  srcX=srcBlocksX-1-dstY;
+                  srcY=dstX;
+                }
+                else {
+                  srcX=srcBlocksX-1-dstX;
+                  srcY=srcBlocksY-1-dstY;
+                }
+
+                transformBlock(comp.coefficients,
+                    (srcY*comp.blocksX+srcX)*64, block);
+                encodeBlock(bits, comp, block, dc, ac);
+              }
+            }
+          }
+        }
+      }
+
+      bits.flush();
+    }
+
+    /**
+     * Rotates the coefficients of one block. Mirroring a block
+     * negates its odd frequencies along that axis, and
+     * transposing a block transposes its coefficients, so each
+     * rotation is a combination of the two.
+     */
+    private void transformBlock(short[] src, int offset, short[] dst) {
+      for (int row=0;row<8;row++) {
+        for (int col=0;col<8;col++) {
+          int value;
+
+          if (degrees==90) {
+            value=src[offset+col*8+row];
+
+            if ((col&1)!=0) {
+              value=-value;
+            }
+          }
+          else if (degrees==270) {
+            value=src[offset+col*8+row];
+
+            if ((row&1)!=0) {
+              value=-value;
+            }
+          }
+          else {
+            value=src[offset+row*8+col];
+
+            if (((row+col)&1)!=0) {
+              value=-value;
+            }
+          }
+
+          dst[row*8+col]=(short)value;
+        }
+      }
+    }
+
+    private void encodeBlock(BitWriter bits, Component comp, short[] block,
+                             HuffmanEncoder dc, HuffmanEncoder ac) {
+      int diff=block[0]-comp.dcPredictor;
+
+      comp.dcPredictor=block[0];
+      encodeValue(bits, dc, 0, diff);
+
+      int run=0;
+
+      for (int k=1;k<64;k++) {
+        int value=block[ZIGZAG[k]];
+
+        if (value==0) {
+          run++;
+        }
+        else {
+          while (run>15) {
+            ac.write(bits, 0xF0);
+            run-=16;
+          }
+
+          encodeValue(bits, ac, run<<4, value);
+          run=0;
+        }
+      }
+
+      if (run>0) {
+        ac.write(bits, 0x00); // end of block
+      }
+    }
+
+    private void encodeValue(BitWriter bits, HuffmanEncoder encoder,
+                             int symbolBase, int value) {
+      int magnitude=(value<0 ? -value : value);
+      int size=(magnitude==0 ? 0 : 32-Integer.numberOfLeadingZeros(magnitude));
+
+      encoder.write(bits, symbolBase|size);
+
+      if (size>0) {
+        bits.write(value<0 ? value-1 : value, size);
+      }
+    }
+
+    /**
+     * Copies a segment that we do not otherwise care about,
+     * resetting the EXIF orientation and unlinking the EXIF
+     * thumbnail along the way.
+     */
+    private void copySegment(int marker, int from, int end) {
+      byte[] segment=new byte[end-from];
+      ByteBuffer src=in.duplicate();
+
+      src.position(from);
+      src.get(segment);
+
+      if (marker==MARKER_APP1) {
+        JpegHeader.Exif exif=JpegHeader.findExif(in);
+
+        if (exif!=null && exif.segment==from) {
+          int orientation=exif.findIfd0Value(TAG_ORIENTATION);
+          int link=exif.findIfd1Link();
+
+          if (orientation>=0) {
+            writeShort(segment, orientation-from, 1, exif.order);
+          }
+
+          if (link>=0) {
+            writeShort(segment, link-from, 0, exif.order);
+            writeShort(segment, link-from+2, 0, exif.order);
+          }
+        }
+      }
+
+      out.write(segment, 0, segment.length);
+    }
+
+    private int readShort(int i) {
+      return(JpegHeader.readUnsignedShort(in, i, ByteOrder.BIG_ENDIAN));
+    }
+  }
+
+  private static void writeShort(byte[] buffer, int i, int value,
+                                 ByteOrder order) {
+    if (order==ByteOrder.BIG_ENDIAN) {
+      buffer[i]=(byte)(value>>8);
+      buffer[i+1]=(byte)value;
+    }
+    else {
+      buffer[i]=(byte)value;
+      buffer[i+1]=(byte)(value>>8);
+    }
+  }
+
+  private static int extend(int value, int size) {
+    return(value<(1<<(size-1)) ? value-(1<<size)+1 : value);
+  }
+
+  private static int ceilDiv(int value, int divisor) {
+    return((value+divisor-1)/divisor);
+  }
+
+  private static class Component {
+    int id;
+    int h;
+    int v;
+    int quantTable;
+    int blocksX;
+    int blocksY;
+    HuffmanDecoder dc;
+    HuffmanDecoder ac;
+    int dcPredictor;
+    short[] coefficients;
+  }
+
+  /**
+   * Decodes Huffman-coded symbols, looking up codes of up to
+   * LOOKAHEAD bits in one shot and walking longer ones bit by
+   * bit, per Annex F.2.2.3 of the JPEG specification.
+   */
+  private static class HuffmanDecoder {
+    private static final int LOOKAHEAD=9;
+    private final int[] lookup=new int[1<<LOOKAHEAD];
+    private final int[] maxCode=new int[18];
+    private final int[] valueOffset=new int[17];
+    private final int[] values;
+
+    HuffmanDecoder(int[] bits, int[] values) throws MalformedException {
+      this.values=values;
+
+      int code=0;
+      int k=0;
+
+      for (int length=1;length<=16;length++) {
+        valueOffset[length]=k-code;
+
+        for (int i=0;i<bits[length-1];i++) {
+          if (length<=LOOKAHEAD) {
+            int shift=LOOKAHEAD-length;
+
+            for (int fill=0;fill<(1<<shift);fill++) {
+              lookup[(code<<shift)|fill]=(length<<8)|values[k];
+            }
+          }
+
+          code++;
+          k++;
+        }
+
+        if (code>(1<<length)) {
+          throw new MalformedException();
+        }
+
+        maxCode[length]=(bits[length-1]==0 ? -1 : code-1);
+        code<<=1;
+      }
+
+      maxCode[17]=Integer.MAX_VALUE;
+    }
+
+    int decode(BitReader bits) throws MalformedException {
+      int entry=lookup[bits.peek(LOOKAHEAD)];
+
+      if (entry!=0) {
+        bits.skip(entry>>8);
+
+        return(entry&0xFF);
+      }
+
+      int code=bits.read(LOOKAHEAD);
+      int length=LOOKAHEAD;
+
+      while (length<16 && (maxCode[length]<0 || code>maxCode[length])) {
+        code=(code<<1)|bits.read(1);
+        length++;
+      }
+
+      if (maxCode[length]<0 || code>maxCode[length]) {
+        throw new MalformedException();
+      }
+
+      return(values[valueOffset[length]+code]);
+    }
+  }
+
+  private static class HuffmanEncoder {
+    private final int[] codes=new int[256];
+    private final int[] lengths=new int[256];
+
+    HuffmanEncoder(int[] bits, int[] values) {
+      int code=0;
+      int k=0;
+
+      for (int length=1;length<=16;length++) {
+        for (int i=0;i<bits[length-1];i++) {
+          codes[values[k]]=code;
+          lengths[values[k]]=length;
+          code++;
+          k++;
+        }
+
+        code<<=1;
+      }
+    }
+
+    void write(BitWriter bits, int symbol) {
+      bits.write(codes[symbol], lengths[symbol]);
+    }
+  }
+
+  /**
+   * Reads entropy-coded data, removing stuffed bytes. Once a
+   * marker is reached, it feeds zeros, as decoders are
+   * supposed to.
+   */
+  private static class BitReader {
+    private final ByteBuffer in;
+    private final int limit;
+    private int position;
+    private long buffer=0;
+    private int count=0;
+    private boolean atMarker=false;
+
+    BitReader(ByteBuffer in, int position) {
+      this.in=in;
+      this.limit=in.limit();
+      this.position=position;
+    }
+
+    int peek(int bits) {
+      fill();
+
+      return((int)(buffer>>>(count-bits))&((1<<bits)-1));
+    }
+
+    void skip(int bits) {
+      count-=bits;
+    }
+
+    int read(int bits) {
+      int result=peek(bits);
+
+      count-=bits;
+
+      return(result);
+    }
+
+    void readRestart(int expected) throws MalformedException {
+      count=0;
+      buffer=0;
+
+      if (position+1>=limit || (in.get(position)&0xFF)!=0xFF ||
+          (in.get(position+1)&0xFF)!=0xD0+expected) {
+        throw new MalformedException();
+      }
+
+      position+=2;
+      atMarker=false;
+    }
+
+    private void fill() {
+      while (count<=56) {
+        int next=0;
+
+        if (!atMarker && position<limit) {
+          next=in.get(position)&0xFF;
+
+          if (next==0xFF) {
+            int after=(position+1<limit ? in.get(position+1)&0xFF : 0xD9);
+
+            if (after==0x00) {
+              position+=2;
+            }
+            else {
+              atMarker=true;
+              next=0;
+            }
+          }
+          else {
+            position++;
+          }
+        }
+
+        buffer=(buffer<<8)|next;
+        count+=8;
+      }
+    }
+  }
+
+  /**
+   * Writes entropy-coded data, stuffing a zero byte after any
+   * 0xFF byte.
+   */
+  private static class BitWriter {
+    private final ByteArrayOutputStream out;
+    private int buffer=0;
+    private int count=0;
+
+    BitWriter(ByteArrayOutputStream out) {
+      this.out=out;
+    }
+
+    void write(int value, int bits) {
+      buffer=(buffer<<bits)|(value&((1<<bits)-1));
+      count+=bits;
+
+      while (count>=8) {
+        int next=(buffer>>(count-8))&0xFF;
+
+        out.write(next);
+
+        if (next==0xFF) {
+          out.write(0);
+        }
+
+        count-=8;
+      }
+    }
+
+    void flush() {
+      if (count>0) {
+        write(0x7F, 8-count); // pad with one bits
+      }
+    }
+  }
+
+  private static class MalformedException extends Exception {
+    private static final long serialVersionUID=1L;
+  }
+}
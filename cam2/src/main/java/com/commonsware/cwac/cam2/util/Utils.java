@@ -113,4 +113,33 @@ public class Utils {
 
     return(result);
   }
+
+  /**
+   * Picks the smallest picture size whose longer side is at
+   * least the requested number of pixels, so a picture that
+   * will be scaled down to that size does not capture pixels
+   * only to throw them away.
+   *
+   * @param descriptor the camera whose picture sizes to consider
+   * @param minSide the minimum length of the longer side
+   * @return the smallest picture size that is big enough, or
+   * the largest picture size if none are
+   */
+  public static Size getSmallestPictureSizeAtLeast(CameraDescriptor descriptor,
+                                                   int minSide) {
+    Size result=null;
+    long resultArea=0;
+
+    for (Size size : descriptor.getPictureSizes()) {
+      long area=(long)size.getWidth()*size.getHeight();
+
+      if (Math.max(size.getWidth(), size.getHeight())>=minSide &&
+          (result==null || area<resultArea)) {
+        result=size;
+        resultArea=area;
+      }
+    }
+
+    return(result==null ? getLargestPictureSize(descriptor) : result);
+  }
 }
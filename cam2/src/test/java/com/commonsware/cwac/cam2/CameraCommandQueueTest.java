@@ -0,0 +1,189 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of CameraCommandQueue. Each test holds the command
+ * thread in a first command, gated by a latch, so the commands
+ * issued after it are known to be waiting while the test
+ * cancels or coalesces them.
+ */
+public class CameraCommandQueueTest {
+  private static final long TIMEOUT_SECONDS=5;
+  private final Object session1=new Object();
+  private final Object session2=new Object();
+  private final List<String> log=
+      Collections.synchronizedList(new ArrayList<String>());
+  private final CountDownLatch started=new CountDownLatch(1);
+  private final CountDownLatch gate=new CountDownLatch(1);
+  private CameraCommandQueue queue;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    queue=new CameraCommandQueue();
+    queue.execute(CameraCommandQueue.Kind.OTHER, null, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+
+        try {
+          gate.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        log.add("gate");
+      }
+    });
+
+    Assert.assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    queue.shutdown();
+  }
+
+  @Test
+  public void runsInOrder() throws InterruptedException {
+    queue.execute(CameraCommandQueue.Kind.OPEN, session1, record("open"));
+    queue.execute(CameraCommandQueue.Kind.CAPTURE, session1,
+        record("capture"));
+    queue.execute(CameraCommandQueue.Kind.CLOSE, session1, record("close"));
+    release(4);
+
+    Assert.assertEquals(Arrays.asList("gate", "open", "capture", "close"),
+        log);
+  }
+
+  @Test
+  public void cancelsWaitingOpen() throws InterruptedException {
+    queue.execute(CameraCommandQueue.Kind.OPEN, session1, record("open1"));
+    queue.execute(CameraCommandQueue.Kind.OPEN, session2, record("open2"));
+
+    Assert.assertTrue(queue.cancel(CameraCommandQueue.Kind.OPEN, session1));
+    Assert.assertFalse(queue.cancel(CameraCommandQueue.Kind.OPEN, session1));
+    Assert.assertFalse(queue.cancel(CameraCommandQueue.Kind.CLOSE, session2));
+
+    queue.execute(CameraCommandQueue.Kind.CLOSE, session1, record("close1"));
+    release(3);
+
+    Assert.assertEquals(Arrays.asList("gate", "open2", "close1"), log);
+    Assert.assertEquals(1, queue.getCoalescedCount());
+    Assert.assertFalse(queue.cancel(CameraCommandQueue.Kind.OPEN, session2));
+  }
+
+  @Test
+  public void coalescesPendingPreOpen() throws InterruptedException {
+    Assert.assertTrue(queue.executeUnlessPending(
+        CameraCommandQueue.Kind.PRE_OPEN, session1, record("pre1")));
+    Assert.assertFalse(queue.executeUnlessPending(
+        CameraCommandQueue.Kind.PRE_OPEN, session1, record("pre1again")));
+    Assert.assertTrue(queue.executeUnlessPending(
+        CameraCommandQueue.Kind.PRE_OPEN, session2, record("pre2")));
+    release(3);
+
+    Assert.assertEquals(Arrays.asList("gate", "pre1", "pre2"), log);
+    Assert.assertEquals(1, queue.getCoalescedCount());
+
+    // once the first has run, another is no longer redundant
+
+    Assert.assertTrue(queue.executeUnlessPending(
+        CameraCommandQueue.Kind.PRE_OPEN, session1, record("pre1later")));
+    awaitExecuted(4);
+  }
+
+  @Test
+  public void countsCommands() throws InterruptedException {
+    Assert.assertEquals(1, queue.getDepth());
+
+    queue.execute(CameraCommandQueue.Kind.OPEN, session1, record("open"));
+    queue.execute(CameraCommandQueue.Kind.CLOSE, session1, record("close"));
+
+    Assert.assertEquals(3, queue.getDepth());
+    Assert.assertEquals(3, queue.getMaxDepth());
+    Assert.assertEquals(0, queue.getExecutedCount());
+
+    release(3);
+
+    Assert.assertEquals(0, queue.getDepth());
+    Assert.assertEquals(3, queue.getMaxDepth());
+    Assert.assertEquals(0, queue.getCoalescedCount());
+  }
+
+  @Test
+  public void finishesQueuedCommandsAfterShutdown()
+      throws InterruptedException {
+    queue.execute(CameraCommandQueue.Kind.CLOSE, session1, record("close"));
+    queue.shutdown();
+
+    try {
+      queue.execute(CameraCommandQueue.Kind.OPEN, session2, record("open"));
+      Assert.fail("Expected RejectedExecutionException");
+    }
+    catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release(2);
+
+    Assert.assertEquals(Arrays.asList("gate", "close"), log);
+  }
+
+  private Runnable record(final String name) {
+    return(new Runnable() {
+      @Override
+      public void run() {
+        log.add(name);
+      }
+    });
+  }
+
+  /**
+   * Lets the gated first command finish, then waits for the
+   * given number of commands, including that one, to have run.
+   */
+  private void release(long executed) throws InterruptedException {
+    gate.countDown();
+    awaitExecuted(executed);
+  }
+
+  private void awaitExecuted(long executed) throws InterruptedException {
+    long deadline=System.nanoTime()+
+        TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+
+    while (queue.getExecutedCount()<executed || queue.getDepth()>0) {
+      Assert.assertTrue("Timed out waiting for commands",
+          System.nanoTime()<deadline);
+      Thread.sleep(10);
+    }
+
+    Assert.assertEquals(executed, queue.getExecutedCount());
+  }
+}
@@ -0,0 +1,415 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.imageio.ImageIO;
+
+/**
+ * Checks of ExifRewriter against JPEGs with little-endian (II)
+ * and big-endian (MM) EXIF data, and with none. The rewritten
+ * EXIF data is read back by walking the TIFF structure, so
+ * these also check that the offsets in the new IFDs, and in the
+ * original data that is carried over, still line up.
+ */
+public class ExifRewriterTest {
+  private static final int TAG_MAKE=0x010F;
+  private static final int TYPE_BYTE=1;
+  private static final int TYPE_ASCII=2;
+  private static final int TYPE_SHORT=3;
+  private static final int TYPE_LONG=4;
+  private static final int TYPE_RATIONAL=5;
+  private static final byte[] THUMBNAIL=
+      {(byte)0xFF, (byte)0xD8, 1, 2, 3, 4, (byte)0xFF, (byte)0xD9};
+
+  @Test
+  public void rewritesLittleEndian() throws IOException {
+    assertRewrites(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Test
+  public void rewritesBigEndian() throws IOException {
+    assertRewrites(ByteOrder.BIG_ENDIAN);
+  }
+
+  @Test
+  public void addsExifWhereThereIsNone() throws IOException {
+    byte[] plain=encode(64, 48);
+
+    Assert.assertNull(JpegHeader.findExif(ByteBuffer.wrap(plain)));
+
+    byte[] out=new ExifRewriter()
+        .setOrientation(6)
+        .setGpsLocation(-33.8568, 151.2153, -1)
+        .rewrite(ByteBuffer.wrap(plain));
+    JpegHeader.Exif exif=JpegHeader.findExif(ByteBuffer.wrap(out));
+
+    Assert.assertNotNull(exif);
+    Assert.assertEquals(2, exif.segment);
+    Assert.assertEquals(6, JpegHeader.readOrientation(ByteBuffer.wrap(out)));
+
+    TreeMap<Integer, Entry> gps=readIfd(exif,
+        (int)readIfd(exif, exif.ifd0).get(ExifRewriter.TAG_GPS_IFD_POINTER)
+            .asLong());
+
+    Assert.assertEquals("S",
+        gps.get(ExifRewriter.TAG_GPS_LATITUDE_REF).asAscii());
+    Assert.assertEquals("E",
+        gps.get(ExifRewriter.TAG_GPS_LONGITUDE_REF).asAscii());
+    Assert.assertEquals(33.8568,
+        gps.get(ExifRewriter.TAG_GPS_LATITUDE).asDegrees(), 0.0001);
+    Assert.assertEquals(151.2153,
+        gps.get(ExifRewriter.TAG_GPS_LONGITUDE).asDegrees(), 0.0001);
+    Assert.assertNull(gps.get(ExifRewriter.TAG_GPS_TIME_STAMP));
+    assertStillDecodes(plain, out);
+  }
+
+  @Test
+  public void removesThumbnail() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN,
+        ByteOrder.BIG_ENDIAN}) {
+      byte[] in=addExif(encode(64, 48), order);
+
+      Assert.assertNotNull(JpegHeader.findExifThumbnail(ByteBuffer.wrap(in)));
+
+      byte[] out=new ExifRewriter().removeThumbnail()
+          .rewrite(ByteBuffer.wrap(in));
+
+      Assert.assertNull(JpegHeader.findExifThumbnail(ByteBuffer.wrap(out)));
+      Assert.assertEquals(6, JpegHeader.readOrientation(ByteBuffer.wrap(out)));
+      assertStillDecodes(in, out);
+    }
+  }
+
+  @Test
+  public void keepsThumbnailUnlessRemoved() throws IOException {
+    byte[] in=addExif(encode(64, 48), ByteOrder.BIG_ENDIAN);
+    byte[] out=new ExifRewriter().setOrientation(1)
+        .rewrite(ByteBuffer.wrap(in));
+    ByteBuffer thumbnail=JpegHeader.findExifThumbnail(ByteBuffer.wrap(out));
+    byte[] bytes=new byte[thumbnail.remaining()];
+
+    thumbnail.get(bytes);
+    Assert.assertArrayEquals(THUMBNAIL, bytes);
+  }
+
+  @Test
+  public void refusesNonJpeg() {
+    Assert.assertNull(new ExifRewriter().setOrientation(3)
+        .rewrite(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6})));
+  }
+
+  @Test
+  public void tracksWhetherEmpty() {
+    Assert.assertTrue(new ExifRewriter().isEmpty());
+    Assert.assertFalse(new ExifRewriter().setOrientation(1).isEmpty());
+    Assert.assertFalse(new ExifRewriter().removeThumbnail().isEmpty());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void refusesUnknownIfd() {
+    new ExifRewriter().setShort(3, ExifRewriter.TAG_ORIENTATION, 1);
+  }
+
+  /**
+   * Rewrites twice, to be sure that the output of one rewrite
+   * is good input for the next, checking the tags that were set
+   * and those that were already there each time.
+   */
+  private static void assertRewrites(ByteOrder order) throws IOException {
+    byte[] in=addExif(encode(64, 48), order);
+    TimeZone newYork=TimeZone.getTimeZone("America/New_York");
+    byte[] out=new ExifRewriter()
+        .setOrientation(8)
+        .setDateTimeOriginal(1445000000123L, newYork)
+        .setGpsLocation(40.7484, -73.9857, 1445000000000L)
+        .setGpsAltitude(-12.5)
+        .rewrite(ByteBuffer.wrap(in));
+    JpegHeader.Exif exif=JpegHeader.findExif(ByteBuffer.wrap(out));
+
+    Assert.assertEquals(order, exif.order);
+    Assert.assertEquals(8, JpegHeader.readOrientation(ByteBuffer.wrap(out)));
+
+    TreeMap<Integer, Entry> ifd0=readIfd(exif, exif.ifd0);
+
+    Assert.assertEquals("Acme", ifd0.get(TAG_MAKE).asAscii());
+
+    TreeMap<Integer, Entry> exifIfd=readIfd(exif,
+        (int)ifd0.get(ExifRewriter.TAG_EXIF_IFD_POINTER).asLong());
+
+    Assert.assertEquals("2015:10:16 08:53:20",
+        exifIfd.get(ExifRewriter.TAG_DATE_TIME_ORIGINAL).asAscii());
+    Assert.assertEquals("123",
+        exifIfd.get(ExifRewriter.TAG_SUB_SEC_TIME_ORIGINAL).asAscii());
+    Assert.assertEquals("-04:00",
+        exifIfd.get(ExifRewriter.TAG_OFFSET_TIME_ORIGINAL).asAscii());
+    Assert.assertEquals(64,
+        exifIfd.get(ExifRewriter.TAG_PIXEL_X_DIMENSION).asLong());
+
+    TreeMap<Integer, Entry> gps=readIfd(exif,
+        (int)ifd0.get(ExifRewriter.TAG_GPS_IFD_POINTER).asLong());
+
+    Assert.assertEquals(TYPE_BYTE, gps.get(ExifRewriter.TAG_GPS_VERSION_ID).type);
+    Assert.assertEquals("N",
+        gps.get(ExifRewriter.TAG_GPS_LATITUDE_REF).asAscii());
+    Assert.assertEquals(40.7484,
+        gps.get(ExifRewriter.TAG_GPS_LATITUDE).asDegrees(), 0.0001);
+    Assert.assertEquals("W",
+        gps.get(ExifRewriter.TAG_GPS_LONGITUDE_REF).asAscii());
+    Assert.assertEquals(73.9857,
+        gps.get(ExifRewriter.TAG_GPS_LONGITUDE).asDegrees(), 0.0001);
+    Assert.assertEquals(1, gps.get(ExifRewriter.TAG_GPS_ALTITUDE_REF)
+        .value[0]);
+    Assert.assertEquals(12.5,
+        gps.get(ExifRewriter.TAG_GPS_ALTITUDE).asDouble(0), 0.001);
+    Assert.assertEquals("2015:10:16",
+        gps.get(ExifRewriter.TAG_GPS_DATE_STAMP).asAscii());
+    Assert.assertNotNull(JpegHeader.findExifThumbnail(ByteBuffer.wrap(out)));
+    assertStillDecodes(in, out);
+
+    byte[] again=new ExifRewriter()
+        .setOrientation(3)
+        .setLong(ExifRewriter.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION, 32)
+        .rewrite(ByteBuffer.wrap(out));
+
+    exif=JpegHeader.findExif(ByteBuffer.wrap(again));
+    ifd0=readIfd(exif, exif.ifd0);
+    exifIfd=readIfd(exif,
+        (int)ifd0.get(ExifRewriter.TAG_EXIF_IFD_POINTER).asLong());
+    gps=readIfd(exif,
+        (int)ifd0.get(ExifRewriter.TAG_GPS_IFD_POINTER).asLong());
+
+    Assert.assertEquals(3, JpegHeader.readOrientation(ByteBuffer.wrap(again)));
+    Assert.assertEquals("Acme", ifd0.get(TAG_MAKE).asAscii());
+    Assert.assertEquals(32,
+        exifIfd.get(ExifRewriter.TAG_PIXEL_X_DIMENSION).asLong());
+    Assert.assertEquals("2015:10:16 08:53:20",
+        exifIfd.get(ExifRewriter.TAG_DATE_TIME_ORIGINAL).asAscii());
+    Assert.assertEquals("N",
+        gps.get(ExifRewriter.TAG_GPS_LATITUDE_REF).asAscii());
+    Assert.assertNotNull(JpegHeader.findExifThumbnail(ByteBuffer.wrap(again)));
+    assertStillDecodes(in, again);
+  }
+
+  /**
+   * Checks that the rewritten JPEG still decodes, to the same
+   * size, with the image data copied over intact.
+   */
+  private static void assertStillDecodes(byte[] before, byte[] after)
+      throws IOException {
+    BufferedImage original=ImageIO.read(new ByteArrayInputStream(before));
+    BufferedImage rewritten=ImageIO.read(new ByteArrayInputStream(after));
+
+    Assert.assertNotNull(rewritten);
+    Assert.assertEquals(original.getWidth(), rewritten.getWidth());
+    Assert.assertEquals(original.getHeight(), rewritten.getHeight());
+
+    for (int y=0;y<original.getHeight();y++) {
+      for (int x=0;x<original.getWidth();x++) {
+        Assert.assertEquals(original.getRGB(x, y), rewritten.getRGB(x, y));
+      }
+    }
+  }
+
+  /**
+   * Reads an IFD, checking that its entries are sorted by tag,
+   * as the TIFF specification requires.
+   */
+  private static TreeMap<Integer, Entry> readIfd(JpegHeader.Exif exif,
+                                                 int offset) {
+    TreeMap<Integer, Entry> result=new TreeMap<Integer, Entry>();
+    ByteBuffer jpeg=exif.jpeg;
+    int count=JpegHeader.readUnsignedShort(jpeg, exif.tiff+offset,
+        exif.order);
+    int previous=-1;
+
+    for (int i=0;i<count;i++) {
+      int at=exif.tiff+offset+2+i*12;
+      int tag=JpegHeader.readUnsignedShort(jpeg, at, exif.order);
+      int type=JpegHeader.readUnsignedShort(jpeg, at+2, exif.order);
+      int values=(int)JpegHeader.readUnsignedInt(jpeg, at+4, exif.order);
+      int size=values*getTypeSize(type);
+      int valueAt=(size<=4 ? at+8 :
+          exif.tiff+(int)JpegHeader.readUnsignedInt(jpeg, at+8, exif.order));
+
+      Assert.assertTrue("IFD entries out of order", tag>previous);
+      Assert.assertTrue("value runs off the end of the EXIF data",
+          valueAt+size<=exif.tiff+exif.tiffLength);
+      previous=tag;
+
+      byte[] value=new byte[size];
+
+      for (int j=0;j<size;j++) {
+        value[j]=jpeg.get(valueAt+j);
+      }
+
+      result.put(tag, new Entry(type, values, value, exif.order));
+    }
+
+    return(result);
+  }
+
+  private static int getTypeSize(int type) {
+    switch (type) {
+      case TYPE_SHORT:
+        return(2);
+      case TYPE_LONG:
+        return(4);
+      case TYPE_RATIONAL:
+        return(8);
+    }
+
+    return(1);
+  }
+
+  private static byte[] encode(int width, int height) throws IOException {
+    BufferedImage image=
+        new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    for (int y=0;y<height;y++) {
+      for (int x=0;x<width;x++) {
+        image.setRGB(x, y, (x*4<<16) | (y*5<<8) | ((x+y)&0xFF));
+      }
+    }
+
+    ImageIO.write(image, "jpg", out);
+
+    return(out.toByteArray());
+  }
+
+  /**
+   * Adds an EXIF segment right after the SOI marker, laid out
+   * as:
+   *
+   * - 8: IFD0, with Make ("Acme", out of line at 62),
+   * Orientation (6), and the Exif IFD pointer (68), then a
+   * link to IFD1 (86)
+   *
+   * - 68: the Exif IFD, with PixelXDimension (64)
+   *
+   * - 86: IFD1, pointing at an eight-byte thumbnail at 112
+   */
+  private static byte[] addExif(byte[] jpeg, ByteOrder order)
+      throws IOException {
+    ByteBuffer tiff=ByteBuffer.allocate(120).order(order);
+    byte byteOrder=(byte)(order==ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+
+    tiff.put(byteOrder).put(byteOrder).putShort((short)42).putInt(8);
+
+    tiff.putShort((short)3);
+    tiff.putShort((short)TAG_MAKE).putShort((short)TYPE_ASCII).putInt(5)
+        .putInt(62);
+    tiff.putShort((short)ExifRewriter.TAG_ORIENTATION)
+        .putShort((short)TYPE_SHORT).putInt(1).putShort((short)6)
+        .putShort((short)0);
+    tiff.putShort((short)ExifRewriter.TAG_EXIF_IFD_POINTER)
+        .putShort((short)TYPE_LONG).putInt(1).putInt(68);
+    tiff.putInt(86);
+
+    tiff.position(62);
+    tiff.put("Acme\0".getBytes("US-ASCII"));
+
+    tiff.position(68);
+    tiff.putShort((short)1);
+    tiff.putShort((short)ExifRewriter.TAG_PIXEL_X_DIMENSION)
+        .putShort((short)TYPE_LONG).putInt(1).putInt(64);
+    tiff.putInt(0);
+
+    tiff.position(86);
+    tiff.putShort((short)2);
+    tiff.putShort((short)0x0201).putShort((short)TYPE_LONG).putInt(1)
+        .putInt(112);
+    tiff.putShort((short)0x0202).putShort((short)TYPE_LONG).putInt(1)
+        .putInt(THUMBNAIL.length);
+    tiff.putInt(0);
+
+    tiff.position(112);
+    tiff.put(THUMBNAIL);
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    int length=2+6+tiff.capacity();
+
+    out.write(jpeg, 0, 2);
+    out.write(0xFF);
+    out.write(0xE1);
+    out.write(length>>8);
+    out.write(length&0xFF);
+    out.write("Exif\0\0".getBytes("US-ASCII"));
+    out.write(tiff.array());
+    out.write(jpeg, 2, jpeg.length-2);
+
+    return(out.toByteArray());
+  }
+
+  private static class Entry {
+    final int type;
+    final int count;
+    final byte[] value;
+    final ByteOrder order;
+
+    Entry(int type, int count, byte[] value, ByteOrder order) {
+      this.type=type;
+      this.count=count;
+      this.value=value;
+      this.order=order;
+    }
+
+    String asAscii() {
+      Assert.assertEquals(TYPE_ASCII, type);
+      Assert.assertEquals("ASCII value not NUL-terminated", 0,
+          value[value.length-1]);
+
+      return(new String(value, 0, value.length-1));
+    }
+
+    long asLong() {
+      ByteBuffer buffer=ByteBuffer.wrap(value).order(order);
+
+      if (type==TYPE_SHORT) {
+        return(buffer.getShort()&0xFFFF);
+      }
+
+      Assert.assertEquals(TYPE_LONG, type);
+
+      return(buffer.getInt()&0xFFFFFFFFL);
+    }
+
+    double asDouble(int index) {
+      Assert.assertEquals(TYPE_RATIONAL, type);
+
+      ByteBuffer buffer=ByteBuffer.wrap(value).order(order);
+      long numerator=buffer.getInt(index*8)&0xFFFFFFFFL;
+      long denominator=buffer.getInt(index*8+4)&0xFFFFFFFFL;
+
+      return((double)numerator/denominator);
+    }
+
+    double asDegrees() {
+      Assert.assertEquals(3, count);
+
+      return(asDouble(0)+asDouble(1)/60+asDouble(2)/3600);
+    }
+  }
+}
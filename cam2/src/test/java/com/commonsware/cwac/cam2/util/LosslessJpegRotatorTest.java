@@ -0,0 +1,394 @@
+/***
+ Copyright (c) 2015 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Round-trip checks of LosslessJpegRotator, using the JDK's
+ * JPEG codec to make test pictures and to decode the results.
+ * The JDK encodes color pictures with 4:2:0 chroma subsampling,
+ * so those cover 16x16 MCUs, while grayscale pictures cover
+ * 8x8 ones.
+ */
+public class LosslessJpegRotatorTest {
+  private static final String JPEG_METADATA_FORMAT=
+      "javax_imageio_jpeg_image_1.0";
+
+  // the coefficients are the same, but the decoder's IDCT and
+  // chroma upsampling round differently once they are
+  // transposed, so samples can be off by a little; a block in
+  // the wrong place, or a coefficient with the wrong sign, is
+  // off by a lot
+
+  private static final int MAX_GRAY_DIFFERENCE=1;
+  private static final int MAX_COLOR_DIFFERENCE=3;
+
+  @Test
+  public void rotatesColor() throws IOException {
+    assertRotates(encode(buildImage(640, 480, false), 0), false,
+        MAX_COLOR_DIFFERENCE);
+  }
+
+  @Test
+  public void rotatesGrayscale() throws IOException {
+    assertRotates(encode(buildImage(640, 480, true), 0), false,
+        MAX_GRAY_DIFFERENCE);
+  }
+
+  @Test
+  public void rotatesWithRestartIntervals() throws IOException {
+    byte[] jpeg=encode(buildImage(320, 240, false), 7);
+
+    Assert.assertTrue("test picture has no DRI segment",
+        hasMarker(jpeg, 0xDD));
+    assertRotates(jpeg, false, MAX_COLOR_DIFFERENCE);
+  }
+
+  @Test
+  public void trimsPartialMcus() throws IOException {
+    assertRotates(encode(buildImage(1000, 750, false), 0), true,
+        MAX_COLOR_DIFFERENCE);
+    assertRotates(encode(buildImage(37, 29, true), 0), true,
+        MAX_GRAY_DIFFERENCE);
+    assertRotates(encode(buildImage(37, 29, false), 0), true,
+        MAX_COLOR_DIFFERENCE);
+  }
+
+  @Test
+  public void refusesPartialMcusWithoutTrim() throws IOException {
+    byte[] jpeg=encode(buildImage(1000, 750, false), 0);
+
+    Assert.assertNull(LosslessJpegRotator.rotate(ByteBuffer.wrap(jpeg),
+        90, false));
+    Assert.assertNull(LosslessJpegRotator.rotate(ByteBuffer.wrap(jpeg),
+        180, false));
+    Assert.assertNull(LosslessJpegRotator.rotate(ByteBuffer.wrap(jpeg),
+        270, false));
+  }
+
+  @Test
+  public void roundTripsExactly() throws IOException {
+    for (boolean gray : new boolean[] {false, true}) {
+      byte[] jpeg=encode(buildImage(640, 480, gray), 0);
+      BufferedImage original=decode(jpeg);
+
+      Assert.assertEquals(0, maxDifference(original,
+          decode(rotate(rotate(jpeg, 90), 270)), 0, 0));
+      Assert.assertEquals(0, maxDifference(original,
+          decode(rotate(rotate(jpeg, 180), 180)), 0, 0));
+
+      byte[] rotated=jpeg;
+
+      for (int i=0;i<4;i++) {
+        rotated=rotate(rotated, 90);
+      }
+
+      Assert.assertEquals(0,
+          maxDifference(original, decode(rotated), 0, 0));
+    }
+  }
+
+  @Test
+  public void resetsOrientationAndUnlinksThumbnail() throws IOException {
+    byte[] jpeg=addExif(encode(buildImage(320, 240, false), 0), 6);
+    ByteBuffer in=ByteBuffer.wrap(jpeg);
+
+    Assert.assertEquals(6, JpegHeader.readOrientation(in));
+    Assert.assertNotNull(JpegHeader.findExifThumbnail(in));
+
+    byte[] rotated=LosslessJpegRotator.rotate(in,
+        LosslessJpegRotator.toDegrees(6), false);
+    ByteBuffer out=ByteBuffer.wrap(rotated);
+
+    Assert.assertEquals(0, in.position());
+    Assert.assertEquals(1, JpegHeader.readOrientation(out));
+    Assert.assertNull(JpegHeader.findExifThumbnail(out));
+    Assert.assertEquals(new Size(240, 320), JpegHeader.readSize(out));
+    Assert.assertTrue(maxDifference(decode(jpeg), decode(rotated), 90, 0)<=
+        MAX_COLOR_DIFFERENCE);
+  }
+
+  @Test
+  public void refusesProgressive() {
+    byte[] sof2={(byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xC2, 0, 3, 0};
+
+    Assert.assertNull(LosslessJpegRotator.rotate(ByteBuffer.wrap(sof2),
+        90, true));
+  }
+
+  @Test
+  public void refusesGarbage() {
+    Assert.assertNull(LosslessJpegRotator.rotate(
+        ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}), 90, true));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void refusesOddAngles() throws IOException {
+    LosslessJpegRotator.rotate(
+        ByteBuffer.wrap(encode(buildImage(16, 16, true), 0)), 45, true);
+  }
+
+  @Test
+  public void convertsOrientations() {
+    for (int degrees : new int[] {0, 90, 180, 270}) {
+      Assert.assertEquals(degrees, LosslessJpegRotator.toDegrees(
+          LosslessJpegRotator.toOrientation(degrees)));
+    }
+
+    Assert.assertEquals(-1, LosslessJpegRotator.toDegrees(2));
+  }
+
+  /**
+   * Rotates the JPEG each way and compares every pixel of the
+   * result with the pixel of the original that it came from.
+   * When trimming, the result is smaller than the original, and
+   * what was trimmed is at the bottom and/or right of the
+   * original. The outermost pixels of a trimmed result are
+   * skipped, as the decoder upsamples chroma there without the
+   * neighbors that were trimmed off.
+   */
+  private static void assertRotates(byte[] jpeg, boolean trim,
+                                    int maxDifference) throws IOException {
+    BufferedImage original=decode(jpeg);
+
+    for (int degrees : new int[] {90, 180, 270}) {
+      byte[] rotated=
+          LosslessJpegRotator.rotate(ByteBuffer.wrap(jpeg), degrees, trim);
+
+      Assert.assertNotNull("could not rotate by "+degrees, rotated);
+
+      BufferedImage result=decode(rotated);
+      boolean swap=(degrees!=180);
+      int expectedWidth=(swap ? original.getHeight() : original.getWidth());
+      int expectedHeight=(swap ? original.getWidth() : original.getHeight());
+
+      if (trim) {
+        Assert.assertTrue(result.getWidth()<=expectedWidth);
+        Assert.assertTrue(result.getHeight()<=expectedHeight);
+        Assert.assertTrue(result.getWidth()>expectedWidth-16);
+        Assert.assertTrue(result.getHeight()>expectedHeight-16);
+      }
+      else {
+        Assert.assertEquals(expectedWidth, result.getWidth());
+        Assert.assertEquals(expectedHeight, result.getHeight());
+      }
+
+      Assert.assertEquals(new Size(result.getWidth(), result.getHeight()),
+          JpegHeader.readSize(ByteBuffer.wrap(rotated)));
+      Assert.assertTrue("pixels differ after rotating by "+degrees,
+          maxDifference(original, result, degrees, trim ? 1 : 0)<=
+              maxDifference);
+    }
+  }
+
+  private static byte[] rotate(byte[] jpeg, int degrees) {
+    byte[] result=
+        LosslessJpegRotator.rotate(ByteBuffer.wrap(jpeg), degrees, false);
+
+    Assert.assertNotNull(result);
+
+    return(result);
+  }
+
+  /**
+   * Compares decoded samples, rather than the results of
+   * getRGB(), as the latter gamma-corrects grayscale pictures,
+   * magnifying differences near black.
+   *
+   * @param border the number of pixels to skip along each edge
+   *               of the rotated picture
+   * @return the largest difference, in any band, between a
+   * pixel of the rotated picture and the pixel of the original
+   * that it should have come from
+   */
+  private static int maxDifference(BufferedImage original,
+                                   BufferedImage rotated, int degrees,
+                                   int border) {
+    Raster expected=original.getRaster();
+    Raster actual=rotated.getRaster();
+    int width=rotated.getWidth();
+    int height=rotated.getHeight();
+    int result=0;
+
+    for (int y=border;y<height-border;y++) {
+      for (int x=border;x<width-border;x++) {
+        int sourceX;
+        int sourceY;
+
+        if (degrees==90) {
+          sourceX=y;
+          sourceY=width-1-x;
+        }
+        else if (degrees==180) {
+          sourceX=width-1-x;
+          sourceY=height-1-y;
+        }
+        else if (degrees==270) {
+          sourceX=height-1-y;
+          sourceY=x;
+        }
+        else {
+          sourceX=x;
+          sourceY=y;
+        }
+
+        for (int band=0;band<expected.getNumBands();band++) {
+          result=Math.max(result,
+              Math.abs(expected.getSample(sourceX, sourceY, band)-
+                  actual.getSample(x, y, band)));
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Builds a picture with plenty of detail, so that most
+   * coefficients of most blocks are non-zero, and so that any
+   * block that winds up in the wrong place, or any coefficient
+   * with the wrong sign, shows.
+   */
+  private static BufferedImage buildImage(int width, int height,
+                                          boolean gray) {
+    BufferedImage result=new BufferedImage(width, height,
+        gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+    Random random=new Random(1);
+
+    for (int y=0;y<height;y++) {
+      for (int x=0;x<width;x++) {
+        int red=((x*7+y*3)&0xFF)^((x/9+y/5)%3==0 ? 64 : 0);
+
+        red=(red+random.nextInt(20))&0xFF;
+        result.setRGB(x, y, (red<<16) | ((x*255/width)<<8) | (y*255/height));
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * @param restartInterval the number of MCUs between restart
+   *                        markers, or 0 for none
+   */
+  private static byte[] encode(BufferedImage image, int restartInterval)
+      throws IOException {
+    ImageWriter writer=ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param=writer.getDefaultWriteParam();
+    IIOMetadata metadata=null;
+
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(0.9f);
+
+    if (restartInterval>0) {
+      metadata=writer.getDefaultImageMetadata(
+          new ImageTypeSpecifier(image), param);
+
+      Element root=(Element)metadata.getAsTree(JPEG_METADATA_FORMAT);
+      Element sequence=
+          (Element)root.getElementsByTagName("markerSequence").item(0);
+      IIOMetadataNode dri=new IIOMetadataNode("dri");
+
+      dri.setAttribute("interval", Integer.toString(restartInterval));
+      sequence.insertBefore(dri, sequence.getFirstChild());
+      metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+    }
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    writer.setOutput(new MemoryCacheImageOutputStream(out));
+    writer.write(null, new IIOImage(image, null, metadata), param);
+    writer.dispose();
+
+    return(out.toByteArray());
+  }
+
+  private static BufferedImage decode(byte[] jpeg) throws IOException {
+    BufferedImage result=ImageIO.read(new ByteArrayInputStream(jpeg));
+
+    Assert.assertNotNull("could not decode", result);
+
+    return(result);
+  }
+
+  private static boolean hasMarker(byte[] jpeg, int marker) {
+    for (int i=0;i+1<jpeg.length;i++) {
+      if ((jpeg[i]&0xFF)==0xFF && (jpeg[i+1]&0xFF)==marker) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  /**
+   * Adds a little-endian EXIF segment, with the given
+   * orientation and an (empty) thumbnail in IFD1, right after
+   * the SOI marker.
+   */
+  private static byte[] addExif(byte[] jpeg, int orientation)
+      throws IOException {
+    ByteBuffer tiff=ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+
+    tiff.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+
+    // IFD0, at 8: Orientation, then a link to IFD1
+
+    tiff.putShort((short)1);
+    tiff.putShort((short)0x0112).putShort((short)3).putInt(1)
+        .putShort((short)orientation).putShort((short)0);
+    tiff.putInt(26);
+
+    // IFD1, at 26: JPEGInterchangeFormat(Length), pointing at 56
+
+    tiff.putShort((short)2);
+    tiff.putShort((short)0x0201).putShort((short)4).putInt(1).putInt(56);
+    tiff.putShort((short)0x0202).putShort((short)4).putInt(1).putInt(8);
+    tiff.putInt(0);
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    int length=2+6+tiff.capacity();
+
+    out.write(jpeg, 0, 2);
+    out.write(0xFF);
+    out.write(0xE1);
+    out.write(length>>8);
+    out.write(length&0xFF);
+    out.write("Exif\0\0".getBytes("US-ASCII"));
+    out.write(tiff.array());
+    out.write(jpeg, 2, jpeg.length-2);
+
+    return(out.toByteArray());
+  }
+}